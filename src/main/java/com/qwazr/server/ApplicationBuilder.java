@@ -15,6 +15,7 @@
  */
 package com.qwazr.server;
 
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
 import com.qwazr.utils.AnnotationsUtils;
 import com.qwazr.utils.StringUtils;
 import org.glassfish.jersey.server.ResourceConfig;
@@ -104,7 +105,41 @@ public class ApplicationBuilder {
         return load(ServiceInterface.class);
     }
 
+    /**
+     * Mount the batch endpoint ({@link BatchService}), which executes several requests of this application
+     * in one HTTP call
+     *
+     * @return the current builder
+     */
+    public ApplicationBuilder batch() {
+        return batch(BatchService.DEFAULT_MAX_REQUESTS);
+    }
+
+    /**
+     * Mount the batch endpoint ({@link BatchService})
+     *
+     * @param maxRequests the maximum number of sub-requests of a batch
+     * @return the current builder
+     */
+    public ApplicationBuilder batch(final int maxRequests) {
+        final BatchService batchService = new BatchService(maxRequests);
+        // The batches may be exchanged in Smile
+        classes(JacksonSmileProvider.class);
+        return singletons(batchService, batchService.lifecycleListener());
+    }
+
+    /**
+     * Mount the scrape endpoint of the metrics ({@link MetricsService}),
+     * in the Prometheus or the OpenMetrics text format
+     *
+     * @return the current builder
+     */
+    public ApplicationBuilder metrics() {
+        return classes(MetricsService.class);
+    }
+
     void apply(ResourceConfig resourceConfig) {
+        resourceConfig.register(RequestEndpointFilter.class);
         resourceConfig.registerClasses(classes);
         resourceConfig.registerInstances(singletons);
         resourceConfig.setProperties(properties);
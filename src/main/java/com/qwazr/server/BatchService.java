@@ -0,0 +1,274 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A generic endpoint executing several sub-requests of the same JAX-RS application in one HTTP call.
+ * <p>
+ * The sub-requests are dispatched in process, in parallel, on a pool dedicated to the batches.
+ * When the pool is saturated, the sub-requests are executed by the request thread: a batch never waits
+ * for a sub-request queued behind other requests.
+ * The sub-requests share the security context and the deadline of the batch request, but they do not pass through
+ * the servlet filters or the Undertow handlers. The results are returned in the order of the requests.
+ * A batch is limited to a maximum number of sub-requests (413 status), and cannot contain another batch (400 status).
+ * The batch itself is exchanged in JSON or in Smile (binary JSON), as negotiated by the client.
+ * Use {@link ApplicationBuilder#batch()} to mount it.
+ */
+@Path(BatchService.PATH)
+public class BatchService extends AbstractServiceImpl {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(BatchService.class);
+
+    public final static String PATH = "/batch";
+
+    /**
+     * The maximum number of sub-requests executed in parallel by the pool
+     */
+    private final static int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * The default maximum number of sub-requests of a batch
+     */
+    public final static int DEFAULT_MAX_REQUESTS =
+            Integer.parseInt(System.getProperty("com.qwazr.server.batch_max_requests", "100"));
+
+    private volatile ApplicationHandler applicationHandler;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int maxRequests;
+
+    public BatchService() {
+        this(DEFAULT_MAX_REQUESTS);
+    }
+
+    /**
+     * @param maxRequests the maximum number of sub-requests of a batch
+     */
+    public BatchService(final int maxRequests) {
+        if (maxRequests < 1)
+            throw new IllegalArgumentException("The maximum number of sub-requests should be greater than zero");
+        this.maxRequests = maxRequests;
+        final AtomicInteger threadCount = new AtomicInteger();
+        // No queue: a sub-request is either executed by an idle thread, or by the caller
+        executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "qwazr-batch-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, pool) -> runnable.run());
+    }
+
+    /**
+     * @return the listener giving the application handler to the service
+     */
+    ContainerLifecycleListener lifecycleListener() {
+        return new ContainerLifecycleListener() {
+
+            @Override
+            public void onStartup(final Container container) {
+                applicationHandler = container.getApplicationHandler();
+            }
+
+            @Override
+            public void onReload(final Container container) {
+                applicationHandler = container.getApplicationHandler();
+            }
+
+            @Override
+            public void onShutdown(final Container container) {
+                applicationHandler = null;
+                executor.shutdown();
+            }
+        };
+    }
+
+    @POST
+    @Consumes({ServiceInterface.APPLICATION_JSON_UTF8, ServerException.APPLICATION_JACKSON_SMILE})
+    @Produces({ServiceInterface.APPLICATION_JSON_UTF8, ServerException.APPLICATION_JACKSON_SMILE})
+    public List<SubResponse> batch(final List<SubRequest> requests, @Context final UriInfo uriInfo,
+                                   @Context final ContainerRequestContext requestContext) {
+        final ApplicationHandler handler = Objects.requireNonNull(applicationHandler, "The batch is not started");
+        if (requests == null || requests.isEmpty())
+            return List.of();
+        if (requests.size() > maxRequests)
+            throw new WebApplicationException(
+                    "Too many sub-requests: " + requests.size() + " (maximum: " + maxRequests + ")",
+                    Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        final URI baseUri = uriInfo.getBaseUri();
+        // A sub-request cannot be another batch: one request would fan out without bound
+        final String batchPath = baseUri.resolve(PATH.substring(1)).normalize().getPath();
+        for (final SubRequest request : requests) {
+            final String path = requestUri(baseUri, request).normalize().getPath();
+            if (path.equals(batchPath) || path.startsWith(batchPath + '/'))
+                throw new WebApplicationException("A batch cannot contain another batch",
+                        Response.Status.BAD_REQUEST);
+        }
+        // The request scoped objects are resolved by the request thread
+        final SecurityContext securityContext = requestContext.getSecurityContext();
+
+        final List<Future<SubResponse>> futures = new ArrayList<>(requests.size());
+        final List<SubResponse> responses = new ArrayList<>(requests.size());
+        // The last sub-request is executed by the current thread
+        for (int i = 0; i < requests.size(); i++) {
+            final SubRequest request = requests.get(i);
+            if (i == requests.size() - 1)
+                futures.add(null);
+            else
+                futures.add(executor.submit(
+                        RequestTrace.wrap(RequestDeadline.wrap(
+                                () -> execute(handler, baseUri, securityContext, request)))));
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            final Future<SubResponse> future = futures.get(i);
+            if (future == null) {
+                responses.add(execute(handler, baseUri, securityContext, requests.get(i)));
+                continue;
+            }
+            try {
+                responses.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responses.add(SubResponse.error(503, e));
+            } catch (ExecutionException e) {
+                responses.add(SubResponse.error(500, e.getCause()));
+            }
+        }
+        return responses;
+    }
+
+    private SubResponse execute(final ApplicationHandler handler, final URI baseUri,
+                                final SecurityContext securityContext, final SubRequest subRequest) {
+        try {
+            final URI requestUri = requestUri(baseUri, subRequest);
+            final String method = subRequest.method == null ? HttpMethod.GET : subRequest.method;
+            final ContainerRequest request =
+                    new ContainerRequest(baseUri, requestUri, method, securityContext, new MapPropertiesDelegate(),
+                            handler.getConfiguration());
+            request.header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+            if (subRequest.headers != null)
+                subRequest.headers.forEach(request::header);
+            if (subRequest.body != null && !subRequest.body.isNull()) {
+                request.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+                request.setEntityStream(
+                        new ByteArrayInputStream(ObjectMappers.JSON.writeValueAsBytes(subRequest.body)));
+            }
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final ContainerResponse response = handler.apply(request, output).get();
+            return new SubResponse(response.getStatus(), readBody(response.getMediaType(), output.toByteArray()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return SubResponse.error(503, e);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, e, () -> "Batch sub-request failed: " + subRequest.path);
+            return SubResponse.error(500, e);
+        }
+    }
+
+    private static URI requestUri(final URI baseUri, final SubRequest subRequest) {
+        final String path = subRequest.path == null ? "" : subRequest.path;
+        return baseUri.resolve(path.startsWith("/") ? path.substring(1) : path);
+    }
+
+    private static JsonNode readBody(final MediaType mediaType, final byte[] bytes) throws IOException {
+        if (bytes.length == 0)
+            return null;
+        if (mediaType != null && mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+            return ObjectMappers.JSON.readTree(bytes);
+        return TextNode.valueOf(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class SubRequest {
+
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final JsonNode body;
+
+        @JsonCreator
+        public SubRequest(@JsonProperty("method") final String method, @JsonProperty("path") final String path,
+                          @JsonProperty("headers") final Map<String, String> headers,
+                          @JsonProperty("body") final JsonNode body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class SubResponse {
+
+        public final int status;
+        public final JsonNode body;
+
+        @JsonCreator
+        public SubResponse(@JsonProperty("status") final int status, @JsonProperty("body") final JsonNode body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static SubResponse error(final int status, final Throwable t) {
+            return new SubResponse(status, TextNode.valueOf(t.getMessage() == null ? t.toString() : t.getMessage()));
+        }
+    }
+}
@@ -27,5 +27,97 @@ public interface ConnectorStatisticsMXBean {
 
 	int getMaxActiveCount();
 
+	/**
+	 * @return the number of requests processed by the listener
+	 */
+	long getRequestCount();
+
+	/**
+	 * @return the number of requests answered with a 5xx status or failed
+	 */
+	long getErrorCount();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	/**
+	 * @return the number of open connections
+	 */
+	long getActiveConnections();
+
+	long getMaxActiveConnections();
+
+	/**
+	 * @return the longest processing time of a request, in milliseconds
+	 */
+	long getMaxProcessingTimeMs();
+
+	/**
+	 * @return the number of HTTP/2 streams (one per HTTP/2 request)
+	 */
+	long getHttp2StreamCount();
+
+	/**
+	 * @return the number of HTTP/2 streams being processed
+	 */
+	int getActiveHttp2Streams();
+
+	/**
+	 * @return the requests per second, sampled over the last second
+	 */
+	double getRequestRate();
+
+	/**
+	 * @return the errors per second, sampled over the last second
+	 */
+	double getErrorRate();
+
+	/**
+	 * @return the bytes sent per second, sampled over the last second
+	 */
+	double getBytesSentRate();
+
+	/**
+	 * @return the bytes received per second, sampled over the last second
+	 */
+	double getBytesReceivedRate();
+
+	/**
+	 * @return the mean time (microseconds) between the start of a request and its dispatch on a worker thread
+	 */
+	double getQueueTimeMean();
+
+	long getQueueTimeP99();
+
+	/**
+	 * @return the mean time (microseconds) spent by a handler on a worker thread
+	 */
+	double getHandlerTimeMean();
+
+	long getHandlerTimeP99();
+
+	/**
+	 * @return the mean time (microseconds) between the start of a request and the commit of its response
+	 */
+	double getTimeToFirstByteMean();
+
+	long getTimeToFirstByteP99();
+
+	/**
+	 * @return the number of requests whose CPU time and allocated bytes are measured
+	 */
+	long getResourceSampleCount();
+
+	/**
+	 * @return the mean CPU time (microseconds) used by a sampled request on its worker thread
+	 */
+	double getCpuTimeMean();
+
+	/**
+	 * @return the mean bytes allocated by a sampled request on its worker thread
+	 */
+	double getAllocatedBytesMean();
+
 	void reset();
 }
@@ -18,6 +18,7 @@ package com.qwazr.server;
 import com.qwazr.server.configuration.ServerConfiguration;
 import com.qwazr.server.logs.AccessLogger;
 import com.qwazr.server.logs.LogMetricsHandler;
+import com.qwazr.server.logs.RequestTimings;
 import com.qwazr.utils.CollectionsUtils;
 import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.StringUtils;
@@ -26,6 +27,7 @@ import io.undertow.Undertow;
 import io.undertow.UndertowOptions;
 import io.undertow.security.idm.IdentityManager;
 import io.undertow.server.HttpHandler;
+import io.undertow.server.handlers.PathHandler;
 import io.undertow.servlet.Servlets;
 import io.undertow.servlet.api.DeploymentInfo;
 import io.undertow.servlet.api.DeploymentManager;
@@ -60,6 +62,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,7 +76,7 @@ public class GenericServer implements AutoCloseable {
     final private Map<String, Object> contextAttributes;
     final private IdentityManagerProvider identityManagerProvider;
     final private HostnameAuthenticationMechanism.PrincipalResolver hostnamePrincipalResolver;
-    final private Collection<ConnectorStatisticsMXBean> connectorsStatistics;
+    final private Collection<LogMetricsHandler> connectorsStatistics;
 
     final private Collection<Listener> startedListeners;
     final private Collection<Listener> shutdownListeners;
@@ -86,6 +89,23 @@ public class GenericServer implements AutoCloseable {
     final private AccessLogger webAppAccessLogger;
     final private AccessLogger webServiceAccessLogger;
 
+    final private Map<String, ReverseProxy> webAppProxies;
+    final private Map<String, ReverseProxy> webServiceProxies;
+
+    final private TrafficMirror webServiceMirror;
+
+    final private WarmUp warmUp;
+
+    final private Map<String, BooleanSupplier> readinessChecks;
+
+    final private StatusSampler statusSampler;
+
+    final private double resourceSampleRate;
+
+    private volatile boolean ready;
+
+    private volatile boolean draining;
+
     final private Set<String> webAppEndPoints;
     final private Set<String> webServiceEndPoints;
 
@@ -114,6 +134,19 @@ public class GenericServer implements AutoCloseable {
         this.hostnamePrincipalResolver = builder.hostnamePrincipalResolver;
         this.webAppAccessLogger = builder.webAppAccessLogger;
         this.webServiceAccessLogger = builder.webServiceAccessLogger;
+        this.webAppProxies = builder.webAppProxies == null ?
+                Collections.emptyMap() :
+                new LinkedHashMap<>(builder.webAppProxies);
+        this.webServiceProxies = builder.webServiceProxies == null ?
+                Collections.emptyMap() :
+                new LinkedHashMap<>(builder.webServiceProxies);
+        this.webServiceMirror = builder.webServiceMirror;
+        this.warmUp = builder.warmUp;
+        this.readinessChecks = builder.readinessChecks == null ?
+                Collections.emptyMap() :
+                new LinkedHashMap<>(builder.readinessChecks);
+        this.statusSampler = new StatusSampler();
+        this.resourceSampleRate = builder.resourceSampleRate;
         this.udpServer = buildUdpServer(builder, configuration);
         this.startedListeners = CollectionsUtils.copyIfNotEmpty(builder.startedListeners, ArrayList::new);
         this.shutdownListeners = CollectionsUtils.copyIfNotEmpty(builder.shutdownListeners, ArrayList::new);
@@ -160,6 +193,14 @@ public class GenericServer implements AutoCloseable {
         return webAppEndPoints;
     }
 
+    synchronized Collection<Undertow> getUndertows() {
+        return new ArrayList<>(undertows);
+    }
+
+    synchronized Collection<DeploymentManager> getDeploymentManagers() {
+        return new ArrayList<>(deploymentManagers);
+    }
+
     private static UdpServerThread buildUdpServer(final GenericServerBuilder builder,
                                                   final ServerConfiguration configuration) throws IOException {
 
@@ -194,6 +235,9 @@ public class GenericServer implements AutoCloseable {
 
         LOGGER.info("The server is stopping...");
 
+        draining = true;
+        ready = false;
+
         executeListener(shutdownListeners, LOGGER);
 
         if (udpServer != null)
@@ -210,6 +254,10 @@ public class GenericServer implements AutoCloseable {
             }
         }
 
+        // The connections of the proxies are closed by the IO threads, before Undertow stops them
+        webAppProxies.values().forEach(ReverseProxy::close);
+        webServiceProxies.values().forEach(ReverseProxy::close);
+
         for (final Undertow undertow : undertows) {
             try {
                 undertow.stop();
@@ -218,6 +266,13 @@ public class GenericServer implements AutoCloseable {
             }
         }
 
+        connectorsStatistics.forEach(LogMetricsHandler::close);
+        if (webServiceMirror != null)
+            webServiceMirror.close();
+        if (warmUp != null)
+            warmUp.close();
+        statusSampler.close();
+
         if (!executorService.isTerminated()) {
             if (!executorService.isShutdown())
                 executorService.shutdown();
@@ -256,9 +311,12 @@ public class GenericServer implements AutoCloseable {
     private final static AtomicInteger serverCounter = new AtomicInteger();
 
     private void startHttpServer(final ServerConfiguration.WebConnector connector, final ServletContextBuilder context,
-                                 final AccessLogger accessLogger) throws ServletException, OperationsException, MBeanException {
+                                 final AccessLogger accessLogger, final Map<String, ReverseProxy> proxies,
+                                 final TrafficMirror mirror)
+            throws ServletException, OperationsException, MBeanException {
 
-        if (context == null || (context.getServlets().isEmpty() && context.getFilters().isEmpty()))
+        if (context == null ||
+                (context.getServlets().isEmpty() && context.getFilters().isEmpty() && proxies.isEmpty()))
             return;
 
         applyIdentityManager(connector, context);
@@ -273,14 +331,38 @@ public class GenericServer implements AutoCloseable {
             context.setLoginConfig(loginConfig);
         }
 
+        // The proxied prefixes are handled on the IO threads, before the servlet deployment and its security.
+        // The configuration is rejected before anything is deployed.
+        if (context.getLoginConfig() != null && !proxies.isEmpty())
+            throw new ServletException(
+                    "A reverse proxy cannot be mounted on an authenticated connector: " + connector.port);
+
+        // The deadline of the request is set on the worker thread.
+        // The deadline header is only sent by the other nodes, which call the web service connector.
+        final boolean trustDeadlineHeader = connector == configuration.webServiceConnector;
+        context.addInnerHandlerChainWrapper(
+                handler -> new RequestDeadlineHandler(handler, connector.deadline, trustDeadlineHeader));
+        // So is the trace span opened by the LogMetricsHandler
+        context.addInnerHandlerChainWrapper(RequestTraceHandler::new);
+        // The queue time ends, and the handler time starts, with the dispatch on the worker thread
+        context.addInnerHandlerChainWrapper(handler -> RequestTimings.dispatchHandler(handler, resourceSampleRate));
+
         final DeploymentManager manager = servletContainer.addDeployment(context);
         manager.deploy();
 
         LOGGER.info(() -> "Start the connector " + configuration.listenAddress + ":" + connector.port);
 
         final HttpHandler httpHandlerFromStart = manager.start();
+        HttpHandler rootHandler = httpHandlerFromStart;
+        if (!proxies.isEmpty()) {
+            final PathHandler pathHandler = new PathHandler(httpHandlerFromStart);
+            proxies.forEach((prefix, proxy) -> pathHandler.addPrefixPath(prefix, proxy.getHandler()));
+            rootHandler = pathHandler;
+        }
+        if (mirror != null)
+            rootHandler = mirror.handler(rootHandler);
         final LogMetricsHandler logMetricsHandler =
-                new LogMetricsHandler(httpHandlerFromStart, configuration.listenAddress, connector.port,
+                new LogMetricsHandler(rootHandler, configuration.listenAddress, connector.port,
                         context.getJmxName(), accessLogger);
         deploymentManagers.add(manager);
 
@@ -291,7 +373,11 @@ public class GenericServer implements AutoCloseable {
                 .setServerOption(UndertowOptions.ENABLE_STATISTICS, true)
                 .setServerOption(UndertowOptions.ENABLE_HTTP2, true)
                 .setHandler(logMetricsHandler);
-        start(servletBuilder.build());
+        final Undertow undertow = servletBuilder.build();
+        start(undertow);
+        // The connector exposes the statistics of its listener
+        for (final Undertow.ListenerInfo listenerInfo : undertow.getListenerInfo())
+            logMetricsHandler.setConnectorStatistics(listenerInfo.getConnectorStatistics());
 
         // Register MBeans
         final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -329,19 +415,77 @@ public class GenericServer implements AutoCloseable {
             udpServer.checkStarted();
 
         // Launch the applications/connector
-        startHttpServer(configuration.webAppConnector, webAppContext, webAppAccessLogger);
-        startHttpServer(configuration.webServiceConnector, webServiceContext, webServiceAccessLogger);
+        startHttpServer(configuration.webAppConnector, webAppContext, webAppAccessLogger, webAppProxies, null);
+        startHttpServer(configuration.webServiceConnector, webServiceContext, webServiceAccessLogger,
+                webServiceProxies, webServiceMirror);
+
+        // Warm the connections and the hot paths before the server is declared ready
+        if (warmUp != null)
+            warmUp.run(configuration);
 
         if (shutdownHook)
             Runtime.getRuntime().addShutdownHook(new Thread(this::close));
 
         executeListener(startedListeners, null);
 
+        ready = true;
+
         LOGGER.info("The server started successfully.");
     }
 
+    /**
+     * @return null if the server is ready to accept the traffic, or the reason why it is not:
+     * starting, draining or the name of the failing readiness check
+     */
+    public String checkReadiness() {
+        if (draining)
+            return "draining";
+        if (!ready)
+            return "starting";
+        for (final Map.Entry<String, BooleanSupplier> check : readinessChecks.entrySet())
+            if (!check.getValue().getAsBoolean())
+                return check.getKey();
+        return null;
+    }
+
+    /**
+     * @return true once the server is started and warmed up, until it drains or stops,
+     * and while the readiness checks pass
+     */
+    public boolean isReady() {
+        return checkReadiness() == null;
+    }
+
+    /**
+     * Stop declaring the server as ready, so the load balancers stop sending new traffic,
+     * while the requests in flight and the late ones are still served until the server is closed.
+     */
+    public void drain() {
+        if (!draining)
+            LOGGER.info("The server is draining...");
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return the sampler of the expensive status fields
+     */
+    public StatusSampler getStatusSampler() {
+        return statusSampler;
+    }
+
     public Collection<ConnectorStatisticsMXBean> getConnectorsStatistics() {
-        return connectorsStatistics;
+        return Collections.unmodifiableCollection(connectorsStatistics);
+    }
+
+    /**
+     * @return the executor shared by the services of this server
+     */
+    public ExecutorService getExecutorService() {
+        return executorService;
     }
 
     @FunctionalInterface
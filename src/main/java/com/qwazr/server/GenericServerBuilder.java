@@ -15,6 +15,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.BooleanSupplier;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,6 +36,17 @@ public class GenericServerBuilder {
     AccessLogger webAppAccessLogger;
     AccessLogger webServiceAccessLogger;
 
+    Map<String, ReverseProxy> webAppProxies;
+    Map<String, ReverseProxy> webServiceProxies;
+
+    TrafficMirror webServiceMirror;
+
+    WarmUp warmUp;
+
+    Map<String, BooleanSupplier> readinessChecks;
+
+    double resourceSampleRate;
+
     GenericServer.IdentityManagerProvider identityManagerProvider;
     HostnameAuthenticationMechanism.PrincipalResolver hostnamePrincipalResolver;
 
@@ -167,6 +179,98 @@ public class GenericServerBuilder {
                 LogParam.DEFAULT_PARAMS.toArray(new LogParam[0]));
     }
 
+    private static Map<String, ReverseProxy> proxy(Map<String, ReverseProxy> proxies, final String prefix,
+                                                   final ReverseProxy proxy) {
+        Objects.requireNonNull(prefix, "The prefix is null");
+        Objects.requireNonNull(proxy, "The ReverseProxy object is null");
+        if (proxies == null)
+            proxies = new LinkedHashMap<>();
+        proxies.put(prefix.startsWith("/") ? prefix : '/' + prefix, proxy);
+        return proxies;
+    }
+
+    /**
+     * Forward the requests received on the web application connector under the given path prefix.
+     * The proxy is closed with the server.
+     * The connector must not be authenticated: the proxied requests do not go through the servlet security.
+     *
+     * @param prefix the path prefix (ie: /search), replaced by the path of the backend
+     * @param proxy  the reverse proxy
+     * @return the current builder
+     */
+    public GenericServerBuilder webAppProxy(final String prefix, final ReverseProxy proxy) {
+        webAppProxies = proxy(webAppProxies, prefix, proxy);
+        return this;
+    }
+
+    /**
+     * Forward the requests received on the web service connector under the given path prefix.
+     * The proxy is closed with the server.
+     * The connector must not be authenticated: the proxied requests do not go through the servlet security.
+     *
+     * @param prefix the path prefix (ie: /search), replaced by the path of the backend
+     * @param proxy  the reverse proxy
+     * @return the current builder
+     */
+    public GenericServerBuilder webServiceProxy(final String prefix, final ReverseProxy proxy) {
+        webServiceProxies = proxy(webServiceProxies, prefix, proxy);
+        return this;
+    }
+
+    /**
+     * Duplicate a sample of the requests received by the web service connector to a shadow service.
+     * The mirror is closed with the server.
+     *
+     * @param mirror the traffic mirror
+     * @return the current builder
+     */
+    public GenericServerBuilder webServiceMirror(final TrafficMirror mirror) {
+        webServiceMirror = mirror;
+        return this;
+    }
+
+    /**
+     * Set the warm-up phase, executed once the connectors are started and before the server is ready
+     *
+     * @param warmUp the warm-up definition
+     * @return the current builder
+     */
+    public GenericServerBuilder warmUp(final WarmUp warmUp) {
+        this.warmUp = warmUp;
+        return this;
+    }
+
+    /**
+     * Add a condition to the readiness of the server (ie: the state of an admission limiter).
+     * The check is called by each readiness probe, it should return immediately.
+     *
+     * @param name  the name of the check, given as the reason when the server is not ready
+     * @param check returns true when the server can accept the traffic
+     * @return the current builder
+     */
+    public GenericServerBuilder readinessCheck(final String name, final BooleanSupplier check) {
+        Objects.requireNonNull(name, "The name is null");
+        Objects.requireNonNull(check, "The check is null");
+        if (readinessChecks == null)
+            readinessChecks = new LinkedHashMap<>();
+        readinessChecks.put(name, check);
+        return this;
+    }
+
+    /**
+     * Measure the CPU time and the bytes allocated by a sample of the requests. The measures are available
+     * in the access logs (see LogParam) and aggregated per connector and per JAX-RS endpoint (see LogMetricsHandler).
+     *
+     * @param sampleRate the ratio of measured requests, from 0 (disabled, the default) to 1
+     * @return the current builder
+     */
+    public GenericServerBuilder resourceSampling(final double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1)
+            throw new IllegalArgumentException("The sample rate should be between 0 and 1: " + sampleRate);
+        this.resourceSampleRate = sampleRate;
+        return this;
+    }
+
     public GenericServerBuilder defaultMultipartConfig(String location, long maxFileSize, long maxRequestSize,
                                                        int fileSizeThreshold) {
         webAppContext.setDefaultMultipartConfig(location, maxFileSize, maxRequestSize, fileSizeThreshold);
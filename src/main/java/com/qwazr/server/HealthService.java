@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Constant-time probes for the orchestrators, cheaper than the {@link WelcomeService}.
+ * <ul>
+ * <li>/health/live answers 200 as long as the server answers</li>
+ * <li>/health/ready answers 200 when the server accepts the traffic (see {@link GenericServer#checkReadiness()}),
+ * otherwise 503 with the reason</li>
+ * </ul>
+ */
+@Path("/health")
+public class HealthService extends AbstractServiceImpl {
+
+    public final static String PATH = "/health";
+
+    private final static String OK = "OK";
+
+    @GET
+    @Path("/live")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response live() {
+        return Response.ok(OK).header("Cache-Control", "no-store").build();
+    }
+
+    @GET
+    @Path("/ready")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ready() {
+        final GenericServer server = getContextAttribute(GenericServer.class);
+        final String reason = server == null ? "starting" : server.checkReadiness();
+        return Response.status(reason == null ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+                .entity(reason == null ? OK : reason)
+                .header("Cache-Control", "no-store")
+                .build();
+    }
+}
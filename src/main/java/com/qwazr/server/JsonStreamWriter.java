@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.qwazr.utils.ObjectMappers;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes a Stream or an Iterator incrementally, either as a JSON array or as NDJSON (one JSON document per line).
+ * The elements are serialized one by one: the whole collection is never held in memory.
+ * A Stream is closed once written.
+ * The elements are serialized by the ObjectMapper of the application (see JacksonConfig), if any.
+ *
+ * @param <T> Stream or Iterator
+ */
+@Produces({ MediaType.APPLICATION_JSON, ServiceInterface.APPLICATION_NDJSON })
+public abstract class JsonStreamWriter<T> implements MessageBodyWriter<T> {
+
+    /**
+     * The output is flushed every FLUSH_INTERVAL elements
+     */
+    private final static int FLUSH_INTERVAL = 100;
+
+    private final static MediaType NDJSON_TYPE = MediaType.valueOf(ServiceInterface.APPLICATION_NDJSON);
+
+    private final Class<?> streamClass;
+
+    @Context
+    private Providers providers;
+
+    protected JsonStreamWriter(final Class<?> streamClass) {
+        this.streamClass = streamClass;
+    }
+
+    @Override
+    public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+                               final MediaType mediaType) {
+        return streamClass.isAssignableFrom(type) &&
+                (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE) || mediaType.isCompatible(NDJSON_TYPE));
+    }
+
+    protected abstract Iterator<?> iterator(T entity);
+
+    @Override
+    public void writeTo(final T entity, final Class<?> type, final Type genericType, final Annotation[] annotations,
+                        final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders,
+                        final OutputStream entityStream) throws IOException {
+        final Iterator<?> iterator = iterator(entity);
+        final ObjectMapper mapper = getMapper(type);
+        if (mediaType.isCompatible(NDJSON_TYPE))
+            writeNdJson(mapper, iterator, entityStream);
+        else
+            writeJsonArray(mapper, iterator, entityStream);
+    }
+
+    private ObjectMapper getMapper(final Class<?> type) {
+        final ContextResolver<ObjectMapper> resolver = providers == null ?
+                null :
+                providers.getContextResolver(ObjectMapper.class, MediaType.APPLICATION_JSON_TYPE);
+        final ObjectMapper mapper = resolver == null ? null : resolver.getContext(type);
+        return mapper == null ? ObjectMappers.JSON : mapper;
+    }
+
+    private static void writeJsonArray(final ObjectMapper mapper, final Iterator<?> iterator,
+                                       final OutputStream output) throws IOException {
+        try (final JsonGenerator generator = mapper.getFactory()
+                .createGenerator(output, JsonEncoding.UTF8)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+            generator.writeStartArray();
+            int count = 0;
+            while (iterator.hasNext()) {
+                generator.writeObject(iterator.next());
+                if (++count % FLUSH_INTERVAL == 0)
+                    generator.flush();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static void writeNdJson(final ObjectMapper mapper, final Iterator<?> iterator,
+                                    final OutputStream output) throws IOException {
+        final ObjectWriter writer = mapper.writer();
+        int count = 0;
+        while (iterator.hasNext()) {
+            output.write(writer.writeValueAsBytes(iterator.next()));
+            output.write('\n');
+            if (++count % FLUSH_INTERVAL == 0)
+                output.flush();
+        }
+    }
+
+    public static class OfStream extends JsonStreamWriter<Stream<?>> {
+
+        public OfStream() {
+            super(Stream.class);
+        }
+
+        @Override
+        protected Iterator<?> iterator(final Stream<?> stream) {
+            return stream.iterator();
+        }
+
+        @Override
+        public void writeTo(final Stream<?> stream, final Class<?> type, final Type genericType,
+                            final Annotation[] annotations, final MediaType mediaType,
+                            final MultivaluedMap<String, Object> httpHeaders, final OutputStream entityStream)
+                throws IOException {
+            try (stream) {
+                super.writeTo(stream, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+            }
+        }
+    }
+
+    public static class OfIterator extends JsonStreamWriter<Iterator<?>> {
+
+        public OfIterator() {
+            super(Iterator.class);
+        }
+
+        @Override
+        protected Iterator<?> iterator(final Iterator<?> iterator) {
+            return iterator;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free log-linear histogram of durations expressed in microseconds.
+ * <p>
+ * Each power of two is split in 8 linear buckets: the relative error is lower than 12.5%.
+ * Values from 0 to about 12 days are supported, larger values are clamped.
+ */
+public final class LatencyHistogram {
+
+    private final static int SUB_BITS = 3;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static long MAX_VALUE = (1L << 40) - 1;
+    private final static int BUCKETS = bucket(MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        final int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        final int sub = bucket % SUB_COUNT;
+        final int shift = exponent - SUB_BITS;
+        return ((long) (SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * @param micros the duration to record, in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        else if (micros > MAX_VALUE)
+            micros = MAX_VALUE;
+        buckets.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Record the time elapsed since the given start time
+     *
+     * @param startNanos a start time given by System.nanoTime()
+     * @return the recorded duration in microseconds
+     */
+    public long recordSince(final long startNanos) {
+        final long micros = (System.nanoTime() - startNanos) / 1000;
+        record(micros);
+        return micros;
+    }
+
+    /**
+     * Add the values recorded by another histogram to this histogram
+     *
+     * @param other the histogram to add
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long value = other.buckets.get(i);
+            if (value != 0)
+                buckets.addAndGet(i, value);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Remove the values of a previous copy of this histogram (see {@link #add(LatencyHistogram)}).
+     * The maximum becomes the upper bound of the highest remaining bucket.
+     *
+     * @param previous the previous copy of this histogram
+     */
+    public void subtract(final LatencyHistogram previous) {
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long value = previous.buckets.get(i);
+            final long remaining = value == 0 ? buckets.get(i) : buckets.addAndGet(i, -value);
+            if (remaining > 0)
+                highest = i;
+        }
+        count.add(-previous.count.sum());
+        sum.add(-previous.sum.sum());
+        max.set(highest == -1 ? 0 : Math.min(upperBound(highest), max.get()));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    /**
+     * @param quantile the requested quantile (ie: 0.95)
+     * @return the upper bound of the bucket containing the quantile (microseconds), or 0 if nothing was recorded
+     */
+    public long getPercentile(final double quantile) {
+        final long total = count.sum();
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(total * quantile));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
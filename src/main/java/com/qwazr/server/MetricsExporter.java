@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.logs.LogMetricsHandler;
+import com.qwazr.server.logs.ResourceUsage;
+import io.undertow.Undertow;
+import io.undertow.server.ConnectorStatistics;
+import io.undertow.server.session.SessionManager;
+import io.undertow.server.session.SessionManagerStatistics;
+import io.undertow.servlet.api.Deployment;
+import io.undertow.servlet.api.DeploymentManager;
+import org.xnio.XnioWorker;
+import org.xnio.management.XnioWorkerMXBean;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Renders the metrics of a server in the Prometheus text format (version 0.0.4) or in the OpenMetrics text format:
+ * the connectors, the Undertow listeners and workers, the executor, the sessions and the JVM.
+ * <p>
+ * The samples are read from the live statistics and written directly to the output, without building any
+ * intermediate model, so a frequent scrape stays cheap.
+ */
+public final class MetricsExporter {
+
+    public final static String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public final static String OPENMETRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final static String GAUGE = "gauge";
+    private final static String COUNTER = "counter";
+    private final static String SUMMARY = "summary";
+
+    private final static double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    private final static String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99" };
+
+    private final Writer writer;
+    private final boolean openMetrics;
+
+    private MetricsExporter(final Writer writer, final boolean openMetrics) {
+        this.writer = writer;
+        this.openMetrics = openMetrics;
+    }
+
+    /**
+     * @param accept the Accept header of the scrape request
+     * @return true if the OpenMetrics format is requested
+     */
+    public static boolean isOpenMetrics(final String accept) {
+        return accept != null && accept.contains("application/openmetrics-text");
+    }
+
+    /**
+     * Write the metrics of the server
+     *
+     * @param server      the server, or null to write only the JVM metrics
+     * @param writer      the output, which should be buffered
+     * @param openMetrics true for the OpenMetrics format, false for the Prometheus text format
+     * @throws IOException if the output cannot be written
+     */
+    public static void write(final GenericServer server, final Writer writer, final boolean openMetrics)
+            throws IOException {
+        final MetricsExporter exporter = new MetricsExporter(writer, openMetrics);
+        if (server != null) {
+            exporter.writeConnectors(server);
+            exporter.writeResourceUsage(server);
+            exporter.writeListeners(server);
+            exporter.writeWorkers(server);
+            exporter.writeExecutor(server.getExecutorService());
+            exporter.writeSessions(server);
+        }
+        exporter.writeJvm();
+        if (openMetrics)
+            writer.write("# EOF\n");
+        writer.flush();
+    }
+
+    private void writeConnectors(final GenericServer server) throws IOException {
+        family("qwazr_connector_active_requests", GAUGE, "Requests being handled by the connector");
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            sample("qwazr_connector_active_requests", "connector", connector.getName(), "port",
+                    Integer.toString(connector.getPort()), connector.getActiveCount());
+        family("qwazr_connector_max_active_requests", GAUGE, "Maximum of concurrent requests since the last reset");
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            sample("qwazr_connector_max_active_requests", "connector", connector.getName(), "port",
+                    Integer.toString(connector.getPort()), connector.getMaxActiveCount());
+        family("qwazr_connector_http2_streams", COUNTER, "HTTP/2 streams processed by the connector");
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            sample("qwazr_connector_http2_streams_total", "connector", connector.getName(), "port",
+                    Integer.toString(connector.getPort()), connector.getHttp2StreamCount());
+        family("qwazr_connector_active_http2_streams", GAUGE, "HTTP/2 streams being processed by the connector");
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            sample("qwazr_connector_active_http2_streams", "connector", connector.getName(), "port",
+                    Integer.toString(connector.getPort()), connector.getActiveHttp2Streams());
+        connectorSummary(server, "qwazr_connector_queue_seconds",
+                "Time between the start of a request and its dispatch on a worker thread",
+                LogMetricsHandler::getQueueTimes);
+        connectorSummary(server, "qwazr_connector_handler_seconds", "Time spent by the handler on a worker thread",
+                LogMetricsHandler::getHandlerTimes);
+        connectorSummary(server, "qwazr_connector_ttfb_seconds",
+                "Time between the start of a request and the commit of its response",
+                LogMetricsHandler::getTimesToFirstByte);
+    }
+
+    private void writeResourceUsage(final GenericServer server) throws IOException {
+        resourceFamily(server, "qwazr_endpoint_sampled_requests", "Requests whose resources are measured",
+                ResourceUsage::getCount);
+        resourceFamily(server, "qwazr_endpoint_cpu_seconds", "CPU time of the measured requests",
+                usage -> usage.getCpuTimeMicros() / 1e6);
+        resourceFamily(server, "qwazr_endpoint_allocated_bytes", "Bytes allocated by the measured requests",
+                ResourceUsage::getAllocatedBytes);
+    }
+
+    private void resourceFamily(final GenericServer server, final String name, final String help,
+                                final ToDoubleFunction<ResourceUsage> reader) throws IOException {
+        family(name, COUNTER, help);
+        final String sampleName = name + "_total";
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics()) {
+            if (!(connector instanceof LogMetricsHandler))
+                continue;
+            final Map<String, ResourceUsage> endpoints = ((LogMetricsHandler) connector).getEndpointResourceUsage();
+            for (final Map.Entry<String, ResourceUsage> entry : endpoints.entrySet())
+                sample(sampleName, "connector", connector.getName(), "endpoint", entry.getKey(),
+                        reader.applyAsDouble(entry.getValue()));
+        }
+    }
+
+    private void connectorSummary(final GenericServer server, final String name, final String help,
+                                  final Function<LogMetricsHandler, LatencyHistogram> histogramReader)
+            throws IOException {
+        family(name, SUMMARY, help);
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics()) {
+            if (!(connector instanceof LogMetricsHandler))
+                continue;
+            final LatencyHistogram histogram = histogramReader.apply((LogMetricsHandler) connector);
+            final String port = Integer.toString(connector.getPort());
+            for (int i = 0; i < QUANTILES.length; i++)
+                sample(name, "connector", connector.getName(), "port", port, "quantile", QUANTILE_LABELS[i],
+                        histogram.getPercentile(QUANTILES[i]) / 1e6);
+            sample(name + "_sum", "connector", connector.getName(), "port", port, histogram.getSum() / 1e6);
+            sample(name + "_count", "connector", connector.getName(), "port", port, histogram.getCount());
+        }
+    }
+
+    private static String port(final SocketAddress address) {
+        return address instanceof InetSocketAddress ?
+                Integer.toString(((InetSocketAddress) address).getPort()) :
+                String.valueOf(address);
+    }
+
+    private void writeListeners(final GenericServer server) throws IOException {
+        listenerFamily(server, "undertow_requests", COUNTER, "Requests processed by the listener",
+                ConnectorStatistics::getRequestCount);
+        listenerFamily(server, "undertow_request_errors", COUNTER, "Requests answered with a 5xx status or failed",
+                ConnectorStatistics::getErrorCount);
+        listenerFamily(server, "undertow_sent_bytes", COUNTER, "Bytes sent by the listener",
+                ConnectorStatistics::getBytesSent);
+        listenerFamily(server, "undertow_received_bytes", COUNTER, "Bytes received by the listener",
+                ConnectorStatistics::getBytesReceived);
+        listenerFamily(server, "undertow_processing_seconds", COUNTER, "Time spent processing the requests",
+                statistics -> statistics.getProcessingTime() / 1e9);
+        listenerFamily(server, "undertow_max_processing_seconds", GAUGE, "Longest request processing time",
+                statistics -> statistics.getMaxProcessingTime() / 1e9);
+        listenerFamily(server, "undertow_active_connections", GAUGE, "Open connections of the listener",
+                ConnectorStatistics::getActiveConnections);
+    }
+
+    private void listenerFamily(final GenericServer server, final String name, final String type,
+                                final String help, final ToDoubleFunction<ConnectorStatistics> reader)
+            throws IOException {
+        family(name, type, help);
+        final String sampleName = COUNTER.equals(type) ? name + "_total" : name;
+        for (final Undertow undertow : server.getUndertows()) {
+            for (final Undertow.ListenerInfo listener : undertow.getListenerInfo()) {
+                final ConnectorStatistics statistics = listener.getConnectorStatistics();
+                if (statistics != null)
+                    sample(sampleName, "port", port(listener.getAddress()), reader.applyAsDouble(statistics));
+            }
+        }
+    }
+
+    private void writeWorkers(final GenericServer server) throws IOException {
+        workerFamily(server, "qwazr_worker_busy_threads", "Busy threads of the worker pool",
+                XnioWorkerMXBean::getBusyWorkerThreadCount);
+        workerFamily(server, "qwazr_worker_max_threads", "Maximum threads of the worker pool",
+                XnioWorkerMXBean::getMaxWorkerPoolSize);
+        workerFamily(server, "qwazr_worker_queue_size", "Tasks waiting for a thread of the worker pool",
+                XnioWorkerMXBean::getWorkerQueueSize);
+    }
+
+    private void workerFamily(final GenericServer server, final String name, final String help,
+                              final ToDoubleFunction<XnioWorkerMXBean> reader) throws IOException {
+        family(name, GAUGE, help);
+        for (final Undertow undertow : server.getUndertows()) {
+            final XnioWorker worker = undertow.getWorker();
+            if (worker != null)
+                sample(name, "worker", worker.getName(), reader.applyAsDouble(worker.getMXBean()));
+        }
+    }
+
+    private void writeExecutor(final ExecutorService executorService) throws IOException {
+        if (!(executorService instanceof ThreadPoolExecutor))
+            return;
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) executorService;
+        family("qwazr_executor_active_threads", GAUGE, "Threads executing a task");
+        sample("qwazr_executor_active_threads", executor.getActiveCount());
+        family("qwazr_executor_pool_size", GAUGE, "Threads of the executor");
+        sample("qwazr_executor_pool_size", executor.getPoolSize());
+        family("qwazr_executor_queue_size", GAUGE, "Tasks waiting in the queue of the executor");
+        sample("qwazr_executor_queue_size", executor.getQueue().size());
+        family("qwazr_executor_completed_tasks", COUNTER, "Tasks completed by the executor");
+        sample("qwazr_executor_completed_tasks_total", executor.getCompletedTaskCount());
+    }
+
+    private void writeSessions(final GenericServer server) throws IOException {
+        family("qwazr_sessions_active", GAUGE, "Active HTTP sessions");
+        for (final DeploymentManager manager : server.getDeploymentManagers()) {
+            final Deployment deployment = manager.getDeployment();
+            final SessionManager sessionManager = deployment == null ? null : deployment.getSessionManager();
+            if (sessionManager == null)
+                continue;
+            final SessionManagerStatistics statistics = sessionManager.getStatistics();
+            sample("qwazr_sessions_active", "deployment", deployment.getDeploymentInfo().getDeploymentName(),
+                    statistics != null ?
+                            statistics.getActiveSessionCount() :
+                            sessionManager.getActiveSessions().size());
+        }
+    }
+
+    private void writeJvm() throws IOException {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        family("jvm_memory_used_bytes", GAUGE, "Used memory");
+        sample("jvm_memory_used_bytes", "area", "heap", heap.getUsed());
+        sample("jvm_memory_used_bytes", "area", "nonheap", nonHeap.getUsed());
+        family("jvm_memory_committed_bytes", GAUGE, "Committed memory");
+        sample("jvm_memory_committed_bytes", "area", "heap", heap.getCommitted());
+        sample("jvm_memory_committed_bytes", "area", "nonheap", nonHeap.getCommitted());
+        family("jvm_memory_max_bytes", GAUGE, "Maximum memory, -1 if undefined");
+        sample("jvm_memory_max_bytes", "area", "heap", heap.getMax());
+        sample("jvm_memory_max_bytes", "area", "nonheap", nonHeap.getMax());
+
+        family("jvm_memory_pool_used_bytes", GAUGE, "Used memory of the pool");
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getUsage();
+            if (usage != null)
+                sample("jvm_memory_pool_used_bytes", "pool", pool.getName(), usage.getUsed());
+        }
+
+        family("jvm_gc_collections", COUNTER, "Collections of the garbage collector");
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sample("jvm_gc_collections_total", "gc", gc.getName(), gc.getCollectionCount());
+        family("jvm_gc_collection_seconds", COUNTER, "Time spent in the garbage collector");
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sample("jvm_gc_collection_seconds_total", "gc", gc.getName(), gc.getCollectionTime() / 1e3);
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        family("jvm_threads_current", GAUGE, "Live threads");
+        sample("jvm_threads_current", threads.getThreadCount());
+        family("jvm_threads_daemon", GAUGE, "Live daemon threads");
+        sample("jvm_threads_daemon", threads.getDaemonThreadCount());
+        family("jvm_threads_peak", GAUGE, "Peak of live threads");
+        sample("jvm_threads_peak", threads.getPeakThreadCount());
+
+        family("process_uptime_seconds", GAUGE, "Uptime of the JVM");
+        sample("process_uptime_seconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    private void family(final String name, final String type, final String help) throws IOException {
+        // In the OpenMetrics format, the name of a counter family has no _total suffix
+        final boolean suffix = !openMetrics && COUNTER.equals(type);
+        writer.write("# HELP ");
+        writer.write(name);
+        if (suffix)
+            writer.write("_total");
+        writer.write(' ');
+        writer.write(help);
+        writer.write("\n# TYPE ");
+        writer.write(name);
+        if (suffix)
+            writer.write("_total");
+        writer.write(' ');
+        writer.write(type);
+        writer.write('\n');
+    }
+
+    private void sample(final String name, final double value) throws IOException {
+        writer.write(name);
+        value(value);
+    }
+
+    private void sample(final String name, final String label, final String labelValue, final double value)
+            throws IOException {
+        writer.write(name);
+        writer.write('{');
+        label(label, labelValue);
+        writer.write('}');
+        value(value);
+    }
+
+    private void sample(final String name, final String label1, final String labelValue1, final String label2,
+                        final String labelValue2, final double value) throws IOException {
+        writer.write(name);
+        writer.write('{');
+        label(label1, labelValue1);
+        writer.write(',');
+        label(label2, labelValue2);
+        writer.write('}');
+        value(value);
+    }
+
+    private void sample(final String name, final String label1, final String labelValue1, final String label2,
+                        final String labelValue2, final String label3, final String labelValue3,
+                        final double value) throws IOException {
+        writer.write(name);
+        writer.write('{');
+        label(label1, labelValue1);
+        writer.write(',');
+        label(label2, labelValue2);
+        writer.write(',');
+        label(label3, labelValue3);
+        writer.write('}');
+        value(value);
+    }
+
+    private void label(final String label, final String value) throws IOException {
+        writer.write(label);
+        writer.write("=\"");
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    default:
+                        writer.write(c);
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    private void value(final double value) throws IOException {
+        writer.write(' ');
+        final long longValue = (long) value;
+        if (longValue == value)
+            writer.write(Long.toString(longValue));
+        else if (Double.isNaN(value))
+            writer.write("NaN");
+        else
+            writer.write(Double.toString(value));
+        writer.write('\n');
+    }
+}
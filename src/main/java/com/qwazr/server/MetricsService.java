@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The scrape endpoint of the metrics (see {@link MetricsExporter}).
+ * The OpenMetrics format is returned when the scraper accepts it, otherwise the Prometheus text format.
+ */
+@Path("/metrics")
+public class MetricsService extends AbstractServiceImpl {
+
+    public final static String PATH = "/metrics";
+
+    @GET
+    public Response metrics(@HeaderParam(HttpHeaders.ACCEPT) final String accept) {
+        final GenericServer server = getContextAttribute(GenericServer.class);
+        final boolean openMetrics = MetricsExporter.isOpenMetrics(accept);
+        final StreamingOutput output = stream -> {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            MetricsExporter.write(server, writer, openMetrics);
+        };
+        return Response.ok(output)
+                .type(openMetrics ? MetricsExporter.OPENMETRICS_CONTENT_TYPE : MetricsExporter.PROMETHEUS_CONTENT_TYPE)
+                .header("Cache-Control", "no-store")
+                .build();
+    }
+}
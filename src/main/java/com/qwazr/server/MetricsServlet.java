@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * The scrape endpoint of the metrics (see {@link MetricsExporter}) for a web application.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final boolean openMetrics = MetricsExporter.isOpenMetrics(request.getHeader("Accept"));
+        response.setContentType(
+                openMetrics ? MetricsExporter.OPENMETRICS_CONTENT_TYPE : MetricsExporter.PROMETHEUS_CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        MetricsExporter.write(GenericServer.getContextAttribute(getServletContext(), GenericServer.class),
+                response.getWriter(), openMetrics);
+    }
+}
@@ -27,14 +27,21 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 public class RemoteService {
 
     final public static String TIMEOUT_PARAMETER = "timeout";
 
+    final public static String GROUP_PARAMETER = "group";
+
+    final public static String ZONE_PARAMETER = "zone";
+
     /**
      * The protocol. Should be "http" or "https"
      */
@@ -70,6 +77,16 @@ public class RemoteService {
      */
     final public String password;
 
+    /**
+     * the (optional) groups of the remote server (see QWAZR_GROUPS)
+     */
+    final public Set<String> groups;
+
+    /**
+     * the (optional) zone of the remote server (see QWAZR_ZONE)
+     */
+    final public String zone;
+
     @JsonIgnore
     final public String serverAddress; // {scheme}://{host}:{port}
 
@@ -79,11 +96,17 @@ public class RemoteService {
     @JsonIgnore
     private volatile int hashCode;
 
+    protected RemoteService(final String scheme, final String host, Integer port, String path, Integer timeout,
+                            String username, String password) {
+        this(scheme, host, port, path, timeout, username, password, null, null);
+    }
+
     @JsonCreator
     protected RemoteService(@JsonProperty("scheme") final String scheme, @JsonProperty("host") final String host,
                             @JsonProperty("port") Integer port, @JsonProperty("path") String path,
                             @JsonProperty("timeout") Integer timeout, @JsonProperty("username") String username,
-                            @JsonProperty("password") String password) {
+                            @JsonProperty("password") String password, @JsonProperty("groups") Set<String> groups,
+                            @JsonProperty("zone") String zone) {
         this.scheme = scheme;
         this.host = host;
         this.port = port;
@@ -91,6 +114,10 @@ public class RemoteService {
         this.timeout = timeout;
         this.username = username;
         this.password = password;
+        this.groups = groups == null || groups.isEmpty() ?
+                Collections.emptySet() :
+                Collections.unmodifiableSet(new LinkedHashSet<>(groups));
+        this.zone = zone;
         this.serverAddress = getServerAddress();
         this.serviceAddress = getServiceAddress();
     }
@@ -106,7 +133,7 @@ public class RemoteService {
 
     protected RemoteService(final Builder builder) {
         this(builder.scheme, builder.host, builder.port, builder.getPathSegment(0), builder.timeout, builder.username,
-                builder.password);
+                builder.password, builder.groups, builder.zone);
     }
 
     @Override
@@ -159,6 +186,8 @@ public class RemoteService {
         private String username;
         private String password;
         private MultivaluedMap<String, String> queryParams;
+        private Set<String> groups;
+        private String zone;
 
         private Builder() {
             scheme = null;
@@ -271,6 +300,30 @@ public class RemoteService {
             return this;
         }
 
+        /**
+         * @param groups The (optional) groups of the remote server
+         * @return the current builder
+         */
+        public Builder setGroups(final String... groups) {
+            if (groups != null) {
+                if (this.groups == null)
+                    this.groups = new LinkedHashSet<>();
+                for (final String group : groups)
+                    if (!StringUtils.isBlank(group))
+                        this.groups.add(group.trim());
+            }
+            return this;
+        }
+
+        /**
+         * @param zone The (optional) zone of the remote server
+         * @return the current builder
+         */
+        public Builder setZone(final String zone) {
+            this.zone = zone;
+            return this;
+        }
+
         /**
          * Set the parameters by extracting the query parameters
          *
@@ -285,6 +338,13 @@ public class RemoteService {
                 final String s = queryParams.getFirst(TIMEOUT_PARAMETER);
                 if (s != null)
                     setTimeout(Integer.parseInt(s));
+                final List<String> groupParams = queryParams.get(GROUP_PARAMETER);
+                if (groupParams != null)
+                    for (final String groupParam : groupParams)
+                        setGroups(StringUtils.split(groupParam, ','));
+                final String zoneParam = queryParams.getFirst(ZONE_PARAMETER);
+                if (zoneParam != null)
+                    setZone(zoneParam);
                 return this;
             } catch (UnsupportedEncodingException e) {
                 throw new RuntimeException(e);
@@ -303,7 +363,7 @@ public class RemoteService {
     /**
      * Build a list of Builder filled with an array of URL.
      * The form of the URL should be:
-     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}
+     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}&group={group}&zone={zone}
      *
      * @param remoteServiceURLs an array of URL
      * @return a list of RemoteService
@@ -349,7 +409,7 @@ public class RemoteService {
     /**
      * Build an array of RemoteService filled with an array of URL.
      * The form of the URL should be:
-     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}
+     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}&group={group}&zone={zone}
      *
      * @param remoteServiceURLs an array of URL
      * @return an array of RemoteService
@@ -362,7 +422,7 @@ public class RemoteService {
     /**
      * Build an array of RemoteService filled with an array of URL.
      * The form of the URL should be:
-     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}
+     * {protocol}://{username:password@}{host}:{port}/{service_path}?timeout={timeout}&group={group}&zone={zone}
      *
      * @param remoteServiceURLs an collection of URL
      * @return an array of RemoteService
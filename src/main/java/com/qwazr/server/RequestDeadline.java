@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of the request being processed by the current thread.
+ * <p>
+ * The deadline is read from the {@link #HEADER} of the inbound request (the remaining time in milliseconds),
+ * or from the default deadline of the connector. The JsonClient calls made while the deadline is active
+ * are bounded by the remaining time, and forward it in the same header.
+ */
+public final class RequestDeadline {
+
+    /**
+     * The header carrying the remaining time (milliseconds).
+     * A relative value is used, as the clocks of the servers may differ.
+     */
+    public final static String HEADER = "X-Qwazr-Deadline";
+
+    private final static ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The longest supported timeout, which keeps the deadline far from the overflow of System.nanoTime()
+     */
+    private final static long MAX_TIMEOUT_NANOS = Long.MAX_VALUE / 4;
+
+    private final long deadlineNanos;
+
+    private RequestDeadline(final long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @param timeoutMs the remaining time in milliseconds
+     * @return a new deadline
+     */
+    public static RequestDeadline of(final long timeoutMs) {
+        final long timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs)), MAX_TIMEOUT_NANOS);
+        return new RequestDeadline(System.nanoTime() + timeoutNanos);
+    }
+
+    /**
+     * @param headerValue    the value of the inbound header, or null
+     * @param defaultTimeout the timeout (milliseconds) used when the header is missing, or null.
+     *                       The header cannot extend the deadline beyond this timeout.
+     * @return the deadline, or null if there is none
+     */
+    static RequestDeadline of(final String headerValue, final Integer defaultTimeout) {
+        if (headerValue != null && !headerValue.isEmpty()) {
+            try {
+                final long timeout = Long.parseLong(headerValue.trim());
+                return of(defaultTimeout == null ? timeout : Math.min(timeout, defaultTimeout));
+            } catch (NumberFormatException e) {
+                // Fall back to the default value
+            }
+        }
+        return defaultTimeout == null ? null : of(defaultTimeout);
+    }
+
+    /**
+     * @return the deadline of the current thread, or null
+     */
+    public static RequestDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @param timeout a timeout in milliseconds
+     * @return the given timeout, reduced to the remaining time of the current deadline if any
+     */
+    public static int timeout(final int timeout) {
+        final RequestDeadline deadline = CURRENT.get();
+        return deadline == null ? timeout : (int) Math.min(timeout, deadline.getRemainingMillis());
+    }
+
+    /**
+     * @return the remaining time in milliseconds, 0 if the deadline is expired
+     */
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Make this deadline the deadline of the current thread, until the scope is closed
+     *
+     * @return the scope restoring the previous deadline when closed
+     */
+    public Scope activate() {
+        final RequestDeadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        };
+    }
+
+    /**
+     * @param runnable a task
+     * @return a task running with the deadline of the current thread, or the task itself if there is none
+     */
+    public static Runnable wrap(final Runnable runnable) {
+        final RequestDeadline deadline = CURRENT.get();
+        if (deadline == null)
+            return runnable;
+        return () -> {
+            try (final Scope ignored = deadline.activate()) {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * @param callable a task
+     * @param <V>      the type of the result
+     * @return a task running with the deadline of the current thread, or the task itself if there is none
+     */
+    public static <V> Callable<V> wrap(final Callable<V> callable) {
+        final RequestDeadline deadline = CURRENT.get();
+        if (deadline == null)
+            return callable;
+        return () -> {
+            try (final Scope ignored = deadline.activate()) {
+                return callable.call();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(getRemainingMillis());
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Sets the deadline of the request on the worker thread processing the request.
+ * An already expired request is answered by a 504 without being processed.
+ * <p>
+ * The deadline header is only honored when it comes from a trusted caller (the other nodes calling the web service
+ * connector), and it cannot extend the default deadline of the connector.
+ */
+class RequestDeadlineHandler implements HttpHandler {
+
+    private final static HttpString HEADER = HttpString.tryFromString(RequestDeadline.HEADER);
+
+    private final HttpHandler next;
+    private final Integer defaultTimeout;
+    private final boolean trustHeader;
+
+    RequestDeadlineHandler(final HttpHandler next, final Integer defaultTimeout, final boolean trustHeader) {
+        this.next = next;
+        this.defaultTimeout = defaultTimeout;
+        this.trustHeader = trustHeader;
+    }
+
+    @Override
+    public void handleRequest(final HttpServerExchange exchange) throws Exception {
+        final RequestDeadline deadline =
+                RequestDeadline.of(trustHeader ? exchange.getRequestHeaders().getFirst(HEADER) : null,
+                        defaultTimeout);
+        if (deadline == null) {
+            next.handleRequest(exchange);
+            return;
+        }
+        if (deadline.isExpired()) {
+            exchange.setStatusCode(StatusCodes.GATEWAY_TIME_OUT);
+            exchange.endExchange();
+            return;
+        }
+        try (final RequestDeadline.Scope ignored = deadline.activate()) {
+            next.handleRequest(exchange);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.logs.RequestTimings;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import java.lang.reflect.Method;
+
+/**
+ * Names the JAX-RS endpoint (resource class and method) of the requests whose resources are sampled,
+ * so the CPU time and the allocated bytes are aggregated per endpoint (see RequestTimings).
+ */
+public class RequestEndpointFilter implements ContainerRequestFilter {
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(final ContainerRequestContext requestContext) {
+        final ServletRequestContext servletRequestContext = ServletRequestContext.current();
+        if (servletRequestContext == null)
+            return;
+        final RequestTimings timings = servletRequestContext.getExchange().getAttachment(RequestTimings.KEY);
+        if (timings == null || !timings.isResourceSampled())
+            return;
+        final Class<?> resourceClass = resourceInfo.getResourceClass();
+        final Method resourceMethod = resourceInfo.getResourceMethod();
+        if (resourceClass != null && resourceMethod != null)
+            timings.setEndpoint(resourceClass.getSimpleName() + '.' + resourceMethod.getName());
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The trace span of the request being processed by the current thread.
+ * <p>
+ * A trace is identified by the {@link #TRACE_HEADER} created by the first node, and shared by every node
+ * the request goes through. Each node (and each outbound JsonClient call) opens a span, whose parent is given by
+ * the {@link #SPAN_HEADER} sent by the caller. The completed spans are collected by the {@link TraceRecorder}.
+ */
+public final class RequestTrace {
+
+    public final static String TRACE_HEADER = "X-Qwazr-Trace-Id";
+
+    public final static String SPAN_HEADER = "X-Qwazr-Span-Id";
+
+    private final static int MAX_ID_LENGTH = 64;
+
+    private final static ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    public final String traceId;
+    public final String spanId;
+    public final String parentSpanId;
+    public final String name;
+
+    private final long startTimeMs;
+    private final long startNanos;
+
+    private RequestTrace(final String traceId, final String parentSpanId, final String name) {
+        this.traceId = traceId;
+        this.spanId = newId(1);
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.startTimeMs = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Open the span of an inbound request
+     *
+     * @param traceHeader the trace identifier given by the caller, or null to start a new trace
+     * @param spanHeader  the span identifier of the caller, or null
+     * @param name        the name of the span
+     * @return a new span
+     */
+    public static RequestTrace of(final String traceHeader, final String spanHeader, final String name) {
+        final String traceId = checkId(traceHeader);
+        return new RequestTrace(traceId == null ? newId(2) : traceId, traceId == null ? null : checkId(spanHeader),
+                name);
+    }
+
+    /**
+     * @param name the name of the span
+     * @return a new span child of this span
+     */
+    public RequestTrace child(final String name) {
+        return new RequestTrace(traceId, spanId, name);
+    }
+
+    /**
+     * @param id an identifier given by a caller
+     * @return the identifier, or null if it is empty, too long, or not made of letters, digits and dashes
+     */
+    private static String checkId(final String id) {
+        if (id == null)
+            return null;
+        final String trimmed = id.trim();
+        if (trimmed.isEmpty() || trimmed.length() > MAX_ID_LENGTH)
+            return null;
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '-')
+                return null;
+        }
+        return trimmed;
+    }
+
+    private static String newId(final int longs) {
+        final StringBuilder sb = new StringBuilder(longs * 16);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < longs; i++) {
+            final String hex = Long.toHexString(random.nextLong());
+            for (int j = hex.length(); j < 16; j++)
+                sb.append('0');
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the span of the current thread, or null
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    /**
+     * @return the time elapsed since the span was opened, in microseconds
+     */
+    public long getElapsedMicros() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * Close the span and record it in the default recorder
+     *
+     * @param status the resulting HTTP status, or 0 if the call failed without response
+     */
+    public void end(final int status) {
+        TraceRecorder.DEFAULT.record(this, getElapsedMicros(), status);
+    }
+
+    /**
+     * Make this span the span of the current thread, until the scope is closed
+     *
+     * @return the scope restoring the previous span when closed
+     */
+    public Scope activate() {
+        final RequestTrace previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        };
+    }
+
+    /**
+     * @param runnable a task
+     * @return a task running with the span of the current thread, or the task itself if there is none
+     */
+    public static Runnable wrap(final Runnable runnable) {
+        final RequestTrace trace = CURRENT.get();
+        if (trace == null)
+            return runnable;
+        return () -> {
+            try (final Scope ignored = trace.activate()) {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * @param callable a task
+     * @param <V>      the type of the result
+     * @return a task running with the span of the current thread, or the task itself if there is none
+     */
+    public static <V> Callable<V> wrap(final Callable<V> callable) {
+        final RequestTrace trace = CURRENT.get();
+        if (trace == null)
+            return callable;
+        return () -> {
+            try (final Scope ignored = trace.activate()) {
+                return callable.call();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return traceId + '/' + spanId;
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
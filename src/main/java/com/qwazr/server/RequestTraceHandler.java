@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.logs.LogMetricsHandler;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Sets the trace span opened by the LogMetricsHandler on the worker thread processing the request.
+ */
+class RequestTraceHandler implements HttpHandler {
+
+    private final HttpHandler next;
+
+    RequestTraceHandler(final HttpHandler next) {
+        this.next = next;
+    }
+
+    @Override
+    public void handleRequest(final HttpServerExchange exchange) throws Exception {
+        final RequestTrace trace = exchange.getAttachment(LogMetricsHandler.TRACE);
+        if (trace == null) {
+            next.handleRequest(exchange);
+            return;
+        }
+        try (final RequestTrace.Scope ignored = trace.activate()) {
+            next.handleRequest(exchange);
+        }
+    }
+}
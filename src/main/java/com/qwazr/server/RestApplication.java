@@ -34,8 +34,14 @@ public abstract class RestApplication extends Application {
 
     public static final List<Class<?>> JSON_CLASSES =
             List.of(JacksonConfig.class, JacksonJsonProvider.class, JacksonSmileProvider.class,
+                    JsonStreamWriter.OfStream.class, JsonStreamWriter.OfIterator.class,
                     JsonMappingExceptionMapper.class, WebApplicationExceptionMapper.class);
 
+    /**
+     * Opt-in: lets the JSON services exchange Smile with the clients which prefer it (see SmileFilter)
+     */
+    public static final List<Class<?>> SMILE_CLASSES = List.of(JacksonSmileProvider.class, SmileFilter.class);
+
     @Context
     private ServletContext context;
 
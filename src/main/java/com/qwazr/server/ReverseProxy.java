@@ -0,0 +1,414 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.logs.LogMetricsHandler;
+import com.qwazr.utils.LoggerUtils;
+import io.undertow.client.UndertowClient;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.Cookie;
+import io.undertow.server.handlers.ResponseCodeHandler;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
+import io.undertow.server.handlers.proxy.ProxyHandler;
+import io.undertow.util.HttpString;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking reverse proxy forwarding the requests to a set of RemoteService backends,
+ * built on the Undertow proxy client. It is mounted on a path prefix with
+ * {@link GenericServerBuilder#webServiceProxy(String, ReverseProxy)}: the prefix is replaced by the path
+ * of the backend.
+ * <p>
+ * The connections to each backend are pooled per IO thread. A request is sent to the healthy backend having the
+ * fewest requests in flight, or, with sticky sessions, to the backend owning the session cookie.
+ * The backends are checked periodically, in parallel and without blocking any thread,
+ * and removed from the rotation while they are failing.
+ */
+public class ReverseProxy implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ReverseProxy.class);
+
+    private final static ScheduledExecutorService HEALTH_CHECKER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "qwazr-proxy-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The non-blocking client of the health checks, shared by the proxies
+     */
+    private final static HttpClient HEALTH_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+
+    private final static HttpString TRACE_HEADER = HttpString.tryFromString(RequestTrace.TRACE_HEADER);
+    private final static HttpString SPAN_HEADER = HttpString.tryFromString(RequestTrace.SPAN_HEADER);
+
+    private final static ThreadLocal<HttpServerExchange> CURRENT_EXCHANGE = new ThreadLocal<>();
+
+    private final Map<URI, Backend> backends;
+    private final String stickyCookie;
+    private final String healthPath;
+    private final int healthTimeout;
+    private final long healthInterval;
+    private final Client proxyClient;
+    private final HttpHandler handler;
+    private volatile ScheduledFuture<?> healthCheck;
+    private volatile boolean closed;
+
+    private ReverseProxy(final Builder builder) {
+        if (builder.backends.isEmpty())
+            throw new IllegalArgumentException("The proxy has no backend");
+        this.stickyCookie = builder.stickyCookie;
+        this.healthPath = builder.healthPath;
+        this.healthTimeout = builder.healthTimeout;
+        this.healthInterval = builder.healthInterval;
+        this.backends = new LinkedHashMap<>();
+        this.proxyClient = new Client();
+        proxyClient.setConnectionsPerThread(builder.connectionsPerThread);
+        proxyClient.setMaxQueueSize(builder.maxQueueSize);
+        proxyClient.setTtl(builder.ttl);
+        proxyClient.setProblemServerRetry(builder.problemServerRetry);
+        for (final RemoteService remote : builder.backends) {
+            final URI uri = URI.create(remote.serviceAddress);
+            backends.put(uri, new Backend(remote, uri));
+            proxyClient.addHost(uri);
+        }
+        final HttpHandler proxyHandler = ProxyHandler.builder()
+                .setProxyClient(proxyClient)
+                .setMaxRequestTime(builder.maxRequestTime)
+                .setNext(ResponseCodeHandler.HANDLE_404)
+                .setReuseXForwarded(builder.reuseXForwarded)
+                .build();
+        this.handler = exchange -> {
+            // The backend receives the span of the proxy as parent span
+            final RequestTrace trace = exchange.getAttachment(LogMetricsHandler.TRACE);
+            if (trace != null) {
+                exchange.getRequestHeaders().put(TRACE_HEADER, trace.traceId);
+                exchange.getRequestHeaders().put(SPAN_HEADER, trace.spanId);
+            }
+            proxyHandler.handleRequest(exchange);
+        };
+        if (healthPath != null)
+            scheduleHealthCheck();
+    }
+
+    HttpHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return the state of each backend
+     */
+    public List<Backend> getBackends() {
+        return Collections.unmodifiableList(new ArrayList<>(backends.values()));
+    }
+
+    /**
+     * The next round starts once every check of the previous round is done: the rounds never overlap
+     */
+    private void scheduleHealthCheck() {
+        if (!closed)
+            healthCheck = HEALTH_CHECKER.schedule(this::checkHealth, healthInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth() {
+        final List<CompletableFuture<Void>> checks = new ArrayList<>(backends.size());
+        for (final Backend backend : backends.values())
+            checks.add(isHealthy(backend).thenAccept(healthy -> setHealthy(backend, healthy)));
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, error) -> scheduleHealthCheck());
+    }
+
+    private CompletableFuture<Boolean> isHealthy(final Backend backend) {
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(URI.create(backend.remote.serverAddress + healthPath))
+                    .timeout(Duration.ofMillis(healthTimeout))
+                    .GET()
+                    .build();
+            return HEALTH_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        if (error != null) {
+                            LOGGER.log(Level.FINE, error, () -> "Health check failed: " + backend.uri);
+                            return false;
+                        }
+                        return response.statusCode() >= 200 && response.statusCode() < 400;
+                    });
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.FINE, e, () -> "Health check failed: " + backend.uri);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private void setHealthy(final Backend backend, final boolean healthy) {
+        synchronized (backend) {
+            if (healthy == backend.healthy)
+                return;
+            backend.healthy = healthy;
+            if (healthy) {
+                LOGGER.info(() -> "Proxy backend back in rotation: " + backend.uri);
+                proxyClient.addHost(backend.uri);
+            } else {
+                LOGGER.warning(() -> "Proxy backend removed from rotation: " + backend.uri);
+                proxyClient.removeHost(backend.uri);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        final ScheduledFuture<?> check = healthCheck;
+        if (check != null)
+            check.cancel(false);
+        proxyClient.closeCurrentConnections();
+    }
+
+    /**
+     * Picks the backends: the exchange is given to the host selector through the current thread,
+     * and the requests in flight are counted per backend.
+     */
+    private final class Client extends LoadBalancingProxyClient {
+
+        private Client() {
+            super(UndertowClient.getInstance(), null, ReverseProxy.this::selectHost);
+        }
+
+        @Override
+        protected Host selectHost(final HttpServerExchange exchange) {
+            CURRENT_EXCHANGE.set(exchange);
+            final Host host;
+            try {
+                host = super.selectHost(exchange);
+            } finally {
+                CURRENT_EXCHANGE.remove();
+            }
+            if (host == null)
+                return null;
+            final Backend backend = backends.get(host.getUri());
+            if (backend != null) {
+                backend.inFlight.incrementAndGet();
+                backend.requests.increment();
+                exchange.addExchangeCompleteListener((ex, nextListener) -> {
+                    backend.inFlight.decrementAndGet();
+                    nextListener.proceed();
+                });
+            }
+            return host;
+        }
+    }
+
+    private int selectHost(final LoadBalancingProxyClient.Host[] hosts) {
+        if (hosts.length <= 1)
+            return 0;
+        final HttpServerExchange exchange = CURRENT_EXCHANGE.get();
+        if (stickyCookie != null && exchange != null) {
+            final Cookie cookie = exchange.getRequestCookies().get(stickyCookie);
+            if (cookie != null && cookie.getValue() != null)
+                return stickyHost(hosts, cookie.getValue());
+        }
+        // Least connections, starting at a random position to spread the ties
+        int best = -1;
+        int bestInFlight = Integer.MAX_VALUE;
+        final int start = (int) (Thread.currentThread().getId() + System.nanoTime()) & Integer.MAX_VALUE;
+        for (int i = 0; i < hosts.length; i++) {
+            final int pos = (start + i) % hosts.length;
+            final Backend backend = backends.get(hosts[pos].getUri());
+            final int inFlight = backend == null ? 0 : backend.inFlight.get();
+            if (inFlight < bestInFlight) {
+                best = pos;
+                bestInFlight = inFlight;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Rendezvous hashing: a session stays on the same backend while it is in rotation,
+     * and only the sessions of a removed backend move.
+     */
+    private static int stickyHost(final LoadBalancingProxyClient.Host[] hosts, final String session) {
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < hosts.length; i++) {
+            long h = (session + '#' + hosts[i].getUri()).hashCode() * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 31;
+            if (h > bestScore) {
+                best = i;
+                bestScore = h;
+            }
+        }
+        return best;
+    }
+
+    public static Builder of(final RemoteService... backends) {
+        return new Builder(backends);
+    }
+
+    /**
+     * The state of a backend
+     */
+    public static final class Backend {
+
+        public final RemoteService remote;
+        private final URI uri;
+        private final AtomicInteger inFlight;
+        private final LongAdder requests;
+        private volatile boolean healthy;
+
+        private Backend(final RemoteService remote, final URI uri) {
+            this.remote = remote;
+            this.uri = uri;
+            this.inFlight = new AtomicInteger();
+            this.requests = new LongAdder();
+            this.healthy = true;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+
+    public static class Builder {
+
+        private final List<RemoteService> backends;
+        private int connectionsPerThread = 10;
+        private int maxQueueSize = 0;
+        private int ttl = 60_000;
+        private int problemServerRetry = 30;
+        private int maxRequestTime = -1;
+        private String stickyCookie;
+        private String healthPath;
+        private long healthInterval = 5000;
+        private int healthTimeout = 2000;
+        private boolean reuseXForwarded;
+
+        private Builder(final RemoteService... backends) {
+            this.backends = new ArrayList<>();
+            if (backends != null)
+                for (final RemoteService backend : backends)
+                    this.backends.add(Objects.requireNonNull(backend, "The backend is null"));
+        }
+
+        /**
+         * @param connectionsPerThread the maximum number of connections to a backend, per IO thread (default: 10)
+         * @param maxQueueSize         the number of requests waiting for a connection (default: 0, none)
+         * @param ttlMs                the time (milliseconds) an idle connection is kept (default: 60 seconds)
+         * @return the current builder
+         */
+        public Builder pool(final int connectionsPerThread, final int maxQueueSize, final int ttlMs) {
+            this.connectionsPerThread = connectionsPerThread;
+            this.maxQueueSize = maxQueueSize;
+            this.ttl = ttlMs;
+            return this;
+        }
+
+        /**
+         * @param maxRequestTimeMs the maximum time (milliseconds) of a proxied request (default: -1, unlimited)
+         * @return the current builder
+         */
+        public Builder maxRequestTime(final int maxRequestTimeMs) {
+            this.maxRequestTime = maxRequestTimeMs;
+            return this;
+        }
+
+        /**
+         * @param cookieName the cookie identifying a session (ie: JSESSIONID).
+         *                   The requests carrying the same cookie are sent to the same backend.
+         * @return the current builder
+         */
+        public Builder stickySessions(final String cookieName) {
+            this.stickyCookie = cookieName;
+            return this;
+        }
+
+        /**
+         * Enable the active health checks. The check passes when the path answers a 2xx or 3xx status.
+         *
+         * @param path       the path checked on each backend (ie: /)
+         * @param intervalMs the interval (milliseconds) between two checks
+         * @param timeoutMs  the connect and read timeout (milliseconds) of a check
+         * @return the current builder
+         */
+        public Builder healthCheck(final String path, final long intervalMs, final int timeoutMs) {
+            this.healthPath = path.startsWith("/") ? path : '/' + path;
+            this.healthInterval = intervalMs;
+            this.healthTimeout = timeoutMs;
+            return this;
+        }
+
+        /**
+         * @param seconds the delay before a backend failing on connection is tried again (default: 30)
+         * @return the current builder
+         */
+        public Builder problemServerRetry(final int seconds) {
+            this.problemServerRetry = seconds;
+            return this;
+        }
+
+        /**
+         * @param reuseXForwarded true to append the client address to the X-Forwarded-For header sent by the
+         *                        client, false (the default) to replace it. Only enable it behind a trusted load
+         *                        balancer setting this header, as the clients can forge it.
+         * @return the current builder
+         */
+        public Builder reuseXForwarded(final boolean reuseXForwarded) {
+            this.reuseXForwarded = reuseXForwarded;
+            return this;
+        }
+
+        public ReverseProxy build() {
+            return new ReverseProxy(this);
+        }
+    }
+}
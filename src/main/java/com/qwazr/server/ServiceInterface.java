@@ -19,4 +19,9 @@ public interface ServiceInterface {
 
 	String APPLICATION_JSON_UTF8 = "application/json; charset=UTF-8";
 
+	/**
+	 * Newline delimited JSON: one JSON document per line
+	 */
+	String APPLICATION_NDJSON = "application/x-ndjson";
+
 }
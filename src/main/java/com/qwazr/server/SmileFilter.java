@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Lets the JSON services exchange Smile (binary JSON) with the clients which prefer it,
+ * without declaring Smile in their Produces/Consumes annotations.
+ * <ul>
+ * <li>A Smile request body is matched as JSON, then read by the Smile provider.</li>
+ * <li>A JSON response is written as Smile when the client prefers Smile (first acceptable media type).</li>
+ * </ul>
+ * The filter is opt-in: register RestApplication.SMILE_CLASSES in the JAX-RS application.
+ */
+@PreMatching
+public class SmileFilter implements ContainerRequestFilter, ContainerResponseFilter, ReaderInterceptor {
+
+    private final static String SMILE_BODY_PROPERTY = SmileFilter.class.getName() + ".body";
+
+    @Override
+    public void filter(final ContainerRequestContext requestContext) {
+        final MediaType mediaType = requestContext.getMediaType();
+        if (mediaType == null || !mediaType.isCompatible(ServerException.APPLICATION_JACKSON_SMILE_TYPE))
+            return;
+        // Match the resources consuming JSON, the body will be read as Smile
+        requestContext.setProperty(SMILE_BODY_PROPERTY, mediaType);
+        requestContext.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    public Object aroundReadFrom(final ReaderInterceptorContext context) throws IOException {
+        final Object smileType = context.getProperty(SMILE_BODY_PROPERTY);
+        if (smileType != null)
+            context.setMediaType((MediaType) smileType);
+        return context.proceed();
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext requestContext, final ContainerResponseContext responseContext) {
+        final MediaType mediaType = responseContext.getMediaType();
+        if (mediaType == null || !mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+            return;
+        final Object entity = responseContext.getEntity();
+        // Already serialized and streamed contents are left unchanged
+        if (entity == null || entity instanceof CharSequence || entity instanceof byte[] ||
+                entity instanceof InputStream || entity instanceof StreamingOutput ||
+                entity instanceof Stream || entity instanceof Iterator)
+            return;
+        final List<MediaType> acceptable = requestContext.getAcceptableMediaTypes();
+        if (acceptable.isEmpty() || acceptable.get(0).isWildcardType() ||
+                !acceptable.get(0).isCompatible(ServerException.APPLICATION_JACKSON_SMILE_TYPE))
+            return;
+        responseContext.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, ServerException.APPLICATION_JACKSON_SMILE);
+        responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the expensive fields of the {@link WelcomeStatus} (file stores, open files and threads)
+ * in the background. The status reads the last snapshot instead of computing them for each request.
+ * <p>
+ * The sampling starts with the first read, and is refreshed on a fixed interval
+ * (system property com.qwazr.server.status_interval, in milliseconds, default 10000).
+ */
+public class StatusSampler implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(StatusSampler.class);
+
+    private final static long DEFAULT_INTERVAL =
+            Long.parseLong(System.getProperty("com.qwazr.server.status_interval", "10000"));
+
+    private final static ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "qwazr-status-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long intervalMs;
+
+    private volatile Snapshot snapshot;
+    private ScheduledFuture<?> refresh;
+    private boolean closed;
+
+    public StatusSampler(final long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public StatusSampler() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @return the last snapshot. The first call samples synchronously and starts the background refresh.
+     */
+    public Snapshot get() {
+        final Snapshot current = snapshot;
+        if (current != null)
+            return current;
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = Snapshot.sample(null);
+                if (!closed)
+                    refresh = SCHEDULER.scheduleWithFixedDelay(this::refresh, intervalMs, intervalMs,
+                            TimeUnit.MILLISECONDS);
+            }
+            return snapshot;
+        }
+    }
+
+    private void refresh() {
+        try {
+            snapshot = Snapshot.sample(snapshot);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Status sampling failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+        }
+    }
+
+    public static final class Snapshot {
+
+        public final Map<String, WelcomeStatus.DiskStatus> fileStores;
+        public final WelcomeStatus.RuntimeStatus runtime;
+
+        /**
+         * The time (milliseconds since epoch) of the sampling
+         */
+        public final long time;
+
+        private Snapshot(final Map<String, WelcomeStatus.DiskStatus> fileStores,
+                         final WelcomeStatus.RuntimeStatus runtime) {
+            this.fileStores = Collections.unmodifiableMap(fileStores);
+            this.runtime = runtime;
+            this.time = System.currentTimeMillis();
+        }
+
+        /**
+         * @param previous the previous snapshot, whose file stores are kept if they cannot be read
+         * @return a new snapshot
+         */
+        static Snapshot sample(final Snapshot previous) {
+            Map<String, WelcomeStatus.DiskStatus> fileStores = new LinkedHashMap<>();
+            try {
+                for (final Path rootDir : FileSystems.getDefault().getRootDirectories()) {
+                    if (!Files.isReadable(rootDir))
+                        continue;
+                    final FileStore fileStore = Files.getFileStore(rootDir);
+                    if (fileStore.getTotalSpace() > 0)
+                        fileStores.put(rootDir.toString(), new WelcomeStatus.DiskStatus(fileStore));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot read the file stores: " + e.getMessage());
+                if (previous != null)
+                    fileStores = previous.fileStores;
+            }
+            return new Snapshot(fileStores, new WelcomeStatus.RuntimeStatus());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.qwazr.utils.ObjectMappers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A lock-free ring buffer keeping the most recent completed spans.
+ * When the buffer is full, the oldest spans are overwritten.
+ */
+public final class TraceRecorder {
+
+    /**
+     * The recorder collecting the spans of the server and of the JsonClient calls
+     */
+    public final static TraceRecorder DEFAULT = new TraceRecorder(
+            Integer.parseInt(System.getProperty("com.qwazr.server.trace_buffer_size", "8192")));
+
+    private final AtomicReferenceArray<Span> spans;
+    private final AtomicLong sequence;
+
+    public TraceRecorder(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity should be greater than zero");
+        this.spans = new AtomicReferenceArray<>(capacity);
+        this.sequence = new AtomicLong();
+    }
+
+    void record(final RequestTrace trace, final long durationMicros, final int status) {
+        record(new Span(trace.traceId, trace.spanId, trace.parentSpanId, trace.name, trace.getStartTimeMs(),
+                durationMicros, status));
+    }
+
+    public void record(final Span span) {
+        Objects.requireNonNull(span, "The span is null");
+        spans.set((int) (sequence.getAndIncrement() % spans.length()), span);
+    }
+
+    public int getCapacity() {
+        return spans.length();
+    }
+
+    /**
+     * @return the number of spans recorded since the creation, including the overwritten ones
+     */
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * @param filter the spans to collect
+     * @return the matching spans still in the buffer, ordered by start time
+     */
+    public List<Span> getSpans(final Predicate<Span> filter) {
+        final List<Span> result = new ArrayList<>();
+        for (int i = 0; i < spans.length(); i++) {
+            final Span span = spans.get(i);
+            if (span != null && filter.test(span))
+                result.add(span);
+        }
+        result.sort(Comparator.comparingLong(span -> span.startTime));
+        return result;
+    }
+
+    /**
+     * @param traceId the identifier of a trace
+     * @return the spans of the given trace still in the buffer, ordered by start time
+     */
+    public List<Span> getSpans(final String traceId) {
+        return getSpans(span -> span.traceId.equals(traceId));
+    }
+
+    /**
+     * @param count the maximum number of spans to return
+     * @return the slowest spans still in the buffer, the slowest first
+     */
+    public List<Span> getSlowest(final int count) {
+        final List<Span> result = getSpans(span -> true);
+        result.sort(Comparator.comparingLong((Span span) -> span.duration).reversed());
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * Write the spans still in the buffer to a file, one JSON object per line (NDJSON)
+     *
+     * @param file the destination file, replaced if it exists
+     * @return the number of written spans
+     * @throws IOException if the file cannot be written
+     */
+    public int dump(final Path file) throws IOException {
+        final List<Span> result = getSpans(span -> true);
+        final ObjectWriter writer = ObjectMappers.JSON.writerFor(Span.class);
+        try (final BufferedWriter output = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (final Span span : result) {
+                output.write(writer.writeValueAsString(span));
+                output.newLine();
+            }
+        }
+        return result.size();
+    }
+
+    public void clear() {
+        for (int i = 0; i < spans.length(); i++)
+            spans.set(i, null);
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Span {
+
+        @JsonProperty("trace_id")
+        public final String traceId;
+
+        @JsonProperty("span_id")
+        public final String spanId;
+
+        @JsonProperty("parent_span_id")
+        public final String parentSpanId;
+
+        public final String name;
+
+        /**
+         * The start time (epoch milliseconds)
+         */
+        @JsonProperty("start_time")
+        public final long startTime;
+
+        /**
+         * The duration in microseconds
+         */
+        public final long duration;
+
+        /**
+         * The HTTP status, or 0 if the call failed without response
+         */
+        public final int status;
+
+        @JsonCreator
+        public Span(@JsonProperty("trace_id") final String traceId, @JsonProperty("span_id") final String spanId,
+                    @JsonProperty("parent_span_id") final String parentSpanId, @JsonProperty("name") final String name,
+                    @JsonProperty("start_time") final long startTime, @JsonProperty("duration") final long duration,
+                    @JsonProperty("status") final int status) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.startTime = startTime;
+            this.duration = duration;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return traceId + '/' + spanId + " <- " + parentSpanId + ' ' + name + ' ' + status + ' ' + duration + "us";
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.utils.LoggerUtils;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.conduits.AbstractStreamSourceConduit;
+import org.xnio.conduits.ConduitReadableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSourceConduit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Duplicates a sample of the requests received by a connector (method, path, query, headers and body)
+ * to a shadow RemoteService. It is enabled with {@link GenericServerBuilder#webServiceMirror(TrafficMirror)}.
+ * <p>
+ * The body is copied while the handler reads it, and the request is queued when the exchange completes.
+ * The queue is drained by background senders: a full queue drops the request,
+ * the primary request is never delayed nor failed by the mirror.
+ * The Authorization and Cookie headers are not mirrored, unless {@link Builder#forwardCredentials(boolean)}.
+ * The credentials of the shadow RemoteService, if any, are sent when the shadow service challenges
+ * (non-preemptive basic authentication, like JsonClient).
+ */
+public class TrafficMirror implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(TrafficMirror.class);
+
+    /**
+     * The header flagging a mirrored request, such a request is never mirrored again
+     */
+    public final static String MIRROR_HEADER = "X-Qwazr-Mirror";
+
+    private final static HttpString MIRROR_HTTP_HEADER = HttpString.tryFromString(MIRROR_HEADER);
+
+    private final static Set<HttpString> SKIPPED_HEADERS = new HashSet<>(
+            Arrays.asList(Headers.HOST, Headers.CONTENT_LENGTH, Headers.TRANSFER_ENCODING, Headers.CONNECTION,
+                    Headers.KEEP_ALIVE, Headers.UPGRADE, Headers.EXPECT, Headers.TE, Headers.TRAILER,
+                    Headers.PROXY_AUTHORIZATION));
+
+    /**
+     * The credentials of the clients, only mirrored with {@link Builder#forwardCredentials(boolean)}
+     */
+    private final static Set<HttpString> CREDENTIAL_HEADERS =
+            new HashSet<>(Arrays.asList(Headers.AUTHORIZATION, Headers.COOKIE));
+
+    private final static MirroredRequest STOP = new MirroredRequest(null, null, null, null);
+
+    private final RemoteService shadow;
+    private final double sampleRate;
+    private final int maxBodySize;
+    private final boolean forwardCredentials;
+    private final BlockingQueue<MirroredRequest> queue;
+    private final CloseableHttpClient httpClient;
+    private final List<Thread> senders;
+    private final AtomicBoolean closed;
+
+    private final LongAdder sampled;
+    private final LongAdder dropped;
+    private final LongAdder skipped;
+    private final LongAdder mirrored;
+    private final LongAdder rejected;
+    private final LongAdder failed;
+
+    private TrafficMirror(final Builder builder) {
+        this.shadow = builder.shadow;
+        this.sampleRate = builder.sampleRate;
+        this.maxBodySize = builder.maxBodySize;
+        this.forwardCredentials = builder.forwardCredentials;
+        this.queue = new ArrayBlockingQueue<>(builder.queueSize);
+        final int timeout = shadow.timeout == null ? 10000 : shadow.timeout;
+        final HttpClientBuilder httpClientBuilder = HttpClients.custom();
+        if (shadow.isCredential()) {
+            final BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY,
+                    new UsernamePasswordCredentials(shadow.username, shadow.password));
+            httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+        }
+        this.httpClient = httpClientBuilder
+                .setMaxConnTotal(builder.senders)
+                .setMaxConnPerRoute(builder.senders)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .build())
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .build();
+        this.closed = new AtomicBoolean(false);
+        this.sampled = new LongAdder();
+        this.dropped = new LongAdder();
+        this.skipped = new LongAdder();
+        this.mirrored = new LongAdder();
+        this.rejected = new LongAdder();
+        this.failed = new LongAdder();
+        this.senders = new ArrayList<>(builder.senders);
+        for (int i = 0; i < builder.senders; i++) {
+            final Thread thread = new Thread(this::send, "qwazr-mirror-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            senders.add(thread);
+        }
+    }
+
+    HttpHandler handler(final HttpHandler next) {
+        return exchange -> {
+            if (!closed.get() && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) &&
+                    !exchange.getRequestHeaders().contains(MIRROR_HTTP_HEADER)) {
+                sampled.increment();
+                final Capture capture = new Capture();
+                exchange.addRequestWrapper((factory, ex) -> new TeeConduit(factory.create(), capture));
+                exchange.addExchangeCompleteListener(capture);
+            }
+            next.handleRequest(exchange);
+        };
+    }
+
+    private void send() {
+        for (; ; ) {
+            final MirroredRequest request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Once closed, the requests still queued are abandoned
+            if (request == STOP || closed.get())
+                return;
+            final RequestBuilder builder =
+                    RequestBuilder.create(request.method).setUri(shadow.serverAddress + request.uri);
+            for (int i = 0; i < request.headers.size(); i += 2)
+                builder.addHeader(request.headers.get(i), request.headers.get(i + 1));
+            builder.addHeader(MIRROR_HEADER, "true");
+            if (request.body != null && request.body.length > 0)
+                builder.setEntity(new ByteArrayEntity(request.body));
+            try (final CloseableHttpResponse response = httpClient.execute(builder.build())) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                final int status = response.getStatusLine().getStatusCode();
+                if (status >= 200 && status < 300)
+                    mirrored.increment();
+                else {
+                    rejected.increment();
+                    LOGGER.fine(() -> "Mirrored request rejected (" + status + "): " + request.method + ' ' +
+                            request.uri);
+                }
+            } catch (IOException | RuntimeException e) {
+                failed.increment();
+                LOGGER.log(Level.FINE, e, () -> "Mirroring failed: " + request.method + ' ' + request.uri);
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests selected by the sampling
+     */
+    public long getSampled() {
+        return sampled.sum();
+    }
+
+    /**
+     * @return the number of sampled requests dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of sampled requests not mirrored because the body was too large or not fully read
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of requests sent to the shadow service and answered with a 2xx status
+     */
+    public long getMirrored() {
+        return mirrored.sum();
+    }
+
+    /**
+     * @return the number of requests sent to the shadow service and answered with another status
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of requests which could not be sent to the shadow service
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of requests waiting in the queue
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        queue.clear();
+        for (int i = 0; i < senders.size(); i++)
+            queue.offer(STOP);
+        for (final Thread sender : senders) {
+            try {
+                sender.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    public static Builder of(final RemoteService shadow) {
+        return new Builder(shadow);
+    }
+
+    private final static class MirroredRequest {
+
+        private final String method;
+        private final String uri;
+        private final List<String> headers;
+        private final byte[] body;
+
+        private MirroredRequest(final String method, final String uri, final List<String> headers,
+                                final byte[] body) {
+            this.method = method;
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Collects the body read by the handler, and queues the request when the exchange completes.
+     * The body may be read and the exchange completed by different threads: the state is guarded by the capture.
+     */
+    private final class Capture implements ExchangeCompletionListener {
+
+        private ByteArrayOutputStream body;
+        private boolean overflow;
+
+        private synchronized void write(final ByteBuffer buffer, final int start, final int length) {
+            if (overflow || length <= 0)
+                return;
+            if (body == null)
+                body = new ByteArrayOutputStream(Math.min(length, 8192));
+            if (body.size() + length > maxBodySize) {
+                overflow = true;
+                body = null;
+                return;
+            }
+            if (buffer.hasArray())
+                body.write(buffer.array(), buffer.arrayOffset() + start, length);
+            else
+                for (int i = 0; i < length; i++)
+                    body.write(buffer.get(start + i));
+        }
+
+        @Override
+        public synchronized void exchangeEvent(final HttpServerExchange exchange, final NextListener nextListener) {
+            try {
+                if (closed.get())
+                    return;
+                final long contentLength = exchange.getRequestContentLength();
+                final int bodySize = body == null ? 0 : body.size();
+                if (overflow || (contentLength > 0 && contentLength != bodySize)) {
+                    skipped.increment();
+                    return;
+                }
+                // The names and the values of the headers, copied before the exchange is recycled
+                final List<String> headers = new ArrayList<>();
+                for (final HeaderValues header : exchange.getRequestHeaders()) {
+                    if (SKIPPED_HEADERS.contains(header.getHeaderName()) ||
+                            (!forwardCredentials && CREDENTIAL_HEADERS.contains(header.getHeaderName())))
+                        continue;
+                    for (final String value : header) {
+                        headers.add(header.getHeaderName().toString());
+                        headers.add(value);
+                    }
+                }
+                final String query = exchange.getQueryString();
+                final String uri = query == null || query.isEmpty() ?
+                        exchange.getRequestURI() :
+                        exchange.getRequestURI() + '?' + query;
+                if (!queue.offer(new MirroredRequest(exchange.getRequestMethod().toString(), uri, headers,
+                        body == null ? null : body.toByteArray())))
+                    dropped.increment();
+            } finally {
+                nextListener.proceed();
+            }
+        }
+    }
+
+    /**
+     * A request conduit copying the bytes read by the handler
+     */
+    private final static class TeeConduit extends AbstractStreamSourceConduit<StreamSourceConduit> {
+
+        private final Capture capture;
+
+        private TeeConduit(final StreamSourceConduit next, final Capture capture) {
+            super(next);
+            this.capture = capture;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            final int position = dst.position();
+            final int read = next.read(dst);
+            if (read > 0)
+                capture.write(dst, position, read);
+            return read;
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offs, final int len) throws IOException {
+            final int[] positions = new int[len];
+            for (int i = 0; i < len; i++)
+                positions[i] = dsts[offs + i].position();
+            final long read = next.read(dsts, offs, len);
+            if (read > 0)
+                for (int i = 0; i < len; i++)
+                    capture.write(dsts[offs + i], positions[i], dsts[offs + i].position() - positions[i]);
+            return read;
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final FileChannel target)
+                throws IOException {
+            return target.transferFrom(new ConduitReadableByteChannel(this), position, count);
+        }
+
+        @Override
+        public long transferTo(final long count, final ByteBuffer throughBuffer, final StreamSinkChannel target)
+                throws IOException {
+            return Conduits.transfer(this, count, throughBuffer, target);
+        }
+    }
+
+    public static class Builder {
+
+        private final RemoteService shadow;
+        private double sampleRate = 0.01;
+        private int queueSize = 1000;
+        private int maxBodySize = 1024 * 1024;
+        private int senders = 2;
+        private boolean forwardCredentials;
+
+        private Builder(final RemoteService shadow) {
+            this.shadow = Objects.requireNonNull(shadow, "The shadow RemoteService is null");
+        }
+
+        /**
+         * @param sampleRate the ratio of mirrored requests, from 0 to 1 (default: 0.01)
+         * @return the current builder
+         */
+        public Builder sampleRate(final double sampleRate) {
+            if (sampleRate < 0 || sampleRate > 1)
+                throw new IllegalArgumentException("The sample rate should be between 0 and 1: " + sampleRate);
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * @param queueSize the maximum number of requests waiting to be mirrored (default: 1000)
+         * @return the current builder
+         */
+        public Builder queueSize(final int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param maxBodySize the maximum size in bytes of a mirrored body, larger requests are skipped (default: 1MB)
+         * @return the current builder
+         */
+        public Builder maxBodySize(final int maxBodySize) {
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * @param senders the number of threads sending the requests to the shadow service (default: 2)
+         * @return the current builder
+         */
+        public Builder senders(final int senders) {
+            this.senders = senders;
+            return this;
+        }
+
+        /**
+         * @param forwardCredentials true to mirror the Authorization and Cookie headers of the clients
+         *                           (default: false, the shadow service does not receive them)
+         * @return the current builder
+         */
+        public Builder forwardCredentials(final boolean forwardCredentials) {
+            this.forwardCredentials = forwardCredentials;
+            return this;
+        }
+
+        public TrafficMirror build() {
+            return new TrafficMirror(this);
+        }
+    }
+}
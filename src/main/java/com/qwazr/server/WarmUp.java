@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.ClientTransport;
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The warm-up phase of a server, executed by {@link GenericServer#start(boolean)} once the connectors are started,
+ * and before the started listeners are called and the server is ready.
+ * <p>
+ * It opens pooled connections to the configured remotes (see ClientTransport), then replays the warm-up requests
+ * against the local connectors, round after round, until the median latency of a round is stable.
+ * The warm-up never fails the start of the server: the errors are logged and counted.
+ */
+public class WarmUp implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(WarmUp.class);
+
+    private final Collection<RemoteService> remotes;
+    private final boolean masters;
+    private final int connections;
+    private final int timeout;
+    private final List<Request> requests;
+    private final int minRounds;
+    private final int maxRounds;
+    private final double tolerance;
+    private final long maxDurationMs;
+
+    private final List<Closeable> transports;
+    private final List<Long> roundLatencies;
+    private volatile int errors;
+    private volatile boolean stable;
+
+    private WarmUp(final Builder builder) {
+        this.remotes = new ArrayList<>(builder.remotes);
+        this.masters = builder.masters;
+        this.connections = builder.connections;
+        this.timeout = builder.timeout;
+        this.requests = new ArrayList<>(builder.requests);
+        this.minRounds = builder.minRounds;
+        this.maxRounds = builder.maxRounds;
+        this.tolerance = builder.tolerance;
+        this.maxDurationMs = builder.maxDurationMs;
+        this.transports = new ArrayList<>();
+        this.roundLatencies = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    synchronized void run(final ServerConfiguration configuration) {
+        final long start = System.currentTimeMillis();
+        LOGGER.info("Warm-up...");
+        warmUpConnections(configuration);
+        if (!requests.isEmpty())
+            warmUpRequests(configuration, start + maxDurationMs);
+        LOGGER.info(() -> "Warm-up done in " + (System.currentTimeMillis() - start) + " ms - rounds: " +
+                roundLatencies.size() + " - stable: " + stable + " - errors: " + errors);
+    }
+
+    private void warmUpConnections(final ServerConfiguration configuration) {
+        final Set<RemoteService> targets = new LinkedHashSet<>(remotes);
+        if (masters && configuration.masters != null) {
+            for (final String master : configuration.masters) {
+                try {
+                    targets.add(RemoteService.of(master.contains("://") ? master : "http://" + master).build());
+                } catch (URISyntaxException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Invalid master address: " + master);
+                }
+            }
+        }
+        for (final RemoteService remote : targets) {
+            try {
+                transports.add(ClientTransport.warmUp(remote, connections, timeout));
+            } catch (IOException e) {
+                errors++;
+                LOGGER.log(Level.WARNING, e, () -> "Connection warm-up failed: " + remote);
+            }
+        }
+    }
+
+    private void warmUpRequests(final ServerConfiguration configuration, final long deadline) {
+        long previous = -1;
+        int stableRounds = 0;
+        for (int round = 0; round < maxRounds && System.currentTimeMillis() < deadline; round++) {
+            final LatencyHistogram latencies = new LatencyHistogram();
+            for (final Request request : requests) {
+                final long startNanos = System.nanoTime();
+                if (execute(configuration, request))
+                    latencies.recordSince(startNanos);
+            }
+            final long median = latencies.getPercentile(0.5);
+            roundLatencies.add(median);
+            if (previous > 0 && Math.abs(median - previous) <= previous * tolerance)
+                stableRounds++;
+            else
+                stableRounds = 0;
+            previous = median;
+            // The latency is stable when two consecutive rounds are within the tolerance
+            if (round + 1 >= minRounds && stableRounds >= 2) {
+                stable = true;
+                return;
+            }
+        }
+    }
+
+    private boolean execute(final ServerConfiguration configuration, final Request request) {
+        final ServerConfiguration.WebConnector connector =
+                request.webApp ? configuration.webAppConnector : configuration.webServiceConnector;
+        HttpURLConnection connection = null;
+        try {
+            final URL url = new URL("http", localHost(configuration.listenAddress), connector.port, request.path);
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestMethod(request.method);
+            if (request.body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", request.contentType);
+                try (final OutputStream output = connection.getOutputStream()) {
+                    output.write(request.body);
+                }
+            }
+            final int status = connection.getResponseCode();
+            try (final InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (input != null)
+                    input.transferTo(OutputStream.nullOutputStream());
+            }
+            if (status >= 500) {
+                errors++;
+                LOGGER.warning(() -> "Warm-up request failed: " + request + " - status: " + status);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            errors++;
+            LOGGER.log(Level.WARNING, e, () -> "Warm-up request failed: " + request);
+            return false;
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    private static String localHost(final String listenAddress) {
+        if (listenAddress == null)
+            return "localhost";
+        try {
+            return InetAddress.getByName(listenAddress).isAnyLocalAddress() ? "localhost" : listenAddress;
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * @return the median latency (microseconds) of each round of warm-up requests
+     */
+    public List<Long> getRoundLatencies() {
+        synchronized (roundLatencies) {
+            return new ArrayList<>(roundLatencies);
+        }
+    }
+
+    /**
+     * @return true if the latency of the warm-up requests was stable at the end of the warm-up
+     */
+    public boolean isStable() {
+        return stable;
+    }
+
+    /**
+     * @return the number of failed connections and requests
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Release the pooled connections opened by the warm-up
+     */
+    @Override
+    public synchronized void close() {
+        for (final Closeable transport : transports) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e, e::getMessage);
+            }
+        }
+        transports.clear();
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    private final static class Request {
+
+        private final boolean webApp;
+        private final String method;
+        private final String path;
+        private final String contentType;
+        private final byte[] body;
+
+        private Request(final boolean webApp, final String method, final String path, final String contentType,
+                        final String body) {
+            this.webApp = webApp;
+            this.method = Objects.requireNonNull(method, "The method is null");
+            this.path = path.startsWith("/") ? path : '/' + path;
+            this.contentType = contentType;
+            this.body = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return method + ' ' + path;
+        }
+    }
+
+    public static class Builder {
+
+        private final Set<RemoteService> remotes;
+        private boolean masters;
+        private int connections = 4;
+        private int timeout = 5000;
+        private final List<Request> requests;
+        private int minRounds = 3;
+        private int maxRounds = 50;
+        private double tolerance = 0.1;
+        private long maxDurationMs = TimeUnit.MINUTES.toMillis(1);
+
+        private Builder() {
+            remotes = new LinkedHashSet<>();
+            requests = new ArrayList<>();
+        }
+
+        /**
+         * @param remotes the remote services to which connections are opened in advance
+         * @return the current builder
+         */
+        public Builder remote(final RemoteService... remotes) {
+            if (remotes != null)
+                Collections.addAll(this.remotes, remotes);
+            return this;
+        }
+
+        /**
+         * Open connections in advance to the masters of the server configuration
+         *
+         * @return the current builder
+         */
+        public Builder masters() {
+            this.masters = true;
+            return this;
+        }
+
+        /**
+         * @param connections the number of connections opened to each remote (default: 4)
+         * @param timeoutMs   the timeout (milliseconds) of the connections and of the requests (default: 5000)
+         * @return the current builder
+         */
+        public Builder connections(final int connections, final int timeoutMs) {
+            this.connections = connections;
+            this.timeout = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Add a GET request replayed against the web service connector
+         *
+         * @param path the path of the request, with the query string
+         * @return the current builder
+         */
+        public Builder webService(final String path) {
+            requests.add(new Request(false, "GET", path, null, null));
+            return this;
+        }
+
+        /**
+         * Add a request replayed against the web service connector
+         *
+         * @param method      the HTTP method
+         * @param path        the path of the request, with the query string
+         * @param contentType the content type of the body
+         * @param body        the body of the request, or null
+         * @return the current builder
+         */
+        public Builder webService(final String method, final String path, final String contentType,
+                                  final String body) {
+            requests.add(new Request(false, method, path, contentType, body));
+            return this;
+        }
+
+        /**
+         * Add a GET request replayed against the web application connector
+         *
+         * @param path the path of the request, with the query string
+         * @return the current builder
+         */
+        public Builder webApp(final String path) {
+            requests.add(new Request(true, "GET", path, null, null));
+            return this;
+        }
+
+        /**
+         * @param minRounds     the minimum number of rounds (default: 3)
+         * @param maxRounds     the maximum number of rounds (default: 50)
+         * @param tolerance     the relative variation of the median latency between two stable rounds (default: 0.1)
+         * @param maxDurationMs the maximum duration (milliseconds) of the warm-up requests (default: one minute)
+         * @return the current builder
+         */
+        public Builder rounds(final int minRounds, final int maxRounds, final double tolerance,
+                              final long maxDurationMs) {
+            this.minRounds = minRounds;
+            this.maxRounds = maxRounds;
+            this.tolerance = tolerance;
+            this.maxDurationMs = maxDurationMs;
+            return this;
+        }
+
+        public WarmUp build() {
+            return new WarmUp(this);
+        }
+    }
+}
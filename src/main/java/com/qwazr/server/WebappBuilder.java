@@ -44,7 +44,8 @@ public class WebappBuilder {
     public final static List<Class<?>> SWAGGER_CLASSES = List.of(OpenApiResource.class);
 
     public final static List<Class<?>> JACKSON_CLASSES =
-            List.of(JacksonConfig.class, JacksonXMLProvider.class, JacksonJsonProvider.class);
+            List.of(JacksonConfig.class, JacksonXMLProvider.class, JacksonJsonProvider.class,
+                    JsonStreamWriter.OfStream.class, JsonStreamWriter.OfIterator.class);
 
     public final static String SESSIONS_PERSISTENCE_DIR = "webapp-sessions";
 
@@ -127,6 +128,18 @@ public class WebappBuilder {
         return registerStaticServlet(urlPath, staticsPath, DEFAULT_EXPIRATION_TIME);
     }
 
+    /**
+     * Register the scrape endpoint of the metrics, in the Prometheus or the OpenMetrics text format
+     *
+     * @param urlPath the path of the endpoint (ie: /metrics)
+     * @return the current builder
+     */
+    public WebappBuilder registerMetricsServlet(final String urlPath) {
+        context.servlet(new ServletInfo(MetricsServlet.class.getName() + '@' + urlPath, MetricsServlet.class)
+                .addMapping(urlPath));
+        return this;
+    }
+
     public WebappBuilder registerListener(final Class<? extends EventListener> listenerClass) {
         context.listener(Servlets.listener(listenerClass));
         return this;
@@ -25,10 +25,6 @@ import com.qwazr.utils.RuntimeUtils;
 
 import java.io.IOException;
 import java.nio.file.FileStore;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
@@ -49,6 +45,7 @@ public class WelcomeStatus {
     public final MemoryStatus memory;
     public final Map<String, DiskStatus> file_stores;
     public final RuntimeStatus runtime;
+    public final Long sampling_time;
     public final SortedMap<String, Object> properties;
     public final SortedMap<String, String> env;
 
@@ -60,6 +57,7 @@ public class WelcomeStatus {
             @JsonProperty("memory") MemoryStatus memory,
             @JsonProperty("file_stores") Map<String, DiskStatus> file_stores,
             @JsonProperty("runtime") RuntimeStatus runtime,
+            @JsonProperty("sampling_time") Long sampling_time,
             @JsonProperty("properties") SortedMap<String, Object> properties,
             @JsonProperty("env") SortedMap<String, String> env) {
         this.implementation = implementation;
@@ -69,6 +67,7 @@ public class WelcomeStatus {
         this.memory = memory;
         this.file_stores = file_stores;
         this.runtime = runtime;
+        this.sampling_time = sampling_time;
         this.properties = properties;
         this.env = env;
     }
@@ -83,15 +82,12 @@ public class WelcomeStatus {
         specification = new TitleVendorVersion(pkg.getSpecificationTitle(), pkg.getSpecificationVendor(),
                 pkg.getSpecificationVersion());
         memory = new MemoryStatus();
-        file_stores = new LinkedHashMap<>();
-        for (Path rootDir : FileSystems.getDefault().getRootDirectories()) {
-            if (!Files.isReadable(rootDir))
-                continue;
-            final FileStore fileStore = Files.getFileStore(rootDir);
-            if (fileStore.getTotalSpace() > 0)
-                file_stores.put(rootDir.toString(), new DiskStatus(fileStore));
-        }
-        runtime = new RuntimeStatus();
+        // The expensive fields are read from the snapshot of the sampler
+        final StatusSampler.Snapshot snapshot =
+                server == null ? StatusSampler.Snapshot.sample(null) : server.getStatusSampler().get();
+        file_stores = snapshot.fileStores;
+        runtime = snapshot.runtime;
+        sampling_time = snapshot.time;
         if (showProperties != null && showProperties) {
             properties = new TreeMap<>();
             System.getProperties().forEach((key, value) -> properties.put(key.toString(), value));
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.server.RemoteService;
+import com.qwazr.server.RequestDeadline;
+import com.qwazr.server.RequestTrace;
+import com.qwazr.server.ServerException;
+import com.qwazr.server.ServiceInterface;
+import com.qwazr.utils.ObjectMappers;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking HTTP transport of the asynchronous calls of one JsonClient.
+ * <p>
+ * No thread is held while a call is pending: the connections are multiplexed by the selector of the HTTP client
+ * of the shared {@link ClientTransport}, which also bounds the concurrent exchanges per server.
+ * The timeout is measured from the time the request is sent, and the exchange is cancelled
+ * (and its connection discarded) when the timeout expires or when the caller cancels the returned future.
+ * <p>
+ * Like the synchronous calls, the asynchronous calls are metered by the {@link ClientMetrics} of the client,
+ * negotiate Smile when the client is configured to, and send the credentials only when the server challenges.
+ * They do not pass through the Jersey filters of the client, and are not served by its ResponseCache.
+ */
+final class AsyncTransport {
+
+    private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "qwazr-client-async-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final static String SMILE_ACCEPT =
+            ServerException.APPLICATION_JACKSON_SMILE + ", " + MediaType.APPLICATION_JSON + ";q=0.9";
+
+    private final RemoteService remote;
+    private final ClientTransport transport;
+    private final SmileClientFilter smile;
+    private final ClientMetrics.Leases metrics;
+
+    /**
+     * @param remote    the remote service
+     * @param transport the shared transport of the remote service
+     * @param smile     the Smile negotiation of the client, or null if the client uses JSON only
+     */
+    AsyncTransport(final RemoteService remote, final ClientTransport transport, final SmileClientFilter smile) {
+        this.remote = remote;
+        this.transport = transport;
+        this.smile = smile;
+        this.metrics = new ClientMetrics.Leases();
+    }
+
+    /**
+     * Send a request
+     *
+     * @param timeout the timeout of the call (milliseconds), reduced to the deadline of the current request if any
+     * @param method  the HTTP method
+     * @param uri     the URI of the request
+     * @param body    the body of the request, or null
+     * @param type    the type of the result
+     * @param <T>     the type of the result
+     * @return a future completed by the decoded result, or exceptionally by a WebApplicationException
+     * (error status or timeout) or a ProcessingException (I/O error)
+     */
+    <T> CompletableFuture<T> send(final int timeout, final String method, final URI uri, final Object body,
+                                  final JavaType type) {
+
+        final RequestDeadline deadline = RequestDeadline.current();
+        final long remaining = deadline == null ? timeout : Math.min(timeout, deadline.getRemainingMillis());
+        if (remaining <= 0)
+            return CompletableFuture.failedFuture(new WebApplicationException(Response.Status.GATEWAY_TIMEOUT));
+
+        final Call<T> call;
+        try {
+            call = new Call<>(method, uri, body, type, deadline == null ? null : remaining);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(new ProcessingException(e));
+        }
+
+        // The whole call (including the queuing and the body) is bounded by the timeout
+        final ScheduledFuture<?> timer = TIMER.schedule(call::timeout, remaining, TimeUnit.MILLISECONDS);
+        // Cancelling the result (ie: a losing hedge) aborts the exchange
+        call.result.whenComplete((value, error) -> {
+            timer.cancel(false);
+            if (call.result.isCancelled())
+                call.cancel();
+        });
+        transport.executeAsync(call::start);
+        return call.result;
+    }
+
+    /**
+     * Release the metrics of the client
+     */
+    void close() {
+        metrics.release();
+    }
+
+    private final class Call<T> {
+
+        private final String method;
+        private final URI uri;
+        private final byte[] bytes;
+        private final boolean smileBody;
+        private final JavaType type;
+        private final Long deadline;
+        private final RequestTrace span;
+        private final ClientMetrics callMetrics;
+        private final CompletableFuture<T> result;
+        private final AtomicBoolean timedOut;
+        private final AtomicBoolean released;
+        private volatile CompletableFuture<HttpResponse<byte[]>> exchange;
+
+        private Call(final String method, final URI uri, final Object body, final JavaType type,
+                     final Long deadline) throws JsonProcessingException {
+            this.method = method;
+            this.uri = uri;
+            // The bodies are sent as Smile once the server proved it supports Smile (see SmileClientFilter)
+            this.smileBody = body != null && smile != null && smile.isSmileBody();
+            this.bytes = body == null ? null : (smileBody ? ObjectMappers.SMILE : ObjectMappers.JSON).writeValueAsBytes(
+                    body);
+            this.type = type;
+            this.deadline = deadline;
+            final RequestTrace current = RequestTrace.current();
+            this.span = current == null ?
+                    null :
+                    current.child(method + " " + uri.getHost() + ':' + uri.getPort() + uri.getPath());
+            this.callMetrics = metrics.get(uri, null, method);
+            this.result = new CompletableFuture<>();
+            this.timedOut = new AtomicBoolean(false);
+            this.released = new AtomicBoolean(false);
+        }
+
+        private HttpRequest request(final boolean credentials) {
+            final HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .header(HttpHeaders.ACCEPT, smile == null ? MediaType.APPLICATION_JSON : SMILE_ACCEPT)
+                    .method(method, bytes == null ?
+                            HttpRequest.BodyPublishers.noBody() :
+                            HttpRequest.BodyPublishers.ofByteArray(bytes));
+            if (bytes != null)
+                request.header(HttpHeaders.CONTENT_TYPE,
+                        smileBody ? ServerException.APPLICATION_JACKSON_SMILE : ServiceInterface.APPLICATION_JSON_UTF8);
+            if (deadline != null)
+                request.header(RequestDeadline.HEADER, Long.toString(deadline));
+            if (credentials)
+                request.header(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder()
+                        .encodeToString((remote.username + ':' + remote.password).getBytes(StandardCharsets.UTF_8)));
+            if (span != null) {
+                request.header(RequestTrace.TRACE_HEADER, span.traceId);
+                request.header(RequestTrace.SPAN_HEADER, span.spanId);
+            }
+            return request.build();
+        }
+
+        /**
+         * Called by the transport when the number of concurrent exchanges allows it
+         */
+        private void start() {
+            if (result.isDone()) {
+                release();
+                return;
+            }
+            send(false);
+        }
+
+        private void send(final boolean credentials) {
+            if (bytes != null)
+                callMetrics.addBytesSent(bytes.length);
+            final long start = System.nanoTime();
+            final CompletableFuture<HttpResponse<byte[]>> future;
+            try {
+                future = transport.asyncClient.sendAsync(request(credentials), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (RuntimeException e) {
+                callMetrics.onFailure(start, e);
+                fail(e);
+                return;
+            }
+            exchange = future;
+            // The result may have been completed while the exchange was starting
+            if (result.isDone())
+                future.cancel(true);
+            future.whenComplete((response, error) -> {
+                if (error != null)
+                    onFailure(start, error);
+                else
+                    onResponse(start, response, credentials);
+            });
+        }
+
+        private void onFailure(final long start, final Throwable error) {
+            final Throwable cause =
+                    error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            // A cancelled exchange is not counted by the metrics (see ClientMetrics)
+            callMetrics.onFailure(start, timedOut.get() ? new HttpTimeoutException("Timeout: " + uri) : cause);
+            if (cause instanceof HttpTimeoutException)
+                fail(new WebApplicationException(cause, Response.Status.GATEWAY_TIMEOUT));
+            else
+                fail(cause instanceof IOException ? new ProcessingException(cause) : cause);
+        }
+
+        private void onResponse(final long start, final HttpResponse<byte[]> response, final boolean credentials) {
+            final int status = response.statusCode();
+            final byte[] content = response.body();
+            callMetrics.onResponse(start, status);
+            callMetrics.addBytesReceived(content.length);
+            // Like the non-preemptive authentication of the synchronous calls
+            if (status == Response.Status.UNAUTHORIZED.getStatusCode() && !credentials && remote.isCredential() &&
+                    isBasicChallenge(response) && !result.isDone()) {
+                send(true);
+                return;
+            }
+            final MediaType mediaType = response.headers()
+                    .firstValue(HttpHeaders.CONTENT_TYPE)
+                    .map(MediaType::valueOf)
+                    .orElse(null);
+            if (smile != null)
+                smile.onResponse(smileBody, status, mediaType);
+            if (span != null)
+                span.end(status);
+            release();
+            if (status < 200 || status >= 300) {
+                final Response.ResponseBuilder builder = Response.status(status);
+                if (mediaType != null)
+                    builder.type(mediaType).entity(content);
+                result.completeExceptionally(new WebApplicationException(builder.build()));
+                return;
+            }
+            try {
+                final ObjectMapper mapper =
+                        mediaType != null && mediaType.isCompatible(ServerException.APPLICATION_JACKSON_SMILE_TYPE) ?
+                                ObjectMappers.SMILE :
+                                ObjectMappers.JSON;
+                result.complete(content.length == 0 ? null : mapper.readValue(content, type));
+            } catch (IOException e) {
+                result.completeExceptionally(new ProcessingException(e));
+            }
+        }
+
+        private void fail(final Throwable error) {
+            if (span != null)
+                span.end(0);
+            release();
+            result.completeExceptionally(error);
+        }
+
+        private void timeout() {
+            timedOut.set(true);
+            if (result.completeExceptionally(
+                    new WebApplicationException("Timeout: " + uri, Response.Status.GATEWAY_TIMEOUT)))
+                cancel();
+        }
+
+        /**
+         * Abort the exchange. A call still waiting for the transport is released when it is started.
+         */
+        private void cancel() {
+            final CompletableFuture<HttpResponse<byte[]>> current = exchange;
+            if (current != null)
+                current.cancel(true);
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true))
+                transport.releaseAsync();
+        }
+    }
+
+    private static boolean isBasicChallenge(final HttpResponse<?> response) {
+        for (final String challenge : response.headers().allValues(HttpHeaders.WWW_AUTHENTICATE))
+            if (challenge.regionMatches(true, 0, "Basic", 0, 5))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.qwazr.server.BatchService;
+import com.qwazr.server.RemoteService;
+import com.qwazr.utils.ObjectMappers;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client accumulating the calls during a few milliseconds (or up to a maximum number of calls)
+ * and sending them in one HTTP request to the batch endpoint of the remote application.
+ * <p>
+ * The remote application must mount the endpoint with ApplicationBuilder.batch().
+ * The batches are exchanged in Smile when the smile option of the client is enabled.
+ */
+public class BatchClient extends JsonClient {
+
+    private final static ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "qwazr-client-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final static GenericType<List<BatchService.SubResponse>> SUB_RESPONSES = new GenericType<>() {
+    };
+
+    private final long lingerMs;
+    private final int maxBatchSize;
+
+    private List<Call<?>> pending;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * The batches sent and not yet answered
+     */
+    private final Set<CompletableFuture<?>> inFlight;
+
+    private final LongAdder calls;
+    private final LongAdder batches;
+
+    /**
+     * @param remote       the remote application
+     * @param lingerMs     the maximum time (milliseconds) a call waits for other calls before the batch is sent
+     * @param maxBatchSize the maximum number of calls sent in one batch
+     * @param options      the options of the client
+     */
+    public BatchClient(final RemoteService remote, final long lingerMs, final int maxBatchSize,
+                       final Options options) {
+        super(remote, options);
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("The maximum batch size should be greater than zero");
+        this.lingerMs = lingerMs;
+        this.maxBatchSize = maxBatchSize;
+        this.pending = new ArrayList<>(maxBatchSize);
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.calls = new LongAdder();
+        this.batches = new LongAdder();
+    }
+
+    public BatchClient(final RemoteService remote, final long lingerMs, final int maxBatchSize) {
+        this(remote, lingerMs, maxBatchSize, null);
+    }
+
+    /**
+     * Queue a call
+     *
+     * @param method  the HTTP method
+     * @param path    the path of the resource, relative to the application path
+     * @param headers optional HTTP headers
+     * @param body    an optional body serialized in JSON
+     * @param type    the type of the result
+     * @param <T>     the type of the result
+     * @return a future completed by the result, or exceptionally by a WebApplicationException
+     */
+    public <T> CompletableFuture<T> call(final String method, final String path, final Map<String, String> headers,
+                                         final Object body, final TypeReference<T> type) {
+        final JsonNode jsonBody = body == null ? null : ObjectMappers.JSON.valueToTree(body);
+        final Call<T> call = new Call<>(new BatchService.SubRequest(method, path, headers, jsonBody), type);
+        final List<Call<?>> ready;
+        synchronized (this) {
+            pending.add(call);
+            if (pending.size() >= maxBatchSize) {
+                ready = drain();
+            } else {
+                ready = null;
+                if (scheduled == null)
+                    scheduled = SCHEDULER.schedule(this::flush, lingerMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        calls.increment();
+        if (ready != null)
+            send(ready);
+        return call.future;
+    }
+
+    public <T> CompletableFuture<T> get(final String path, final TypeReference<T> type) {
+        return call(HttpMethod.GET, path, null, null, type);
+    }
+
+    public <T> CompletableFuture<T> post(final String path, final Object body, final TypeReference<T> type) {
+        return call(HttpMethod.POST, path, null, body, type);
+    }
+
+    /**
+     * Send the pending calls without waiting for the linger time
+     */
+    public void flush() {
+        final List<Call<?>> ready;
+        synchronized (this) {
+            ready = drain();
+        }
+        if (!ready.isEmpty())
+            send(ready);
+    }
+
+    private List<Call<?>> drain() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        final List<Call<?>> ready = pending;
+        pending = new ArrayList<>(maxBatchSize);
+        return ready;
+    }
+
+    private void send(final List<Call<?>> ready) {
+        batches.increment();
+        final List<BatchService.SubRequest> requests = new ArrayList<>(ready.size());
+        ready.forEach(call -> requests.add(call.request));
+        try {
+            final CompletableFuture<List<BatchService.SubResponse>> batch =
+                    sendAsync(HttpMethod.POST, client.target(remote.serviceAddress).path(BatchService.PATH), requests,
+                            SUB_RESPONSES);
+            inFlight.add(batch);
+            batch.whenComplete((responses, error) -> {
+                inFlight.remove(batch);
+                if (error != null)
+                    ready.forEach(call -> call.future.completeExceptionally(error));
+                else
+                    for (int i = 0; i < ready.size(); i++)
+                        ready.get(i).complete(i < responses.size() ? responses.get(i) : null);
+            });
+        } catch (RuntimeException e) {
+            ready.forEach(call -> call.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of HTTP requests sent to the batch endpoint
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Send the pending calls, then wait for the batches in flight (at most the timeout of the client)
+     * before closing the client. The batches still in flight are then cancelled.
+     */
+    @Override
+    public void close() {
+        flush();
+        final CompletableFuture<?>[] batches = inFlight.toArray(new CompletableFuture<?>[0]);
+        try {
+            CompletableFuture.allOf(batches).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // The failures are given to the callers by the futures of their calls
+        } finally {
+            for (CompletableFuture<?> batch : batches)
+                batch.cancel(true);
+            super.close();
+        }
+    }
+
+    private static class Call<T> {
+
+        private final BatchService.SubRequest request;
+        private final TypeReference<T> type;
+        private final CompletableFuture<T> future;
+
+        private Call(final BatchService.SubRequest request, final TypeReference<T> type) {
+            this.request = request;
+            this.type = type;
+            this.future = new CompletableFuture<>();
+        }
+
+        private void complete(final BatchService.SubResponse response) {
+            if (response == null) {
+                future.completeExceptionally(
+                        new WebApplicationException("Missing response", Response.Status.BAD_GATEWAY));
+                return;
+            }
+            if (response.status < 200 || response.status >= 300) {
+                final JsonNode body = response.body;
+                future.completeExceptionally(new WebApplicationException(
+                        body != null && body.isTextual() ? body.asText() : null, response.status));
+                return;
+            }
+            try {
+                final JsonNode body = response.body;
+                future.complete(body == null || body.isNull() ? null : ObjectMappers.JSON.convertValue(body, type));
+            } catch (IllegalArgumentException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.LoggerUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Hashtable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker protecting the calls to one client of a MultiClient.
+ * <p>
+ * The outcome of the last calls is kept in a sliding window. The circuit opens when the ratio of failed calls,
+ * or the ratio of slow calls, reaches its threshold. While the circuit is open the calls are rejected immediately.
+ * After the open duration, a few probe calls are allowed (half-open state): the circuit closes if they all succeed,
+ * and opens again if one fails.
+ * <p>
+ * Only the server side errors (status 5xx) and the transport errors are counted as failures.
+ * The calls cancelled or interrupted by the caller are not counted.
+ */
+public final class CircuitBreaker implements CircuitBreakerMXBean {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CircuitBreaker.class);
+
+    private final static AtomicInteger breakerCounter = new AtomicInteger();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final static byte FAILED = 1;
+    private final static byte SLOW = 2;
+
+    private final String name;
+    private final int minCalls;
+    private final double errorRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenProbes;
+
+    private final byte[] window;
+    private final LongAdder rejected;
+    private final LongAdder opened;
+
+    private State state;
+    private int windowPos;
+    private int windowSize;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+
+    private ObjectName objectName;
+
+    private CircuitBreaker(final String name, final Builder builder) {
+        this.name = name;
+        this.minCalls = builder.minCalls;
+        this.errorRateThreshold = builder.errorRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(builder.slowCallMs);
+        this.slowCallRateThreshold = builder.slowCallRateThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMs);
+        this.halfOpenProbes = builder.halfOpenProbes;
+        this.window = new byte[builder.windowSize];
+        this.rejected = new LongAdder();
+        this.opened = new LongAdder();
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Must be called before each call. Every granted permission must be followed by a call to
+     * {@link #onResult(long, Throwable)}.
+     *
+     * @return true if the call is permitted
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+        case OPEN:
+            if (System.nanoTime() - openedAt < openNanos) {
+                rejected.increment();
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probes = 0;
+            probeSuccesses = 0;
+            // Continue with the half open state
+        case HALF_OPEN:
+            if (probes >= halfOpenProbes) {
+                rejected.increment();
+                return false;
+            }
+            probes++;
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Must be called after each permitted call
+     *
+     * @param durationNanos the duration of the call
+     * @param error         the error thrown by the call, or null
+     */
+    synchronized void onResult(final long durationNanos, final Throwable error) {
+        final boolean failed = isFailure(error);
+        final boolean slow = slowCallNanos > 0 && durationNanos >= slowCallNanos;
+        switch (state) {
+        case HALF_OPEN:
+            if (failed || slow)
+                open();
+            else if (++probeSuccesses >= halfOpenProbes)
+                close();
+            break;
+        case CLOSED:
+            record((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+            if (windowSize >= minCalls && (failures >= errorRateThreshold * windowSize ||
+                    (slowCallNanos > 0 && slowCalls >= slowCallRateThreshold * windowSize)))
+                open();
+            break;
+        default:
+            // A call which started before the circuit opened
+            break;
+        }
+    }
+
+    /**
+     * Must be called instead of {@link #onResult(long, Throwable)} when the caller cancelled the permitted call.
+     * The call is not counted, and its probe is released.
+     */
+    synchronized void onCancel() {
+        if (state == State.HALF_OPEN && probes > 0)
+            probes--;
+    }
+
+    private void record(final byte outcome) {
+        if (windowSize == window.length) {
+            final byte evicted = window[windowPos];
+            if ((evicted & FAILED) != 0)
+                failures--;
+            if ((evicted & SLOW) != 0)
+                slowCalls--;
+        } else
+            windowSize++;
+        window[windowPos] = outcome;
+        windowPos = (windowPos + 1) % window.length;
+        if ((outcome & FAILED) != 0)
+            failures++;
+        if ((outcome & SLOW) != 0)
+            slowCalls++;
+    }
+
+    private void open() {
+        if (state != State.OPEN)
+            LOGGER.warning(() -> "Circuit breaker opened: " + name);
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        opened.increment();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        windowPos = 0;
+        windowSize = 0;
+        failures = 0;
+        slowCalls = 0;
+        LOGGER.info(() -> "Circuit breaker closed: " + name);
+    }
+
+    static boolean isFailure(final Throwable error) {
+        if (error == null || isCancellation(error))
+            return false;
+        if (error instanceof WebApplicationException)
+            return ((WebApplicationException) error).getResponse().getStatus() >= 500;
+        if (error instanceof ServerException)
+            return ((ServerException) error).getStatusCode() >= 500;
+        return true;
+    }
+
+    /**
+     * A call cancelled or interrupted by the caller (ie: a losing hedge, or a call still pending
+     * when the quorum is reached) says nothing about the health of the remote server.
+     * The timeouts, which are also interrupted I/O exceptions, are not cancellations.
+     *
+     * @param error the error thrown by the call
+     * @return true if the call was cancelled or interrupted
+     */
+    static boolean isCancellation(final Throwable error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof CancellationException || cause instanceof InterruptedException)
+                return true;
+            if (cause instanceof InterruptedIOException)
+                return !(cause instanceof SocketTimeoutException) && !(cause instanceof ConnectTimeoutException);
+            cause = cause.getCause() == cause ? null : cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @return the exception describing a rejected call
+     */
+    OpenException rejection() {
+        return new OpenException(name);
+    }
+
+    public synchronized State getCurrentState() {
+        return state;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getState() {
+        return getCurrentState().name();
+    }
+
+    @Override
+    public synchronized double getErrorRate() {
+        return windowSize == 0 ? 0 : (double) failures / windowSize;
+    }
+
+    @Override
+    public synchronized double getSlowCallRate() {
+        return windowSize == 0 ? 0 : (double) slowCalls / windowSize;
+    }
+
+    @Override
+    public synchronized int getBufferedCalls() {
+        return windowSize;
+    }
+
+    @Override
+    public long getRejectedCalls() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getOpenedCount() {
+        return opened.sum();
+    }
+
+    @Override
+    public synchronized void reset() {
+        close();
+    }
+
+    synchronized void registerMBean(final String group) {
+        if (objectName != null)
+            return;
+        try {
+            final Hashtable<String, String> props = new Hashtable<>();
+            props.put("type", "breaker");
+            props.put("group", ObjectName.quote(group));
+            props.put("name", ObjectName.quote(name));
+            props.put("id", Integer.toString(breakerCounter.incrementAndGet()));
+            final ObjectName on = new ObjectName("com.qwazr.server.client", props);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot register the circuit breaker MBean: " + e.getMessage());
+        }
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, e::getMessage);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getState();
+    }
+
+    /**
+     * Thrown (status 503) when a call is rejected because the circuit is open
+     */
+    public static class OpenException extends WebApplicationException {
+
+        private static final long serialVersionUID = 3163934254432390164L;
+
+        OpenException(final String name) {
+            super("Circuit breaker open: " + name, Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int windowSize = 20;
+        private int minCalls = 10;
+        private double errorRateThreshold = 0.5;
+        private long slowCallMs = 0;
+        private double slowCallRateThreshold = 0.8;
+        private long openMs = 10000;
+        private int halfOpenProbes = 3;
+
+        /**
+         * @param windowSize the number of the last calls used to compute the rates
+         * @param minCalls   the minimum number of calls before the rates are evaluated
+         * @return the current builder
+         */
+        public Builder window(final int windowSize, final int minCalls) {
+            if (windowSize <= 0)
+                throw new IllegalArgumentException("The window size must be positive");
+            this.windowSize = windowSize;
+            this.minCalls = Math.max(1, Math.min(minCalls, windowSize));
+            return this;
+        }
+
+        /**
+         * @param errorRateThreshold the ratio of failed calls opening the circuit (ie: 0.5 for 50%)
+         * @return the current builder
+         */
+        public Builder errorRate(final double errorRateThreshold) {
+            this.errorRateThreshold = errorRateThreshold;
+            return this;
+        }
+
+        /**
+         * @param slowCallMs            the duration (milliseconds) above which a call is considered slow.
+         *                              0 (the default) disables the slow call detection.
+         * @param slowCallRateThreshold the ratio of slow calls opening the circuit (ie: 0.8 for 80%)
+         * @return the current builder
+         */
+        public Builder slowCalls(final long slowCallMs, final double slowCallRateThreshold) {
+            this.slowCallMs = slowCallMs;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            return this;
+        }
+
+        /**
+         * @param openMs         how long (milliseconds) the circuit stays open before the probes are allowed
+         * @param halfOpenProbes the number of successful probes required to close the circuit
+         * @return the current builder
+         */
+        public Builder open(final long openMs, final int halfOpenProbes) {
+            this.openMs = openMs;
+            this.halfOpenProbes = Math.max(1, halfOpenProbes);
+            return this;
+        }
+
+        public CircuitBreaker build(final String name) {
+            return new CircuitBreaker(name, this);
+        }
+    }
+}
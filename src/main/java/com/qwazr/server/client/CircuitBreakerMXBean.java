@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+public interface CircuitBreakerMXBean {
+
+    String getName();
+
+    /**
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    String getState();
+
+    /**
+     * @return the ratio of failed calls in the current window
+     */
+    double getErrorRate();
+
+    /**
+     * @return the ratio of slow calls in the current window
+     */
+    double getSlowCallRate();
+
+    int getBufferedCalls();
+
+    long getRejectedCalls();
+
+    long getOpenedCount();
+
+    /**
+     * Close the circuit and clear the current window
+     */
+    void reset();
+}
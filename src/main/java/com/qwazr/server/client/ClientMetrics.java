@@ -0,0 +1,574 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.LatencyHistogram;
+import com.qwazr.utils.LoggerUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The statistics of the JsonClient calls, as seen by the client, for one remote server and one operation.
+ * <p>
+ * The operation is given by the {@link #OPERATION} property of the request, or is the HTTP method by default:
+ * <pre>
+ * target.request().property(ClientMetrics.OPERATION, "search").get(...)
+ * </pre>
+ * The metrics are created on the first call and registered as MBeans. Every update is lock-free.
+ * They are leased by the clients which use them, and unregistered when the last client is closed.
+ */
+public final class ClientMetrics implements ClientMetricsMXBean {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ClientMetrics.class);
+
+    /**
+     * The request property naming the operation
+     */
+    public final static String OPERATION = ClientMetrics.class.getName() + ".operation";
+
+    private final static ConcurrentHashMap<Key, ClientMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private final String serverAddress;
+    private final String operation;
+
+    private final LongAdder calls;
+    private final LongAdder clientErrors;
+    private final LongAdder serverErrors;
+    private final LongAdder timeouts;
+    private final LongAdder connectionErrors;
+    private final LongAdder otherErrors;
+    private final ConcurrentHashMap<Integer, LongAdder> statusCounts;
+    private final LongAdder bytesSent;
+    private final LongAdder bytesReceived;
+    private final LatencyHistogram latencies;
+
+    /**
+     * The number of clients using these metrics, guarded by the lock of the METRICS entry
+     */
+    private int leases;
+    private ObjectName objectName;
+
+    ClientMetrics(final String serverAddress, final String operation) {
+        this.serverAddress = serverAddress;
+        this.operation = operation;
+        this.calls = new LongAdder();
+        this.clientErrors = new LongAdder();
+        this.serverErrors = new LongAdder();
+        this.timeouts = new LongAdder();
+        this.connectionErrors = new LongAdder();
+        this.otherErrors = new LongAdder();
+        this.statusCounts = new ConcurrentHashMap<>();
+        this.bytesSent = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.latencies = new LatencyHistogram();
+    }
+
+    /**
+     * @param uri       the URI of the request
+     * @param operation the name of the operation, or null to use the method
+     * @param method    the HTTP method
+     * @return the key of the metrics of the server and operation
+     */
+    private static Key key(final URI uri, final Object operation, final String method) {
+        final String serverAddress = uri.getScheme() + "://" + uri.getHost() + ':' +
+                (uri.getPort() == -1 ? ("https".equals(uri.getScheme()) ? 443 : 80) : uri.getPort());
+        return new Key(serverAddress, operation == null ? method : operation.toString());
+    }
+
+    /**
+     * @return the metrics of the server and operation, created and registered if required.
+     * Each call must be balanced by a call to {@link #release()}.
+     */
+    private static ClientMetrics acquire(final Key key) {
+        return METRICS.compute(key, (k, metrics) -> {
+            if (metrics == null) {
+                metrics = new ClientMetrics(k.serverAddress, k.operation);
+                final Hashtable<String, String> props = new Hashtable<>();
+                props.put("type", "metrics");
+                props.put("name", ObjectName.quote(k.serverAddress));
+                props.put("operation", ObjectName.quote(k.operation));
+                metrics.objectName = registerMBean(metrics, props);
+            }
+            metrics.leases++;
+            return metrics;
+        });
+    }
+
+    /**
+     * The metrics are removed, and their MBean unregistered, when they are released by their last client
+     */
+    private void release() {
+        METRICS.computeIfPresent(new Key(serverAddress, operation), (k, metrics) -> {
+            if (metrics != this || --leases > 0)
+                return metrics;
+            unregisterMBean(objectName);
+            return null;
+        });
+    }
+
+    /**
+     * @return the metrics of every remote server and operation
+     */
+    public static List<ClientMetricsMXBean> getAll() {
+        return new ArrayList<>(METRICS.values());
+    }
+
+    /**
+     * @param serverAddress the address of a remote server ({scheme}://{host}:{port})
+     * @return the metrics of every operation on the given server
+     */
+    public static List<ClientMetricsMXBean> getAll(final String serverAddress) {
+        final List<ClientMetricsMXBean> result = new ArrayList<>();
+        METRICS.forEach((key, metrics) -> {
+            if (key.serverAddress.equals(serverAddress))
+                result.add(metrics);
+        });
+        return result;
+    }
+
+    /**
+     * @param name    the name of the aggregated view
+     * @param servers the addresses of the servers to aggregate
+     * @return a live view summing the metrics of every operation on the given servers
+     */
+    public static ClientMetricsMXBean aggregate(final String name, final Collection<String> servers) {
+        return new Aggregate(name, metrics -> servers.contains(metrics.serverAddress));
+    }
+
+    static ObjectName registerMBean(final ClientMetricsMXBean metrics, final Hashtable<String, String> props) {
+        try {
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName("com.qwazr.server.client", props);
+            if (mbs.isRegistered(objectName))
+                return null;
+            mbs.registerMBean(metrics, objectName);
+            return objectName;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot register the metrics MBean: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void unregisterMBean(final ObjectName objectName) {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    void onResponse(final long startNanos, final int status) {
+        latencies.recordSince(startNanos);
+        calls.increment();
+        statusCounts.computeIfAbsent(status, s -> new LongAdder()).increment();
+        if (status >= 500)
+            serverErrors.increment();
+        else if (status >= 400)
+            clientErrors.increment();
+    }
+
+    void onFailure(final long startNanos, final Throwable error) {
+        // The caller gave up the call (ie: a cancelled hedge): it is neither a timeout nor an error
+        if (CircuitBreaker.isCancellation(error))
+            return;
+        latencies.recordSince(startNanos);
+        calls.increment();
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException ||
+                    cause instanceof HttpTimeoutException) {
+                timeouts.increment();
+                return;
+            }
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException ||
+                    cause instanceof UnknownHostException) {
+                connectionErrors.increment();
+                return;
+            }
+            cause = cause.getCause() == cause ? null : cause.getCause();
+        }
+        otherErrors.increment();
+    }
+
+    void addBytesSent(final long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void addBytesReceived(final long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    @Override
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getClientErrors() {
+        return clientErrors.sum();
+    }
+
+    @Override
+    public long getServerErrors() {
+        return serverErrors.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    @Override
+    public long getOtherErrors() {
+        return otherErrors.sum();
+    }
+
+    @Override
+    public Map<Integer, Long> getStatusCounts() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        statusCounts.forEach((status, count) -> result.put(status, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public double getMeanLatency() {
+        return latencies.getMean();
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return latencies.getPercentile(0.5);
+    }
+
+    @Override
+    public long getLatencyP95() {
+        return latencies.getPercentile(0.95);
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return latencies.getPercentile(0.99);
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return latencies.getMax();
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        clientErrors.reset();
+        serverErrors.reset();
+        timeouts.reset();
+        connectionErrors.reset();
+        otherErrors.reset();
+        statusCounts.clear();
+        bytesSent.reset();
+        bytesReceived.reset();
+        latencies.reset();
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    private ClientMetrics copy() {
+        final ClientMetrics copy = new ClientMetrics(serverAddress, operation);
+        copy.calls.add(getCalls());
+        copy.clientErrors.add(getClientErrors());
+        copy.serverErrors.add(getServerErrors());
+        copy.timeouts.add(getTimeouts());
+        copy.connectionErrors.add(getConnectionErrors());
+        copy.otherErrors.add(getOtherErrors());
+        statusCounts.forEach(
+                (status, count) -> copy.statusCounts.computeIfAbsent(status, s -> new LongAdder()).add(count.sum()));
+        copy.bytesSent.add(getBytesSent());
+        copy.bytesReceived.add(getBytesReceived());
+        copy.latencies.add(latencies);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return serverAddress + ' ' + operation;
+    }
+
+    /**
+     * The metrics used by one client. They are released when the client is closed.
+     */
+    static final class Leases {
+
+        private final ConcurrentHashMap<Key, ClientMetrics> leased = new ConcurrentHashMap<>();
+
+        /**
+         * @param uri       the URI of the request
+         * @param operation the name of the operation, or null to use the method
+         * @param method    the HTTP method
+         * @return the metrics of the server and operation
+         */
+        ClientMetrics get(final URI uri, final Object operation, final String method) {
+            return leased.computeIfAbsent(key(uri, operation, method), ClientMetrics::acquire);
+        }
+
+        void release() {
+            leased.values().removeIf(metrics -> {
+                metrics.release();
+                return true;
+            });
+        }
+    }
+
+    private static final class Key {
+
+        private final String serverAddress;
+        private final String operation;
+        private final int hashCode;
+
+        private Key(final String serverAddress, final String operation) {
+            this.serverAddress = serverAddress;
+            this.operation = operation;
+            this.hashCode = Objects.hash(serverAddress, operation);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return serverAddress.equals(key.serverAddress) && operation.equals(key.operation);
+        }
+    }
+
+    /**
+     * A live view summing several metrics.
+     * The reset of the view does not reset the metrics, which are shared: the view keeps its own baseline.
+     */
+    private static final class Aggregate implements ClientMetricsMXBean {
+
+        private final String name;
+        private final Predicate<ClientMetrics> filter;
+        private volatile Map<ClientMetrics, ClientMetrics> baselines;
+
+        private Aggregate(final String name, final Predicate<ClientMetrics> filter) {
+            this.name = name;
+            this.filter = filter;
+            this.baselines = Map.of();
+        }
+
+        /**
+         * @return the value since the reset of the view, or the whole value if the metrics were reset since
+         */
+        private static long since(final long value, final long baseline) {
+            return value >= baseline ? value - baseline : value;
+        }
+
+        private ClientMetrics baseline(final ClientMetrics metrics) {
+            final ClientMetrics baseline = baselines.get(metrics);
+            return baseline == null || metrics.getCalls() < baseline.getCalls() ? null : baseline;
+        }
+
+        private List<ClientMetrics> metrics() {
+            final List<ClientMetrics> result = new ArrayList<>();
+            for (final ClientMetrics metrics : METRICS.values())
+                if (filter.test(metrics))
+                    result.add(metrics);
+            return result;
+        }
+
+        private long sum(final ToLongFunction<ClientMetrics> getter) {
+            long sum = 0;
+            for (final ClientMetrics metrics : metrics()) {
+                final ClientMetrics baseline = baseline(metrics);
+                sum += baseline == null ?
+                        getter.applyAsLong(metrics) :
+                        since(getter.applyAsLong(metrics), getter.applyAsLong(baseline));
+            }
+            return sum;
+        }
+
+        private LatencyHistogram latencies() {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            for (final ClientMetrics metrics : metrics()) {
+                histogram.add(metrics.latencies);
+                final ClientMetrics baseline = baseline(metrics);
+                if (baseline != null)
+                    histogram.subtract(baseline.latencies);
+            }
+            return histogram;
+        }
+
+        @Override
+        public String getServerAddress() {
+            return name;
+        }
+
+        @Override
+        public String getOperation() {
+            return "*";
+        }
+
+        @Override
+        public long getCalls() {
+            return sum(ClientMetrics::getCalls);
+        }
+
+        @Override
+        public long getClientErrors() {
+            return sum(ClientMetrics::getClientErrors);
+        }
+
+        @Override
+        public long getServerErrors() {
+            return sum(ClientMetrics::getServerErrors);
+        }
+
+        @Override
+        public long getTimeouts() {
+            return sum(ClientMetrics::getTimeouts);
+        }
+
+        @Override
+        public long getConnectionErrors() {
+            return sum(ClientMetrics::getConnectionErrors);
+        }
+
+        @Override
+        public long getOtherErrors() {
+            return sum(ClientMetrics::getOtherErrors);
+        }
+
+        @Override
+        public Map<Integer, Long> getStatusCounts() {
+            final Map<Integer, Long> result = new TreeMap<>();
+            for (final ClientMetrics metrics : metrics()) {
+                final ClientMetrics baseline = baseline(metrics);
+                final Map<Integer, Long> baselineCounts = baseline == null ? Map.of() : baseline.getStatusCounts();
+                metrics.getStatusCounts()
+                        .forEach((status, count) -> result.merge(status,
+                                since(count, baselineCounts.getOrDefault(status, 0L)), Long::sum));
+            }
+            return result;
+        }
+
+        @Override
+        public long getBytesSent() {
+            return sum(ClientMetrics::getBytesSent);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return sum(ClientMetrics::getBytesReceived);
+        }
+
+        @Override
+        public double getMeanLatency() {
+            return latencies().getMean();
+        }
+
+        @Override
+        public long getLatencyP50() {
+            return latencies().getPercentile(0.5);
+        }
+
+        @Override
+        public long getLatencyP95() {
+            return latencies().getPercentile(0.95);
+        }
+
+        @Override
+        public long getLatencyP99() {
+            return latencies().getPercentile(0.99);
+        }
+
+        @Override
+        public long getMaxLatency() {
+            return latencies().getMax();
+        }
+
+        @Override
+        public void reset() {
+            final Map<ClientMetrics, ClientMetrics> newBaselines = new IdentityHashMap<>();
+            for (final ClientMetrics metrics : metrics())
+                newBaselines.put(metrics, metrics.copy());
+            baselines = newBaselines;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes of the request and response bodies in the {@link ClientMetrics} of the call.
+ */
+final class ClientMetricsInterceptor implements WriterInterceptor, ReaderInterceptor {
+
+    @Override
+    public void aroundWriteTo(final WriterInterceptorContext context) throws IOException {
+        final Object metrics = context.getProperty(MeteredConnectorProvider.METRICS_PROPERTY);
+        if (metrics instanceof ClientMetrics)
+            context.setOutputStream(new CountingOutputStream(context.getOutputStream(), (ClientMetrics) metrics));
+        context.proceed();
+    }
+
+    @Override
+    public Object aroundReadFrom(final ReaderInterceptorContext context) throws IOException {
+        final Object metrics = context.getProperty(MeteredConnectorProvider.METRICS_PROPERTY);
+        if (metrics instanceof ClientMetrics)
+            context.setInputStream(new CountingInputStream(context.getInputStream(), (ClientMetrics) metrics));
+        return context.proceed();
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private final ClientMetrics metrics;
+
+        private CountingOutputStream(final OutputStream output, final ClientMetrics metrics) {
+            super(output);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            metrics.addBytesSent(1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            metrics.addBytesSent(len);
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final ClientMetrics metrics;
+
+        private CountingInputStream(final InputStream input, final ClientMetrics metrics) {
+            super(input);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1)
+                metrics.addBytesReceived(1);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0)
+                metrics.addBytesReceived(read);
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(n);
+            if (skipped > 0)
+                metrics.addBytesReceived(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import java.util.Map;
+
+public interface ClientMetricsMXBean {
+
+    /**
+     * @return the address of the remote server ({scheme}://{host}:{port})
+     */
+    String getServerAddress();
+
+    String getOperation();
+
+    long getCalls();
+
+    /**
+     * @return the number of calls answered by a 4xx status
+     */
+    long getClientErrors();
+
+    /**
+     * @return the number of calls answered by a 5xx status
+     */
+    long getServerErrors();
+
+    /**
+     * @return the number of calls which timed out (connection, pool or read timeout)
+     */
+    long getTimeouts();
+
+    /**
+     * @return the number of calls which could not reach the server
+     */
+    long getConnectionErrors();
+
+    /**
+     * @return the number of calls which failed without response for another reason
+     */
+    long getOtherErrors();
+
+    /**
+     * @return the number of calls by HTTP status
+     */
+    Map<Integer, Long> getStatusCounts();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * @return the mean time (microseconds) to get the response headers
+     */
+    double getMeanLatency();
+
+    long getLatencyP50();
+
+    long getLatencyP95();
+
+    long getLatencyP99();
+
+    long getMaxLatency();
+
+    void reset();
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RemoteService;
+import com.qwazr.server.configuration.ServerConfiguration;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines the order in which the clients of a MultiClient are tried.
+ */
+public interface ClientSelector {
+
+    /**
+     * @param stats the statistics of each client
+     * @return the indexes of the clients, in the order they should be tried
+     */
+    int[] select(ClientStats[] stats);
+
+    /**
+     * Uniform random order (the default)
+     */
+    ClientSelector RANDOM = Order::shuffle;
+
+    /**
+     * Between two random clients, the one with fewer outstanding calls is tried first.
+     */
+    ClientSelector POWER_OF_TWO_CHOICES = new PowerOfTwoChoices();
+
+    /**
+     * The client with the lowest moving average latency (weighted by its outstanding calls) is tried first.
+     */
+    ClientSelector EWMA_LATENCY = new EwmaLatency();
+
+    static ClientSelector weightedRoundRobin(final int... weights) {
+        return new WeightedRoundRobin(weights);
+    }
+
+    /**
+     * The clients of the local zone and group are tried first, then the clients sharing a group,
+     * then the remote clients. A saturated or failing client is tried after the healthy clients of every tier.
+     *
+     * @param remotes        the remote service of each client
+     * @param localGroups    the groups of the local server (QWAZR_GROUPS), may be empty
+     * @param localZone      the zone of the local server (QWAZR_ZONE), or null
+     * @param inner          the order of the clients inside a tier
+     * @param maxOutstanding the number of pending calls from which a client is saturated
+     * @param maxErrors      the number of consecutive errors from which a client is failing
+     * @return a new selector
+     */
+    static Locality locality(final RemoteService[] remotes, final Collection<String> localGroups,
+                             final String localZone, final ClientSelector inner, final int maxOutstanding,
+                             final int maxErrors) {
+        return new Locality(remotes, localGroups, localZone, inner, maxOutstanding, maxErrors);
+    }
+
+    /**
+     * @param remotes       the remote service of each client
+     * @param configuration the configuration of the local server, giving its groups and its zone
+     * @return a locality selector, see {@link #locality(RemoteService[], Collection, String, ClientSelector, int, int)}
+     */
+    static Locality locality(final RemoteService[] remotes, final ServerConfiguration configuration) {
+        return locality(remotes, configuration.groups, configuration.zone, POWER_OF_TWO_CHOICES,
+                Locality.DEFAULT_MAX_OUTSTANDING, Locality.DEFAULT_MAX_ERRORS);
+    }
+
+    final class Order {
+
+        static int[] shuffle(final ClientStats[] stats) {
+            final int[] order = new int[stats.length];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            shuffle(order, 0);
+            return order;
+        }
+
+        static void shuffle(final int[] order, final int from) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = order.length - 1; i > from; i--)
+                swap(order, i, from + random.nextInt(i - from + 1));
+        }
+
+        static void swap(final int[] order, final int i, final int j) {
+            final int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    final class PowerOfTwoChoices implements ClientSelector {
+
+        @Override
+        public int[] select(final ClientStats[] stats) {
+            final int[] order = Order.shuffle(stats);
+            if (order.length < 2)
+                return order;
+            final ClientStats first = stats[order[0]];
+            final ClientStats second = stats[order[1]];
+            final int cmp = Integer.compare(first.getOutstanding(), second.getOutstanding());
+            if (cmp > 0 || (cmp == 0 && first.getEwmaLatency() > second.getEwmaLatency()))
+                Order.swap(order, 0, 1);
+            return order;
+        }
+    }
+
+    final class EwmaLatency implements ClientSelector {
+
+        private static double cost(final ClientStats stats) {
+            return stats.getEwmaLatency() * (stats.getOutstanding() + 1);
+        }
+
+        @Override
+        public int[] select(final ClientStats[] stats) {
+            final int[] shuffled = Order.shuffle(stats);
+            // The costs are captured once, as they may change concurrently during the sort
+            final double[] costs = new double[stats.length];
+            for (int i = 0; i < costs.length; i++)
+                costs[i] = cost(stats[i]);
+            // Stable sort: the random order is kept between equal costs
+            return Arrays.stream(shuffled)
+                    .boxed()
+                    .sorted(Comparator.comparingDouble(i -> costs[i]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+    }
+
+    /**
+     * Smooth weighted round-robin: the schedule is computed once, then a shared cursor moves on the schedule.
+     */
+    final class WeightedRoundRobin implements ClientSelector {
+
+        private final int[] weights;
+        private final int[] schedule;
+        private final AtomicInteger cursor;
+
+        WeightedRoundRobin(final int... weights) {
+            if (weights == null || weights.length == 0)
+                throw new IllegalArgumentException("The weights are missing");
+            this.weights = weights.clone();
+            int total = 0;
+            for (int weight : weights) {
+                if (weight <= 0)
+                    throw new IllegalArgumentException("The weights must be positive");
+                total += weight;
+            }
+            schedule = new int[total];
+            final int[] current = new int[weights.length];
+            for (int s = 0; s < total; s++) {
+                int best = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    current[i] += weights[i];
+                    if (current[i] > current[best])
+                        best = i;
+                }
+                current[best] -= total;
+                schedule[s] = best;
+            }
+            cursor = new AtomicInteger();
+        }
+
+        @Override
+        public int[] select(final ClientStats[] stats) {
+            if (stats.length != weights.length)
+                throw new IllegalStateException(
+                        "Expected " + weights.length + " clients, but got " + stats.length);
+            final int start = Math.floorMod(cursor.getAndIncrement(), schedule.length);
+            final int[] order = new int[stats.length];
+            final boolean[] selected = new boolean[stats.length];
+            int count = 0;
+            // Follow the schedule, skipping the clients already selected
+            for (int s = 0; s < schedule.length && count < order.length; s++) {
+                final int pos = schedule[(start + s) % schedule.length];
+                if (selected[pos])
+                    continue;
+                selected[pos] = true;
+                order[count++] = pos;
+            }
+            return order;
+        }
+    }
+
+    /**
+     * Locality aware selection, with a spillover to the remote tiers.
+     */
+    final class Locality implements ClientSelector {
+
+        final static int DEFAULT_MAX_OUTSTANDING = 64;
+        final static int DEFAULT_MAX_ERRORS = 3;
+
+        private final static int TIERS = 3;
+
+        private final int[] tiers;
+        private final ClientSelector inner;
+        private final int maxOutstanding;
+        private final int maxErrors;
+        private final LongAdder selections;
+        private final LongAdder spillovers;
+
+        Locality(final RemoteService[] remotes, final Collection<String> localGroups, final String localZone,
+                 final ClientSelector inner, final int maxOutstanding, final int maxErrors) {
+            this.tiers = new int[remotes.length];
+            for (int i = 0; i < remotes.length; i++)
+                tiers[i] = tier(remotes[i], localGroups, localZone);
+            this.inner = inner == null ? RANDOM : inner;
+            this.maxOutstanding = maxOutstanding;
+            this.maxErrors = maxErrors;
+            this.selections = new LongAdder();
+            this.spillovers = new LongAdder();
+        }
+
+        /**
+         * @return 0 for the same zone and group, 1 for a shared group, 2 for a remote client
+         */
+        static int tier(final RemoteService remote, final Collection<String> localGroups, final String localZone) {
+            final boolean sameGroup = localGroups == null || localGroups.isEmpty() ||
+                    remote.groups.stream().anyMatch(localGroups::contains);
+            final boolean sameZone = localZone == null || localZone.equals(remote.zone);
+            if (sameGroup && sameZone)
+                return 0;
+            return sameGroup ? 1 : 2;
+        }
+
+        @Override
+        public int[] select(final ClientStats[] stats) {
+            if (stats.length != tiers.length)
+                throw new IllegalStateException("Expected " + tiers.length + " clients, but got " + stats.length);
+            final int[] order = inner.select(stats);
+            // The rank is captured once, as the statistics may change concurrently during the sort
+            final int[] ranks = new int[stats.length];
+            boolean hasLocal = false;
+            for (int i = 0; i < ranks.length; i++) {
+                final boolean healthy = stats[i].getOutstanding() < maxOutstanding &&
+                        stats[i].getConsecutiveErrors() < maxErrors;
+                ranks[i] = healthy ? tiers[i] : tiers[i] + TIERS;
+                if (tiers[i] == 0)
+                    hasLocal = true;
+            }
+            // Stable sort: the order of the inner selector is kept inside a tier
+            final int[] result = Arrays.stream(order)
+                    .boxed()
+                    .sorted(Comparator.comparingInt(i -> ranks[i]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            selections.increment();
+            if (hasLocal && result.length > 0 && ranks[result[0]] != 0)
+                spillovers.increment();
+            return result;
+        }
+
+        /**
+         * @param pos the position of a client
+         * @return the tier of the client: 0 local, 1 same group, 2 remote
+         */
+        public int getTier(final int pos) {
+            return tiers[pos];
+        }
+
+        public long getSelections() {
+            return selections.sum();
+        }
+
+        /**
+         * @return the number of selections where a local client exists but another client was tried first
+         */
+        public long getSpillovers() {
+            return spillovers.sum();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics of the calls made to one client of a MultiClient.
+ * Every update is lock-free.
+ */
+public final class ClientStats {
+
+    /**
+     * The weight of the last measure in the latency moving average
+     */
+    final static double EWMA_ALPHA = 0.3;
+
+    /**
+     * A failed call weighs at least as much as a call lasting this duration (milliseconds),
+     * and as much as twice the current average, so that a client failing fast does not look like the fastest one.
+     */
+    final static double FAILURE_MIN_LATENCY = 1000;
+    final static double FAILURE_PENALTY = 2;
+
+    private final String name;
+    private final AtomicInteger outstanding;
+    private final LongAdder calls;
+    private final LongAdder errors;
+    private final AtomicInteger consecutiveErrors;
+    private final AtomicLong ewmaBits;
+
+    ClientStats(final String name) {
+        this.name = name;
+        this.outstanding = new AtomicInteger();
+        this.calls = new LongAdder();
+        this.errors = new LongAdder();
+        this.consecutiveErrors = new AtomicInteger();
+        this.ewmaBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    }
+
+    /**
+     * Must be called before each call
+     *
+     * @return the start time (nanoseconds)
+     */
+    long begin() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Must be called after each call, unless the call was cancelled (see {@link #cancel()})
+     *
+     * @param startNanos the value returned by {@link #begin()}
+     * @param success    false if the call failed
+     */
+    void end(final long startNanos, final boolean success) {
+        outstanding.decrementAndGet();
+        calls.increment();
+        if (success)
+            consecutiveErrors.set(0);
+        else {
+            errors.increment();
+            consecutiveErrors.incrementAndGet();
+        }
+        final double elapsed = (System.nanoTime() - startNanos) / 1_000_000d;
+        long prevBits;
+        double next;
+        do {
+            prevBits = ewmaBits.get();
+            final double prev = Double.longBitsToDouble(prevBits);
+            final double latency =
+                    success ? elapsed : Math.max(FAILURE_MIN_LATENCY, Math.max(elapsed, prev) * FAILURE_PENALTY);
+            next = prev == 0 ? latency : prev + EWMA_ALPHA * (latency - prev);
+        } while (!ewmaBits.compareAndSet(prevBits, Double.doubleToRawLongBits(next)));
+    }
+
+    /**
+     * Must be called instead of {@link #end(long, boolean)} when the caller cancelled the call
+     * (ie: a losing hedge): the call is counted neither as a success nor as a failure.
+     */
+    void cancel() {
+        outstanding.decrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of pending calls
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the number of calls which failed since the last successful call
+     */
+    public int getConsecutiveErrors() {
+        return consecutiveErrors.get();
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the latency (milliseconds), 0 if unknown.
+     * The failed calls are penalized (see {@link #FAILURE_PENALTY}).
+     */
+    public double getEwmaLatency() {
+        return Double.longBitsToDouble(ewmaBits.get());
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.LatencyHistogram;
+import com.qwazr.server.RemoteService;
+import com.qwazr.utils.LoggerUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pooled HTTP transport shared by every JsonClient targeting the same server
+ * (same scheme, host, port and credentials).
+ * <p>
+ * The pool is keep-alive, bounded per route, and idle connections are evicted in the background.
+ * <p>
+ * The asynchronous calls (see {@link AsyncTransport}) use the non-blocking HTTP client of the transport.
+ * Their concurrent exchanges are bounded by the same limit per route: the exchanges beyond the limit are queued,
+ * without holding any thread, and their waiting time is recorded with the pool waits.
+ */
+public final class ClientTransport implements ClientTransportMXBean {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ClientTransport.class);
+
+    final static int MAX_CONNECTIONS;
+    final static int MAX_CONNECTIONS_PER_ROUTE;
+    final static int IDLE_TIMEOUT;
+
+    static {
+        MAX_CONNECTIONS = Integer.parseInt(System.getProperty("com.qwazr.server.client.max_connections", "200"));
+        MAX_CONNECTIONS_PER_ROUTE =
+                Integer.parseInt(System.getProperty("com.qwazr.server.client.max_connections_per_route", "20"));
+        IDLE_TIMEOUT = Integer.parseInt(System.getProperty("com.qwazr.server.client.idle_timeout", "30000"));
+    }
+
+    private final static ConcurrentHashMap<Key, ClientTransport> TRANSPORTS = new ConcurrentHashMap<>();
+
+    private final static AtomicInteger transportCounter = new AtomicInteger();
+
+    private static volatile ScheduledExecutorService evictor;
+
+    private final Key key;
+
+    final PoolingHttpClientConnectionManager connectionManager;
+
+    private final LatencyHistogram poolWaits;
+
+    final HttpClient asyncClient;
+
+    private final Semaphore asyncPermits;
+
+    private final Queue<Runnable> asyncWaiters;
+
+    private final ObjectName objectName;
+
+    private int references;
+
+    private ClientTransport(final Key key) {
+        this.key = key;
+        poolWaits = new LatencyHistogram();
+        connectionManager = new PoolingHttpClientConnectionManager(IDLE_TIMEOUT * 2L, TimeUnit.MILLISECONDS) {
+            @Override
+            public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+                return new TimedConnectionRequest(super.requestConnection(route, state), poolWaits);
+            }
+        };
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(2000);
+        asyncClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        asyncPermits = new Semaphore(MAX_CONNECTIONS_PER_ROUTE);
+        asyncWaiters = new ConcurrentLinkedQueue<>();
+        objectName = registerMBean(this);
+        references = 0;
+    }
+
+    /**
+     * Returns the shared transport for the given remote, creating it if required.
+     * Each call must be balanced by a call to {@link #release()}.
+     *
+     * @param remote the remote service
+     * @return the shared transport
+     */
+    static ClientTransport acquire(final RemoteService remote) {
+        checkEvictor();
+        return TRANSPORTS.compute(new Key(remote), (key, transport) -> {
+            if (transport == null)
+                transport = new ClientTransport(key);
+            transport.references++;
+            return transport;
+        });
+    }
+
+    /**
+     * Release the transport. The pool is shutdown when the last client releases it.
+     */
+    void release() {
+        TRANSPORTS.computeIfPresent(key, (k, transport) -> {
+            if (--transport.references > 0)
+                return transport;
+            transport.shutdown();
+            return null;
+        });
+    }
+
+    /**
+     * Open connections to the remote server in advance. The shared pool is kept alive,
+     * with the opened connections, until the returned handle is closed.
+     *
+     * @param remote      the remote service
+     * @param connections the number of connections to open
+     * @param timeoutMs   the connect timeout (milliseconds)
+     * @return a handle releasing the transport
+     * @throws IOException if a connection cannot be opened
+     */
+    public static Closeable warmUp(final RemoteService remote, final int connections, final int timeoutMs)
+            throws IOException {
+        final ClientTransport transport = acquire(remote);
+        try {
+            transport.openConnections(connections, timeoutMs);
+        } catch (IOException | RuntimeException e) {
+            transport.release();
+            throw e;
+        }
+        final AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true))
+                transport.release();
+        };
+    }
+
+    private void openConnections(final int count, final int timeoutMs) throws IOException {
+        HttpHost host = HttpHost.create(key.serverAddress);
+        final boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+        if (host.getPort() < 0)
+            host = new HttpHost(host.getHostName(), secure ? 443 : 80, host.getSchemeName());
+        // The same route as the one planned by the HTTP client, so the connections are reused by the calls
+        final HttpRoute route = new HttpRoute(host, null, secure);
+        final List<HttpClientConnection> connections = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                final HttpClientConnection connection =
+                        connectionManager.requestConnection(route, null).get(timeoutMs, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    final HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, timeoutMs, context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Connection warm-up interrupted: " + key.serverAddress);
+        } catch (ExecutionException e) {
+            throw new IOException("Connection warm-up failed: " + key.serverAddress, e.getCause());
+        } finally {
+            for (final HttpClientConnection connection : connections)
+                connectionManager.releaseConnection(connection, null, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Start an asynchronous exchange as soon as the number of concurrent exchanges is below the limit.
+     * The exchange must call {@link #releaseAsync()} when it is complete.
+     *
+     * @param exchange the task starting the exchange, which must not block
+     */
+    void executeAsync(final Runnable exchange) {
+        final long start = System.nanoTime();
+        asyncWaiters.add(() -> {
+            poolWaits.recordSince(start);
+            exchange.run();
+        });
+        drainAsyncWaiters();
+    }
+
+    /**
+     * Called when an asynchronous exchange is complete: the next queued exchange, if any, is started
+     */
+    void releaseAsync() {
+        asyncPermits.release();
+        drainAsyncWaiters();
+    }
+
+    private void drainAsyncWaiters() {
+        while (!asyncWaiters.isEmpty() && asyncPermits.tryAcquire()) {
+            final Runnable next = asyncWaiters.poll();
+            if (next == null) {
+                // Another thread took it
+                asyncPermits.release();
+                continue;
+            }
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot start the asynchronous call: " + e.getMessage());
+            }
+        }
+    }
+
+    private void shutdown() {
+        unregisterMBean(objectName);
+        connectionManager.shutdown();
+    }
+
+    /**
+     * @return the statistics of the active transports
+     */
+    public static Collection<ClientTransportMXBean> getTransports() {
+        return new ArrayList<>(TRANSPORTS.values());
+    }
+
+    private static void checkEvictor() {
+        if (evictor != null)
+            return;
+        synchronized (TRANSPORTS) {
+            if (evictor != null)
+                return;
+            final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "qwazr-client-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long period = Math.max(1000, IDLE_TIMEOUT / 2);
+            executor.scheduleWithFixedDelay(ClientTransport::evictIdleConnections, period, period,
+                    TimeUnit.MILLISECONDS);
+            evictor = executor;
+        }
+    }
+
+    private static void evictIdleConnections() {
+        for (final ClientTransport transport : TRANSPORTS.values()) {
+            try {
+                transport.connectionManager.closeExpiredConnections();
+                transport.connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Idle connection eviction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static ObjectName registerMBean(final ClientTransport transport) {
+        try {
+            final Hashtable<String, String> props = new Hashtable<>();
+            props.put("type", "transport");
+            props.put("name", ObjectName.quote(transport.key.serverAddress));
+            props.put("id", Integer.toString(transportCounter.incrementAndGet()));
+            final ObjectName name = new ObjectName("com.qwazr.server.client", props);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(transport, name);
+            return name;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot register the transport MBean: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void unregisterMBean(final ObjectName objectName) {
+        if (objectName == null)
+            return;
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbs.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    @Override
+    public String getServerAddress() {
+        return key.serverAddress;
+    }
+
+    @Override
+    public int getReferenceCount() {
+        return references;
+    }
+
+    private PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getPendingConnections() {
+        return getTotalStats().getPending();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return connectionManager.getMaxTotal();
+    }
+
+    @Override
+    public int getMaxConnectionsPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    /**
+     * @return the time spent by the calls waiting for a connection of the pool, in microseconds
+     */
+    public LatencyHistogram getPoolWaits() {
+        return poolWaits;
+    }
+
+    @Override
+    public long getPoolWaitCount() {
+        return poolWaits.getCount();
+    }
+
+    @Override
+    public double getPoolWaitMean() {
+        return poolWaits.getMean();
+    }
+
+    @Override
+    public long getPoolWaitP99() {
+        return poolWaits.getPercentile(0.99);
+    }
+
+    @Override
+    public long getPoolWaitMax() {
+        return poolWaits.getMax();
+    }
+
+    @Override
+    public String toString() {
+        return key.serverAddress;
+    }
+
+    /**
+     * Measures the time spent waiting for a connection lease
+     */
+    private static final class TimedConnectionRequest implements ConnectionRequest {
+
+        private final ConnectionRequest request;
+        private final LatencyHistogram poolWaits;
+
+        private TimedConnectionRequest(final ConnectionRequest request, final LatencyHistogram poolWaits) {
+            this.request = request;
+            this.poolWaits = poolWaits;
+        }
+
+        @Override
+        public HttpClientConnection get(final long timeout, final TimeUnit timeUnit)
+                throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+            final long start = System.nanoTime();
+            try {
+                return request.get(timeout, timeUnit);
+            } finally {
+                poolWaits.recordSince(start);
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            return request.cancel();
+        }
+    }
+
+    private static final class Key {
+
+        private final String serverAddress;
+        private final String username;
+        private final String password;
+        private final int hashCode;
+
+        private Key(final RemoteService remote) {
+            this.serverAddress = remote.serverAddress;
+            this.username = remote.username;
+            this.password = remote.password;
+            this.hashCode = Objects.hash(serverAddress, username, password);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key))
+                return false;
+            if (this == o)
+                return true;
+            final Key k = (Key) o;
+            return Objects.equals(serverAddress, k.serverAddress) && Objects.equals(username, k.username) &&
+                    Objects.equals(password, k.password);
+        }
+    }
+}
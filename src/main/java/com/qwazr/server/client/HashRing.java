@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * An immutable consistent-hash ring, mapping a key to an owner node and its replicas.
+ * <p>
+ * Each node is placed on the ring as many virtual nodes, proportionally to its weight.
+ * The position of a node only depends on its name: when a node joins or leaves the ring
+ * (see {@link #with(Object, int)} and {@link #without(Object)}), only the keys of this node move.
+ * <p>
+ * With a bounded load factor, a node whose load exceeds the factor times its fair share is skipped,
+ * and its keys spill over to the next nodes of the ring.
+ *
+ * @param <T> the type of the nodes (usually a RemoteService or a JsonClient)
+ */
+public final class HashRing<T> {
+
+    private final List<T> nodes;
+    private final int[] weights;
+    private final Function<T, String> naming;
+    private final int virtualNodes;
+    private final double loadFactor;
+    private final int totalWeight;
+
+    private final long[] points;
+    private final int[] owners;
+
+    private HashRing(final List<T> nodes, final int[] weights, final Function<T, String> naming,
+                     final int virtualNodes, final double loadFactor) {
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.weights = weights;
+        this.naming = naming;
+        this.virtualNodes = virtualNodes;
+        this.loadFactor = loadFactor;
+
+        int total = 0;
+        for (final int weight : weights)
+            total += weight;
+        this.totalWeight = total;
+
+        // Place the virtual nodes, then sort them by position
+        final long[][] entries = new long[total * virtualNodes][];
+        final Set<String> names = new HashSet<>();
+        int e = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            final String name = naming.apply(nodes.get(node));
+            if (!names.add(name))
+                throw new IllegalArgumentException("Duplicate node: " + name);
+            for (int v = 0; v < weights[node] * virtualNodes; v++)
+                entries[e++] = new long[] { hash(name + '#' + v), node };
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[entries.length];
+        this.owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * A 64 bits FNV-1a hash followed by the MurmurHash3 finalizer, for a uniform distribution of the positions
+     */
+    static long hash(final String value) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param key the key
+     * @return the owner of the key, or null if the ring is empty
+     */
+    public T owner(final String key) {
+        final int[] order = lookupIndexes(key, 1, null);
+        return order.length == 0 ? null : nodes.get(order[0]);
+    }
+
+    /**
+     * @param key      the key
+     * @param replicas the number of nodes to return (the owner and its replicas)
+     * @return the distinct nodes following the key on the ring, the owner first
+     */
+    public List<T> lookup(final String key, final int replicas) {
+        return lookup(key, replicas, null);
+    }
+
+    /**
+     * @param key      the key
+     * @param replicas the number of nodes to return (the owner and its replicas)
+     * @param load     the current load of a node (ie: its outstanding calls), used by the bounded load variant
+     * @return the distinct nodes following the key on the ring, the owner first.
+     * The overloaded nodes are moved after the others.
+     */
+    public List<T> lookup(final String key, final int replicas, final ToIntFunction<T> load) {
+        final int[] order =
+                lookupIndexes(key, replicas, load == null ? null : node -> load.applyAsInt(nodes.get(node)));
+        final List<T> result = new ArrayList<>(order.length);
+        for (final int node : order)
+            result.add(nodes.get(node));
+        return result;
+    }
+
+    /**
+     * @return the indexes of the nodes, see {@link #lookup(String, int, ToIntFunction)}
+     */
+    int[] lookupIndexes(final String key, final int replicas, final IntLoad load) {
+        final int count = Math.min(Math.max(replicas, 0), nodes.size());
+        if (count == 0)
+            return new int[0];
+        final boolean bounded = load != null && loadFactor > 0;
+        final int wanted = bounded ? nodes.size() : count;
+
+        // Walk clockwise from the position of the key, collecting the distinct nodes
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0)
+            start = -start - 1;
+        final int[] walk = new int[wanted];
+        final boolean[] seen = new boolean[nodes.size()];
+        int found = 0;
+        for (int i = 0; i < points.length && found < wanted; i++) {
+            final int node = owners[(start + i) % points.length];
+            if (!seen[node]) {
+                seen[node] = true;
+                walk[found++] = node;
+            }
+        }
+        if (!bounded)
+            return walk;
+
+        // Bounded load: the nodes over their capacity are tried last
+        long totalLoad = 0;
+        final int[] loads = new int[nodes.size()];
+        for (int node = 0; node < loads.length; node++)
+            totalLoad += loads[node] = load.load(node);
+        final int[] result = new int[count];
+        int r = 0;
+        for (int pass = 0; pass < 2 && r < count; pass++) {
+            for (int i = 0; i < found && r < count; i++) {
+                final int node = walk[i];
+                final double capacity = Math.ceil(loadFactor * (totalLoad + 1) * weights[node] / totalWeight);
+                if ((loads[node] < capacity) == (pass == 0))
+                    result[r++] = node;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param node   the joining node
+     * @param weight the weight of the node
+     * @return a new ring including the node
+     */
+    public HashRing<T> with(final T node, final int weight) {
+        Objects.requireNonNull(node, "The node is null");
+        final List<T> newNodes = new ArrayList<>(nodes);
+        newNodes.add(node);
+        final int[] newWeights = Arrays.copyOf(weights, weights.length + 1);
+        newWeights[weights.length] = checkWeight(weight);
+        return new HashRing<>(newNodes, newWeights, naming, virtualNodes, loadFactor);
+    }
+
+    /**
+     * @param node the leaving node
+     * @return a new ring without the node (compared by name)
+     */
+    public HashRing<T> without(final T node) {
+        final String name = naming.apply(node);
+        final List<T> newNodes = new ArrayList<>(nodes.size());
+        final int[] newWeights = new int[weights.length];
+        int n = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (name.equals(naming.apply(nodes.get(i))))
+                continue;
+            newNodes.add(nodes.get(i));
+            newWeights[n++] = weights[i];
+        }
+        return new HashRing<>(newNodes, Arrays.copyOf(newWeights, n), naming, virtualNodes, loadFactor);
+    }
+
+    private static int checkWeight(final int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("The weight should be greater than zero");
+        return weight;
+    }
+
+    @FunctionalInterface
+    interface IntLoad {
+        int load(int node);
+    }
+
+    /**
+     * @param nodes the nodes, named by their toString() method (the service address for a RemoteService)
+     * @param <T>   the type of the nodes
+     * @return a new builder
+     */
+    @SafeVarargs
+    public static <T> Builder<T> of(final T... nodes) {
+        return new Builder<>(nodes == null ? Collections.emptyList() : Arrays.asList(nodes));
+    }
+
+    public static class Builder<T> {
+
+        private final List<T> nodes;
+        private int[] weights;
+        private Function<T, String> naming = String::valueOf;
+        private int virtualNodes = 160;
+        private double loadFactor = 0;
+
+        private Builder(final List<T> nodes) {
+            this.nodes = new ArrayList<>(nodes);
+        }
+
+        /**
+         * @param naming the name of a node, which gives its position on the ring (default: toString())
+         * @return the current builder
+         */
+        public Builder<T> naming(final Function<T, String> naming) {
+            this.naming = Objects.requireNonNull(naming, "The naming function is null");
+            return this;
+        }
+
+        /**
+         * @param virtualNodes the number of virtual nodes for a weight of 1 (default: 160)
+         * @return the current builder
+         */
+        public Builder<T> virtualNodes(final int virtualNodes) {
+            if (virtualNodes < 1)
+                throw new IllegalArgumentException("The number of virtual nodes should be greater than zero");
+            this.virtualNodes = virtualNodes;
+            return this;
+        }
+
+        /**
+         * @param weights the weight of each node, in the order of the nodes (default: 1)
+         * @return the current builder
+         */
+        public Builder<T> weights(final int... weights) {
+            if (weights.length != nodes.size())
+                throw new IllegalArgumentException("One weight is expected for each node");
+            for (final int weight : weights)
+                checkWeight(weight);
+            this.weights = weights.clone();
+            return this;
+        }
+
+        /**
+         * Enable the bounded load variant
+         *
+         * @param loadFactor the maximum load of a node, relative to its fair share (ie: 1.25)
+         * @return the current builder
+         */
+        public Builder<T> boundedLoad(final double loadFactor) {
+            if (loadFactor < 1)
+                throw new IllegalArgumentException("The load factor should be at least 1");
+            this.loadFactor = loadFactor;
+            return this;
+        }
+
+        public HashRing<T> build() {
+            final int[] w = weights != null ? weights : new int[nodes.size()];
+            if (weights == null)
+                Arrays.fill(w, 1);
+            return new HashRing<>(nodes, w, naming, virtualNodes, loadFactor);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines when a hedged (duplicated) call is sent to another replica,
+ * and keeps the statistics of the hedged calls.
+ * <p>
+ * The hedges are limited by a budget: each call earns a fraction of a token, each hedge costs one token.
+ * An instance is expected to be shared by every call of one MultiClient.
+ * <p>
+ * The adaptive delay is a percentile of the latencies of the calls, measured from the start of their first attempt,
+ * over the last two windows: it follows the changes of the latency.
+ */
+public class HedgePolicy {
+
+    private final static long TOKEN = 1000;
+
+    private final long delayMs;
+    private final Double percentile;
+    private final int minSamples;
+    private final long windowNanos;
+    private final long budgetPerCall;
+    private final long maxTokens;
+    private final int maxHedges;
+
+    private final AtomicReference<Window> window;
+    private final AtomicLong tokens;
+    private final LongAdder calls;
+    private final LongAdder hedges;
+    private final LongAdder hedgeWins;
+    private final LongAdder budgetExhausted;
+
+    private HedgePolicy(final Builder builder) {
+        this.delayMs = builder.delayMs;
+        this.percentile = builder.percentile;
+        this.minSamples = builder.minSamples;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(builder.windowMs);
+        this.budgetPerCall = (long) (builder.budget * TOKEN);
+        this.maxTokens = builder.maxBurst * TOKEN;
+        this.maxHedges = builder.maxHedges;
+        this.window = new AtomicReference<>(new Window(null, System.nanoTime()));
+        this.tokens = new AtomicLong(maxTokens);
+        this.calls = new LongAdder();
+        this.hedges = new LongAdder();
+        this.hedgeWins = new LongAdder();
+        this.budgetExhausted = new LongAdder();
+    }
+
+    /**
+     * @return the delay (milliseconds) after which a hedged call is sent
+     */
+    public long getDelayMs() {
+        if (percentile == null)
+            return delayMs;
+        final LatencyHistogram latencies = getLatencies();
+        if (latencies.getCount() < minSamples)
+            return delayMs;
+        return Math.max(1, latencies.getPercentile(percentile) / 1000);
+    }
+
+    int getMaxHedges() {
+        return maxHedges;
+    }
+
+    void onCall() {
+        calls.increment();
+        tokens.accumulateAndGet(budgetPerCall, (current, add) -> Math.min(maxTokens, current + add));
+    }
+
+    boolean tryHedge() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                budgetExhausted.increment();
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        hedges.increment();
+        return true;
+    }
+
+    /**
+     * @param latencyMicros the latency of the call, from the start of its first attempt.
+     *                      A primary call which lost to a hedge is accounted at least for the hedge delay.
+     * @param hedgeWin      true if a hedged call won
+     */
+    void onSuccess(final long latencyMicros, final boolean hedgeWin) {
+        currentWindow().current.record(latencyMicros);
+        if (hedgeWin)
+            hedgeWins.increment();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    public long getBudgetExhausted() {
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * @return the ratio of calls which were hedged
+     */
+    public double getHedgeRate() {
+        final long c = calls.sum();
+        return c == 0 ? 0 : (double) hedges.sum() / c;
+    }
+
+    /**
+     * @return a copy of the latencies (microseconds) of the calls recorded over the last two windows
+     */
+    public LatencyHistogram getLatencies() {
+        final Window w = currentWindow();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        latencies.add(w.current);
+        if (w.previous != null)
+            latencies.add(w.previous);
+        return latencies;
+    }
+
+    private Window currentWindow() {
+        final long now = System.nanoTime();
+        Window w = window.get();
+        while (now - w.startNanos >= windowNanos) {
+            // A window older than two windows is dropped
+            final Window next = new Window(now - w.startNanos >= 2 * windowNanos ? null : w.current, now);
+            if (window.compareAndSet(w, next))
+                return next;
+            w = window.get();
+        }
+        return w;
+    }
+
+    private final static class Window {
+
+        private final LatencyHistogram current;
+        private final LatencyHistogram previous;
+        private final long startNanos;
+
+        private Window(final LatencyHistogram previous, final long startNanos) {
+            this.current = new LatencyHistogram();
+            this.previous = previous;
+            this.startNanos = startNanos;
+        }
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private long delayMs = 100;
+        private Double percentile = null;
+        private int minSamples = 20;
+        private long windowMs = 60_000;
+        private double budget = 0.1;
+        private int maxBurst = 10;
+        private int maxHedges = 1;
+
+        /**
+         * @param delayMs the fixed delay (milliseconds) before sending a hedged call.
+         *                With an adaptive delay, this value is used until enough samples are collected.
+         * @return the current builder
+         */
+        public Builder delay(final long delayMs) {
+            this.delayMs = delayMs;
+            return this;
+        }
+
+        /**
+         * Use an adaptive delay, based on the observed latency
+         *
+         * @param percentile the percentile of the observed latency (ie: 0.95)
+         * @param minSamples the number of latencies collected before the adaptive delay is used
+         * @return the current builder
+         */
+        public Builder adaptive(final double percentile, final int minSamples) {
+            this.percentile = percentile;
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Use an adaptive delay, based on the latency observed over the last two windows
+         *
+         * @param percentile the percentile of the observed latency (ie: 0.95)
+         * @param minSamples the number of latencies collected before the adaptive delay is used
+         * @param windowMs   the duration of a window (milliseconds), 60 seconds by default
+         * @return the current builder
+         */
+        public Builder adaptive(final double percentile, final int minSamples, final long windowMs) {
+            this.windowMs = windowMs;
+            return adaptive(percentile, minSamples);
+        }
+
+        /**
+         * @param budget   the maximum ratio of hedged calls (ie: 0.1 for 10%)
+         * @param maxBurst the maximum number of hedges which can be sent in a burst
+         * @return the current builder
+         */
+        public Builder budget(final double budget, final int maxBurst) {
+            this.budget = budget;
+            this.maxBurst = maxBurst;
+            return this;
+        }
+
+        /**
+         * @param maxHedges the maximum number of hedged calls sent for one call
+         * @return the current builder
+         */
+        public Builder maxHedges(final int maxHedges) {
+            this.maxHedges = maxHedges;
+            return this;
+        }
+
+        public HedgePolicy build() {
+            return new HedgePolicy(this);
+        }
+    }
+}
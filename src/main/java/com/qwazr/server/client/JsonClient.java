@@ -18,14 +18,33 @@ package com.qwazr.server.client;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
 import com.qwazr.server.RemoteService;
+import com.qwazr.server.ServiceInterface;
+import com.qwazr.utils.HashUtils;
+import com.qwazr.utils.ObjectMappers;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
 
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 public class JsonClient implements Closeable {
 
@@ -38,14 +57,50 @@ public class JsonClient implements Closeable {
 
     protected final RemoteService remote;
 
+    /**
+     * The timeout (milliseconds) applied to the calls
+     */
+    protected final int timeout;
+
     final protected Client client;
 
+    private final ClientTransport transport;
+
+    private final AsyncTransport asyncTransport;
+
+    private final AtomicBoolean closed;
+
+    private final SingleFlight singleFlight;
+
+    /**
+     * What, besides the request itself, changes the response of a coalesced call:
+     * the identity of the credentials and the negotiated formats
+     */
+    private final List<Object> coalescingContext;
+
     protected JsonClient(final RemoteService remote) {
+        this(remote, null);
+    }
+
+    protected JsonClient(final RemoteService remote, final Options options) {
         this.remote = Objects.requireNonNull(remote, "The remote parameter is null");
+        this.transport = ClientTransport.acquire(remote);
+        this.closed = new AtomicBoolean(false);
+        final Options opts = options == null ? Options.DEFAULT : options;
+        this.singleFlight = opts.coalescing ? new SingleFlight() : null;
+        final String identity = remote.isCredential() ?
+                remote.username + ':' + HashUtils.getMurmur3Hash32Hex(Objects.toString(remote.password)) :
+                null;
+        this.coalescingContext = Arrays.asList(identity, opts.smile);
 
         final ClientConfig clientConfig = new ClientConfig();
         clientConfig.register(JacksonJsonProvider.class).register(JacksonSmileProvider.class);
 
+        // The connection pool is shared by all the clients targeting the same server
+        clientConfig.connectorProvider(new MeteredConnectorProvider(new ApacheConnectorProvider()));
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, transport.connectionManager);
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER_SHARED, true);
+
         if (remote.isCredential()) {
             final HttpAuthenticationFeature feature = HttpAuthenticationFeature.basicBuilder()
                     .nonPreemptive()
@@ -54,16 +109,142 @@ public class JsonClient implements Closeable {
             clientConfig.register(feature);
         }
 
-        final int timeout = remote.timeout != null ? remote.timeout : DEFAULT_TIMEOUT;
+        timeout = remote.timeout != null ? remote.timeout : DEFAULT_TIMEOUT;
+
+        // The client-side metrics (see ClientMetrics)
+        clientConfig.register(new ClientMetricsInterceptor());
+
+        // The calls are bounded by the deadline of the current request, if any
+        clientConfig.register(new RequestDeadlineFilter(timeout));
+
+        // The calls are traced as children of the span of the current request, if any
+        clientConfig.register(new RequestTraceFilter());
+
+        if (opts.responseCache != null) {
+            // A shared cache never serves the responses received with other credentials
+            if (identity != null)
+                clientConfig.property(ResponseCache.IDENTITY_PROPERTY, identity);
+            clientConfig.register(opts.responseCache);
+        }
+
+        // The Smile negotiation is shared by the synchronous and the asynchronous calls
+        final SmileClientFilter smileFilter = opts.smile ? new SmileClientFilter() : null;
+        if (smileFilter != null)
+            clientConfig.register(smileFilter);
+        asyncTransport = new AsyncTransport(remote, transport, smileFilter);
 
         client = ClientBuilder.newClient(clientConfig);
         client.property(ClientProperties.CONNECT_TIMEOUT, timeout);
         client.property(ClientProperties.READ_TIMEOUT, timeout);
+    }
+
+    /**
+     * Execute a call without blocking any thread while it is pending (see AsyncTransport).
+     * The call is bounded by the timeout of the remote service, or by the deadline of the current request,
+     * and is aborted when the returned future is cancelled.
+     *
+     * @param method the HTTP method
+     * @param target the target of the request
+     * @param body   the body serialized in JSON (or Smile if negotiated), or null
+     * @param type   the type of the result
+     * @param <T>    the type of the result
+     * @return a future completed by the result, or exceptionally on error or timeout
+     */
+    protected <T> CompletableFuture<T> sendAsync(final String method, final WebTarget target, final Object body,
+                                                 final Class<T> type) {
+        return asyncTransport.send(timeout, method, target.getUri(), body,
+                ObjectMappers.JSON.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * @see #sendAsync(String, WebTarget, Object, Class)
+     */
+    protected <T> CompletableFuture<T> sendAsync(final String method, final WebTarget target, final Object body,
+                                                 final GenericType<T> type) {
+        return asyncTransport.send(timeout, method, target.getUri(), body,
+                ObjectMappers.JSON.getTypeFactory().constructType(type.getType()));
+    }
+
+    /**
+     * Execute a GET request.
+     * When the coalescing is enabled, the identical concurrent requests (same URI, accepted media type,
+     * result type and credentials) share one call and its decoded result, which must then be treated as immutable.
+     * The callers waiting for the shared call are bounded by the timeout of the client and by their own deadline,
+     * and they call the server again when the shared call failed because of the deadline of its caller.
+     *
+     * @param target the target of the request
+     * @param accept the accepted media type
+     * @param type   the type of the result
+     * @param <T>    the type of the result
+     * @return the decoded result
+     */
+    protected <T> T get(final WebTarget target, final String accept, final Class<T> type) {
+        final Supplier<T> call = () -> target.request(accept).get(type);
+        return singleFlight == null ? call.get() : singleFlight.execute(key(target, accept, type), timeout, call);
+    }
+
+    /**
+     * @see #get(WebTarget, String, Class)
+     */
+    protected <T> T get(final WebTarget target, final String accept, final GenericType<T> type) {
+        final Supplier<T> call = () -> target.request(accept).get(type);
+        return singleFlight == null ?
+                call.get() :
+                singleFlight.execute(key(target, accept, type.getType()), timeout, call);
+    }
+
+    /**
+     * Execute a GET request returning a collection (a JSON array or NDJSON, see JsonStreamWriter),
+     * and parse the elements lazily: the whole collection is never held in memory.
+     * The iterator should be closed if it is not read until the end.
+     *
+     * @param target the target of the request
+     * @param type   the type of the elements
+     * @param <T>    the type of the elements
+     * @return a lazily parsed iterator
+     * @throws IOException if the response cannot be parsed
+     */
+    protected <T> JsonStreamIterator<T> getIterator(final WebTarget target, final Class<T> type) throws IOException {
+        final Response response =
+                target.request(ServiceInterface.APPLICATION_NDJSON, MediaType.APPLICATION_JSON + ";q=0.9").get();
+        try {
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL)
+                throw new WebApplicationException(response);
+            final InputStream input = response.readEntity(InputStream.class);
+            return new JsonStreamIterator<>(response, ObjectMappers.JSON.readerFor(type).readValues(input));
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    private List<Object> key(final WebTarget target, final String accept, final Type type) {
+        return Arrays.asList(HttpMethod.GET, target.getUri(), accept, type, coalescingContext);
+    }
 
+    /**
+     * @return the coalescing statistics, or null if the coalescing is not enabled
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * @return the metrics of the calls made to the remote server, one per operation
+     */
+    public List<ClientMetricsMXBean> getMetrics() {
+        return ClientMetrics.getAll(remote.serverAddress);
     }
 
     public void close() {
-        client.close();
+        if (!closed.compareAndSet(false, true))
+            return;
+        try {
+            client.close();
+        } finally {
+            asyncTransport.close();
+            transport.release();
+        }
     }
 
     @Override
@@ -71,4 +252,64 @@ public class JsonClient implements Closeable {
         return remote.toString();
     }
 
+    /**
+     * The optional features of a JsonClient
+     */
+    public static class Options {
+
+        final static Options DEFAULT = of().build();
+
+        final boolean coalescing;
+        final ResponseCache responseCache;
+        final boolean smile;
+
+        private Options(final Builder builder) {
+            this.coalescing = builder.coalescing;
+            this.responseCache = builder.responseCache;
+            this.smile = builder.smile;
+        }
+
+        public static Builder of() {
+            return new Builder();
+        }
+
+        public static class Builder {
+
+            private boolean coalescing;
+            private ResponseCache responseCache;
+            private boolean smile;
+
+            /**
+             * @param coalescing true to share one call between the identical concurrent GET requests
+             * @return the current builder
+             */
+            public Builder coalescing(final boolean coalescing) {
+                this.coalescing = coalescing;
+                return this;
+            }
+
+            /**
+             * @param responseCache a HTTP cache for the GET requests, which may be shared by several clients
+             * @return the current builder
+             */
+            public Builder responseCache(final ResponseCache responseCache) {
+                this.responseCache = responseCache;
+                return this;
+            }
+
+            /**
+             * @param smile true to exchange Smile (binary JSON) with the remote QWAZR node, with a fallback to JSON.
+             *              Disabled by default: the remote node must register RestApplication.SMILE_CLASSES.
+             * @return the current builder
+             */
+            public Builder smile(final boolean smile) {
+                this.smile = smile;
+                return this;
+            }
+
+            public Options build() {
+                return new Options(this);
+            }
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazily parsed iterator over a JSON array or a NDJSON response.
+ * The elements are parsed one by one while iterating.
+ * The response is released when the iteration is done, or when the iterator is closed.
+ *
+ * @param <T> the type of the elements
+ */
+public final class JsonStreamIterator<T> implements Iterator<T>, Closeable {
+
+    private final Response response;
+    private final MappingIterator<T> iterator;
+    private boolean closed;
+
+    JsonStreamIterator(final Response response, final MappingIterator<T> iterator) {
+        this.response = response;
+        this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed)
+            return false;
+        final boolean hasNext;
+        try {
+            hasNext = iterator.hasNextValue();
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        if (!hasNext)
+            close();
+        return hasNext;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            return iterator.nextValue();
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            iterator.close();
+        } catch (IOException e) {
+            // The response is closed anyway
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Configuration;
+import java.util.concurrent.Future;
+
+/**
+ * Wraps the connectors of another provider to collect the {@link ClientMetrics} of each call.
+ * The latency is the time spent to send the request and receive the response headers.
+ * The trace span of a call failing without response is also recorded here (see {@link RequestTraceFilter}).
+ */
+final class MeteredConnectorProvider implements ConnectorProvider {
+
+    /**
+     * The request property holding the metrics of the call, read by the {@link ClientMetricsInterceptor}
+     */
+    final static String METRICS_PROPERTY = MeteredConnectorProvider.class.getName() + ".metrics";
+
+    private final ConnectorProvider provider;
+
+    MeteredConnectorProvider(final ConnectorProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Connector getConnector(final Client client, final Configuration runtimeConfig) {
+        return new MeteredConnector(provider.getConnector(client, runtimeConfig));
+    }
+
+    private static final class MeteredConnector implements Connector {
+
+        private final Connector connector;
+        private final ClientMetrics.Leases metrics;
+
+        private MeteredConnector(final Connector connector) {
+            this.connector = connector;
+            this.metrics = new ClientMetrics.Leases();
+        }
+
+        private ClientMetrics metrics(final ClientRequest request) {
+            final ClientMetrics metrics =
+                    this.metrics.get(request.getUri(), request.getProperty(ClientMetrics.OPERATION),
+                            request.getMethod());
+            request.setProperty(METRICS_PROPERTY, metrics);
+            return metrics;
+        }
+
+        @Override
+        public ClientResponse apply(final ClientRequest request) {
+            final ClientMetrics metrics = metrics(request);
+            final long start = System.nanoTime();
+            final ClientResponse response;
+            try {
+                response = connector.apply(request);
+            } catch (RuntimeException e) {
+                metrics.onFailure(start, e);
+                RequestTraceFilter.failed(request);
+                throw e;
+            }
+            metrics.onResponse(start, response.getStatus());
+            return response;
+        }
+
+        @Override
+        public Future<?> apply(final ClientRequest request, final AsyncConnectorCallback callback) {
+            final ClientMetrics metrics = metrics(request);
+            final long start = System.nanoTime();
+            return connector.apply(request, new AsyncConnectorCallback() {
+
+                @Override
+                public void response(final ClientResponse response) {
+                    metrics.onResponse(start, response.getStatus());
+                    callback.response(response);
+                }
+
+                @Override
+                public void failure(final Throwable failure) {
+                    metrics.onFailure(start, failure);
+                    RequestTraceFilter.failed(request);
+                    callback.failure(failure);
+                }
+            });
+        }
+
+        @Override
+        public String getName() {
+            return connector.getName();
+        }
+
+        @Override
+        public void close() {
+            try {
+                connector.close();
+            } finally {
+                metrics.release();
+            }
+        }
+    }
+}
@@ -15,18 +15,40 @@
  */
 package com.qwazr.server.client;
 
+import com.qwazr.server.RemoteService;
+import com.qwazr.server.RequestDeadline;
+import com.qwazr.server.RequestTrace;
 import com.qwazr.utils.RandomArrayIterator;
 import com.qwazr.utils.concurrent.FunctionEx;
 
+import javax.management.ObjectName;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 /**
@@ -38,6 +60,13 @@ public class MultiClient<T> implements Iterable<T> {
 
     private final ExecutorService executorService;
     private final T[] clients;
+    private final ClientStats[] stats;
+    private final ClientSelector selector;
+    private final CircuitBreaker[] breakers;
+    private final ClientMetricsMXBean metrics;
+    private final Map<T, Integer> positions;
+    private final Map<String, Integer> namePositions;
+    private ObjectName metricsObjectName;
 
     /**
      * Create a new multi client with given clients
@@ -46,8 +75,54 @@ public class MultiClient<T> implements Iterable<T> {
      * @param executorService an externally maintained executor service
      */
     protected MultiClient(final T[] clients, final ExecutorService executorService) {
+        this(clients, executorService, ClientSelector.RANDOM);
+    }
+
+    /**
+     * Create a new multi client with given clients
+     *
+     * @param clients         an array of client
+     * @param executorService an externally maintained executor service
+     * @param selector        the strategy defining in which order the clients are tried
+     */
+    protected MultiClient(final T[] clients, final ExecutorService executorService, final ClientSelector selector) {
+        this(clients, executorService, selector, null);
+    }
+
+    /**
+     * Create a new multi client with given clients, each client being protected by a circuit breaker
+     *
+     * @param clients         an array of client
+     * @param executorService an externally maintained executor service
+     * @param selector        the strategy defining in which order the clients are tried
+     * @param circuitBreaker  the settings of the circuit breakers, or null to disable them
+     */
+    protected MultiClient(final T[] clients, final ExecutorService executorService, final ClientSelector selector,
+                          final CircuitBreaker.Builder circuitBreaker) {
         this.clients = clients;
         this.executorService = executorService;
+        this.selector = selector == null ? ClientSelector.RANDOM : selector;
+        this.stats = new ClientStats[clients == null ? 0 : clients.length];
+        this.positions = new IdentityHashMap<>();
+        this.namePositions = new HashMap<>();
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new ClientStats(String.valueOf(clients[i]));
+            positions.put(clients[i], i);
+            namePositions.putIfAbsent(nodeName(clients[i]), i);
+        }
+        final Set<String> servers = new LinkedHashSet<>();
+        if (clients != null)
+            for (final T client : clients)
+                if (client instanceof JsonClient)
+                    servers.add(((JsonClient) client).remote.serverAddress);
+        this.metrics = ClientMetrics.aggregate(String.join(",", servers), servers);
+        if (circuitBreaker == null)
+            this.breakers = null;
+        else {
+            this.breakers = new CircuitBreaker[stats.length];
+            for (int i = 0; i < breakers.length; i++)
+                breakers[i] = circuitBreaker.build(stats[i].getName());
+        }
     }
 
     @Override
@@ -55,17 +130,135 @@ public class MultiClient<T> implements Iterable<T> {
         return new RandomArrayIterator<>(clients);
     }
 
-    private WebApplicationException ensureWebApplicationException(final Throwable t) {
+    /**
+     * @return the statistics of each client
+     */
+    public List<ClientStats> getClientStats() {
+        return Collections.unmodifiableList(Arrays.asList(stats));
+    }
+
+    /**
+     * @return the circuit breaker of each client, or an empty list if the circuit breakers are disabled
+     */
+    public List<CircuitBreakerMXBean> getCircuitBreakers() {
+        return breakers == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(breakers));
+    }
+
+    /**
+     * @return the client-side metrics of every operation on every server of this multi client
+     * (only the clients extending JsonClient are metered)
+     */
+    public ClientMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Expose the circuit breakers and the aggregated client metrics over JMX
+     *
+     * @param group the name identifying this multi client in the JMX names
+     */
+    public synchronized void registerMBeans(final String group) {
+        if (breakers != null)
+            for (final CircuitBreaker breaker : breakers)
+                breaker.registerMBean(group);
+        if (metricsObjectName == null) {
+            final Hashtable<String, String> props = new Hashtable<>();
+            props.put("type", "metrics");
+            props.put("group", ObjectName.quote(group));
+            metricsObjectName = ClientMetrics.registerMBean(metrics, props);
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        if (breakers != null)
+            for (final CircuitBreaker breaker : breakers)
+                breaker.unregisterMBean();
+        ClientMetrics.unregisterMBean(metricsObjectName);
+        metricsObjectName = null;
+    }
+
+    private WebApplicationException ensureWebApplicationException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
         return t instanceof WebApplicationException ? (WebApplicationException) t : new WebApplicationException(t);
     }
 
+    private <R> R apply(final int pos, final FunctionEx<T, R, Exception> action, final Attempt attempt)
+            throws Exception {
+        final CircuitBreaker breaker = breakers == null ? null : breakers[pos];
+        if (breaker != null && !breaker.tryAcquire())
+            throw breaker.rejection();
+        final ClientStats stat = stats[pos];
+        final long start = stat.begin();
+        Throwable error = null;
+        try {
+            return action.apply(clients[pos]);
+        } catch (Exception | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            if ((attempt != null && attempt.cancelled) || CircuitBreaker.isCancellation(error)) {
+                // The caller gave up the call: it says nothing about the health of the client
+                stat.cancel();
+                if (breaker != null)
+                    breaker.onCancel();
+            } else {
+                stat.end(start, error == null);
+                if (breaker != null)
+                    breaker.onResult(System.nanoTime() - start, error);
+            }
+        }
+    }
+
+    private <R> R apply(final int pos, final FunctionEx<T, R, Exception> action) throws Exception {
+        return apply(pos, action, null);
+    }
+
+    /**
+     * @return the call to the client as a task which can be submitted to the executor.
+     * The task inherits the deadline and the trace span of the calling thread.
+     */
+    private <R> Callable<R> task(final int pos, final FunctionEx<T, R, Exception> action, final Attempt attempt) {
+        return RequestTrace.wrap(RequestDeadline.wrap(() -> apply(pos, action, attempt)));
+    }
+
+    /**
+     * @return the call to the client as a task running with the given deadline.
+     * The interruption does not stop a blocking socket I/O: the deadline bounds the timeouts of the call.
+     */
+    private <R> Callable<R> task(final int pos, final FunctionEx<T, R, Exception> action, final Attempt attempt,
+                                 final RequestDeadline deadline) {
+        return RequestTrace.wrap(() -> {
+            try (final RequestDeadline.Scope ignored = deadline.activate()) {
+                return apply(pos, action, attempt);
+            }
+        });
+    }
+
+    private <R> Callable<R> task(final int pos, final FunctionEx<T, R, Exception> action) {
+        return task(pos, action, null);
+    }
+
+    /**
+     * A call submitted to the executor, which the caller may cancel
+     */
+    private static final class Attempt {
+
+        private volatile boolean cancelled;
+    }
+
     protected <R> R firstRandomSuccess(final FunctionEx<T, R, Exception> action,
                                        final Consumer<WebApplicationException> exceptions) {
         if (clients == null || clients.length == 0)
             return null;
-        for (final T client : this) {
+        return firstSuccess(selector.select(stats), action, exceptions);
+    }
+
+    private <R> R firstSuccess(final int[] order, final FunctionEx<T, R, Exception> action,
+                               final Consumer<WebApplicationException> exceptions) {
+        for (final int pos : order) {
             try {
-                final R result = action.apply(client);
+                final R result = apply(pos, action);
                 if (result != null)
                     return result;
             } catch (WebApplicationException e) {
@@ -78,11 +271,112 @@ public class MultiClient<T> implements Iterable<T> {
     }
 
     protected <R> R firstRandomSuccess(final FunctionEx<T, R, Exception> action, final Logger logger) {
-        final MultiWebApplicationException.Builder errors = MultiWebApplicationException.of(logger);
-        final R result = firstRandomSuccess(action, errors::add);
-        if (errors.isEmpty())
-            return result;
-        throw errors.build();
+        final Errors errors = new Errors(logger);
+        final R result = firstRandomSuccess(action, errors);
+        errors.check();
+        return result;
+    }
+
+    /**
+     * Like {@link #firstRandomSuccess(FunctionEx, Consumer)}, but if the pending call has not answered
+     * after the delay given by the policy, a hedged call is sent to the next client.
+     * The first non null result wins, and the other pending calls are cancelled.
+     * A failed call is immediately followed by a call to the next client.
+     *
+     * @param action     the call applied on each client
+     * @param policy     the hedging policy
+     * @param exceptions a consumer receiving the errors
+     * @param <R>        the type of the result
+     * @return the first non null result, or null
+     */
+    protected <R> R firstHedgedSuccess(final FunctionEx<T, R, Exception> action, final HedgePolicy policy,
+                                       final Consumer<WebApplicationException> exceptions) {
+        if (clients == null || clients.length == 0)
+            return null;
+
+        policy.onCall();
+        final int[] order = selector.select(stats);
+        final CompletionService<R> completion = new ExecutorCompletionService<>(executorService);
+        final Map<Future<R>, Attempt> pending = new HashMap<>();
+        final Set<Future<R>> hedged = new HashSet<>();
+        int next = 0;
+        int hedges = 0;
+        final long startNanos = System.nanoTime();
+
+        try {
+            submit(completion, pending, order[next++], action);
+            while (!pending.isEmpty()) {
+                final Future<R> done;
+                if (next < order.length && hedges < policy.getMaxHedges()) {
+                    final Future<R> polled = completion.poll(policy.getDelayMs(), TimeUnit.MILLISECONDS);
+                    if (polled == null) {
+                        if (policy.tryHedge()) {
+                            hedged.add(submit(completion, pending, order[next++], action));
+                            hedges++;
+                            continue;
+                        }
+                        done = completion.take();
+                    } else
+                        done = polled;
+                } else
+                    done = completion.take();
+
+                pending.remove(done);
+                try {
+                    final R result = done.get();
+                    if (result != null) {
+                        // The latency from the start of the first attempt: when a hedge wins, the primary which
+                        // did not answer is accounted for the hedge delay plus the latency of the hedge.
+                        // Recording the winning attempt only would drive the adaptive delay down.
+                        policy.onSuccess((System.nanoTime() - startNanos) / 1000, hedged.contains(done));
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    exceptions.accept(ensureWebApplicationException(e.getCause()));
+                }
+                // The call failed: immediately try the next client
+                if (pending.isEmpty() && next < order.length)
+                    submit(completion, pending, order[next++], action);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exceptions.accept(new WebApplicationException(e));
+            return null;
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    private <R> Future<R> submit(final CompletionService<R> completion, final Map<Future<R>, Attempt> pending,
+                                 final int pos, final FunctionEx<T, R, Exception> action) {
+        return submit(completion, pending, pos, action, null);
+    }
+
+    private <R> Future<R> submit(final CompletionService<R> completion, final Map<Future<R>, Attempt> pending,
+                                 final int pos, final FunctionEx<T, R, Exception> action,
+                                 final RequestDeadline deadline) {
+        final Attempt attempt = new Attempt();
+        final Future<R> future = completion.submit(
+                deadline == null ? task(pos, action, attempt) : task(pos, action, attempt, deadline));
+        pending.put(future, attempt);
+        return future;
+    }
+
+    private static <R> void cancel(final Map<Future<R>, Attempt> pending) {
+        for (final Map.Entry<Future<R>, Attempt> entry : pending.entrySet()) {
+            entry.getValue().cancelled = true;
+            entry.getKey().cancel(true);
+        }
+    }
+
+    protected <R> R firstHedgedSuccess(final FunctionEx<T, R, Exception> action, final HedgePolicy policy,
+                                       final Logger logger) {
+        final Errors errors = new Errors(logger);
+        final R result = firstHedgedSuccess(action, policy, errors);
+        if (result == null)
+            errors.check();
+        return result;
     }
 
     protected <R> List<R> forEachParallel(final FunctionEx<T, R, Exception> action,
@@ -90,14 +384,19 @@ public class MultiClient<T> implements Iterable<T> {
 
         if (clients == null || clients.length == 0)
             return Collections.emptyList();
+        return forEachParallel(selector.select(stats), action, exceptions);
+    }
+
+    private <R> List<R> forEachParallel(final int[] order, final FunctionEx<T, R, Exception> action,
+                                        final Consumer<WebApplicationException> exceptions) {
 
         // Start the parallel threads
-        final List<Future<R>> futures = new ArrayList<>(clients.length);
-        for (final T client : this)
-            futures.add(executorService.submit(() -> action.apply(client)));
+        final List<Future<R>> futures = new ArrayList<>(order.length);
+        for (final int pos : order)
+            futures.add(executorService.submit(task(pos, action)));
 
         // Get the results
-        final List<R> results = new ArrayList<>(clients.length);
+        final List<R> results = new ArrayList<>(order.length);
         for (Future<R> future : futures) {
             if (future == null)
                 continue;
@@ -113,10 +412,428 @@ public class MultiClient<T> implements Iterable<T> {
     }
 
     protected <R> List<R> forEachParallel(final FunctionEx<T, R, Exception> action, final Logger logger) {
-        final MultiWebApplicationException.Builder errors = MultiWebApplicationException.of(logger);
-        final List<R> results = forEachParallel(action, errors::add);
-        if (errors.isEmpty())
+        final Errors errors = new Errors(logger);
+        final List<R> results = forEachParallel(action, errors);
+        errors.check();
+        return results;
+    }
+
+    /**
+     * @param node a client, or a RemoteService
+     * @return the service address of a JsonClient or of a RemoteService (its name in a ring of RemoteService),
+     * otherwise the toString() of the node
+     */
+    private static String nodeName(final Object node) {
+        if (node instanceof JsonClient)
+            return ((JsonClient) node).remote.serviceAddress;
+        if (node instanceof RemoteService)
+            return ((RemoteService) node).serviceAddress;
+        return String.valueOf(node);
+    }
+
+    /**
+     * @return a builder of a ring made of the clients of this MultiClient, named by their service address
+     */
+    protected HashRing.Builder<T> ring() {
+        return HashRing.of(clients).naming(MultiClient::nodeName);
+    }
+
+    /**
+     * @return the position of a client, found by instance, then by service address (or by name)
+     */
+    private Integer position(final Object node) {
+        final Integer pos = positions.get(node);
+        return pos != null ? pos : namePositions.get(nodeName(node));
+    }
+
+    /**
+     * @return the positions of the owner of the key and of its replicas.
+     * With a bounded load ring, the load of a client is its number of outstanding calls.
+     */
+    private int[] keyOrder(final HashRing<?> ring, final String key, final int replicas) {
+        final List<?> nodes = ring.lookup(key, replicas, node -> {
+            final Integer pos = position(node);
+            return pos == null ? 0 : stats[pos].getOutstanding();
+        });
+        final int[] order = new int[nodes.size()];
+        for (int i = 0; i < order.length; i++) {
+            final Integer pos = position(nodes.get(i));
+            if (pos == null)
+                throw new IllegalArgumentException("The node is not a client of this MultiClient: " + nodes.get(i));
+            order[i] = pos;
+        }
+        return order;
+    }
+
+    /**
+     * Call the owner of the key, then its replicas in the order of the ring, until a non null result is returned.
+     *
+     * @param ring       a ring of the clients of this MultiClient (see {@link #ring()}), or of the RemoteService
+     *                   or the clients of the same servers
+     * @param key        the key
+     * @param replicas   the number of clients which can be tried (the owner and its replicas)
+     * @param action     the call applied on each client
+     * @param exceptions a consumer receiving the errors
+     * @param <R>        the type of the result
+     * @return the first non null result, or null
+     */
+    protected <R> R firstKeySuccess(final HashRing<?> ring, final String key, final int replicas,
+                                    final FunctionEx<T, R, Exception> action,
+                                    final Consumer<WebApplicationException> exceptions) {
+        return firstSuccess(keyOrder(ring, key, replicas), action, exceptions);
+    }
+
+    protected <R> R firstKeySuccess(final HashRing<?> ring, final String key, final int replicas,
+                                    final FunctionEx<T, R, Exception> action, final Logger logger) {
+        final Errors errors = new Errors(logger);
+        final R result = firstKeySuccess(ring, key, replicas, action, errors);
+        if (result == null)
+            errors.check();
+        return result;
+    }
+
+    /**
+     * Call in parallel the owner of the key and its replicas (ie: to write the data of the key).
+     *
+     * @param ring       a ring of the clients of this MultiClient (see {@link #ring()}), or of the RemoteService
+     *                   or the clients of the same servers
+     * @param key        the key
+     * @param replicas   the number of clients to call (the owner and its replicas)
+     * @param action     the call applied on each client
+     * @param exceptions a consumer receiving the errors
+     * @param <R>        the type of the result
+     * @return the results, the result of the owner first
+     */
+    protected <R> List<R> forEachKeyReplica(final HashRing<?> ring, final String key, final int replicas,
+                                            final FunctionEx<T, R, Exception> action,
+                                            final Consumer<WebApplicationException> exceptions) {
+        return forEachParallel(keyOrder(ring, key, replicas), action, exceptions);
+    }
+
+    protected <R> List<R> forEachKeyReplica(final HashRing<?> ring, final String key, final int replicas,
+                                            final FunctionEx<T, R, Exception> action, final Logger logger) {
+        final Errors errors = new Errors(logger);
+        final List<R> results = forEachKeyReplica(ring, key, replicas, action, errors);
+        errors.check();
+        return results;
+    }
+
+    /**
+     * Call every client, with at most maxConcurrency calls running at the same time.
+     * The results are given to the consumer as soon as they arrive, in the order of completion,
+     * and are not kept once consumed.
+     * The consumers are called by the current thread, they don't need to be thread safe.
+     *
+     * @param action         the call applied on each client
+     * @param maxConcurrency the maximum number of concurrent calls
+     * @param results        a consumer receiving the results
+     * @param exceptions     a consumer receiving the errors
+     * @param <R>            the type of the result
+     */
+    protected <R> void forEachStreaming(final FunctionEx<T, R, Exception> action, final int maxConcurrency,
+                                        final Consumer<R> results,
+                                        final Consumer<WebApplicationException> exceptions) {
+
+        if (clients == null || clients.length == 0)
+            return;
+
+        final int[] order = selector.select(stats);
+        final CompletionService<R> completion = new ExecutorCompletionService<>(executorService);
+        final Map<Future<R>, Attempt> pending = new HashMap<>();
+        int next = 0;
+
+        try {
+            while (next < order.length || !pending.isEmpty()) {
+                // Keep the pipeline full
+                while (next < order.length && pending.size() < Math.max(1, maxConcurrency))
+                    submit(completion, pending, order[next++], action);
+                final Future<R> done = completion.take();
+                pending.remove(done);
+                try {
+                    results.accept(done.get());
+                } catch (ExecutionException e) {
+                    exceptions.accept(ensureWebApplicationException(e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exceptions.accept(new WebApplicationException(e));
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    protected <R> void forEachStreaming(final FunctionEx<T, R, Exception> action, final int maxConcurrency,
+                                        final Consumer<R> results, final Logger logger) {
+        final Errors errors = new Errors(logger);
+        forEachStreaming(action, maxConcurrency, results, errors);
+        errors.check();
+    }
+
+    /**
+     * Call every client with a bounded concurrency (see {@link #forEachStreaming}),
+     * and merge each result into an accumulated value as soon as it arrives.
+     *
+     * @param action         the call applied on each client
+     * @param maxConcurrency the maximum number of concurrent calls
+     * @param identity       the initial accumulated value
+     * @param reducer        merge one result into the accumulated value
+     * @param exceptions     a consumer receiving the errors
+     * @param <R>            the type of the result
+     * @param <A>            the type of the accumulated value
+     * @return the accumulated value
+     */
+    protected <R, A> A reduceParallel(final FunctionEx<T, R, Exception> action, final int maxConcurrency,
+                                      final A identity, final BiFunction<A, ? super R, A> reducer,
+                                      final Consumer<WebApplicationException> exceptions) {
+        final List<A> accumulator = new ArrayList<>(1);
+        accumulator.add(identity);
+        forEachStreaming(action, maxConcurrency, result -> accumulator.set(0, reducer.apply(accumulator.get(0), result)),
+                exceptions);
+        return accumulator.get(0);
+    }
+
+    protected <R, A> A reduceParallel(final FunctionEx<T, R, Exception> action, final int maxConcurrency,
+                                      final A identity, final BiFunction<A, ? super R, A> reducer,
+                                      final Logger logger) {
+        final Errors errors = new Errors(logger);
+        final A result = reduceParallel(action, maxConcurrency, identity, reducer, errors);
+        errors.check();
+        return result;
+    }
+
+    /**
+     * Call every client concurrently, and stop as soon as the quorum of successful calls is reached,
+     * or when the deadline expires. The pending calls are then cancelled.
+     * The calls run with the deadline (see {@link RequestDeadline}): the timeouts of the JsonClient calls
+     * are bounded by it, and the worker threads are released when it expires.
+     *
+     * @param action     the call applied on each client
+     * @param deadlineMs the maximum duration of the whole fan-out (milliseconds)
+     * @param quorum     the number of successful calls after which the fan-out stops
+     * @param exceptions a consumer receiving the errors
+     * @param <R>        the type of the result
+     * @return the results, and the list of the clients which failed or did not answer
+     */
+    protected <R> PartialResult<R> forEachQuorum(final FunctionEx<T, R, Exception> action, final long deadlineMs,
+                                                 final int quorum,
+                                                 final Consumer<WebApplicationException> exceptions) {
+
+        final List<R> results = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+        final List<String> missing = new ArrayList<>();
+        if (clients == null || clients.length == 0)
+            return new PartialResult<>(results, failed, missing, quorum <= 0, false);
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        // The calls are bounded by the deadline of the fan-out, or by the deadline of the caller if it is sooner
+        final RequestDeadline current = RequestDeadline.current();
+        final RequestDeadline callDeadline =
+                RequestDeadline.of(current == null ? deadlineMs : Math.min(deadlineMs, current.getRemainingMillis()));
+        final CompletionService<R> completion = new ExecutorCompletionService<>(executorService);
+        final Map<Future<R>, Attempt> pending = new HashMap<>();
+        final Map<Future<R>, Integer> positions = new HashMap<>();
+        for (final int pos : selector.select(stats))
+            positions.put(submit(completion, pending, pos, action, callDeadline), pos);
+
+        boolean deadlineReached = false;
+        try {
+            while (!pending.isEmpty() && results.size() < quorum) {
+                final Future<R> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    deadlineReached = true;
+                    break;
+                }
+                pending.remove(done);
+                try {
+                    results.add(done.get());
+                } catch (ExecutionException e) {
+                    failed.add(stats[positions.get(done)].getName());
+                    exceptions.accept(ensureWebApplicationException(e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exceptions.accept(new WebApplicationException(e));
+        } finally {
+            for (final Future<R> future : pending.keySet())
+                missing.add(stats[positions.get(future)].getName());
+            cancel(pending);
+        }
+        return new PartialResult<>(results, failed, missing, results.size() >= quorum, deadlineReached);
+    }
+
+    /**
+     * Like {@link #forEachQuorum(FunctionEx, long, int, Consumer)} with a quorum expressed as a ratio of the clients.
+     *
+     * @param action      the call applied on each client
+     * @param deadlineMs  the maximum duration of the whole fan-out (milliseconds)
+     * @param quorumRatio the ratio of successful calls after which the fan-out stops (ie: 0.5 for the majority)
+     * @param exceptions  a consumer receiving the errors
+     * @param <R>         the type of the result
+     * @return the results, and the list of the clients which failed or did not answer
+     */
+    protected <R> PartialResult<R> forEachQuorum(final FunctionEx<T, R, Exception> action, final long deadlineMs,
+                                                 final double quorumRatio,
+                                                 final Consumer<WebApplicationException> exceptions) {
+        final int count = clients == null ? 0 : clients.length;
+        return forEachQuorum(action, deadlineMs, (int) Math.ceil(count * quorumRatio), exceptions);
+    }
+
+    /**
+     * The errors are logged, and thrown only if the quorum was not reached.
+     */
+    protected <R> PartialResult<R> forEachQuorum(final FunctionEx<T, R, Exception> action, final long deadlineMs,
+                                                 final int quorum, final Logger logger) {
+        final Errors errors = new Errors(logger);
+        final PartialResult<R> result = forEachQuorum(action, deadlineMs, quorum, errors);
+        if (result.isQuorumReached())
+            return result;
+        errors.check();
+        throw new WebApplicationException("Quorum not reached: " + result, Response.Status.GATEWAY_TIMEOUT);
+    }
+
+    private <R> CompletableFuture<R> applyAsync(final int pos, final Function<T, CompletionStage<R>> action) {
+        final CircuitBreaker breaker = breakers == null ? null : breakers[pos];
+        if (breaker != null && !breaker.tryAcquire())
+            return CompletableFuture.failedFuture(breaker.rejection());
+        final ClientStats stat = stats[pos];
+        final long start = stat.begin();
+        CompletableFuture<R> future;
+        try {
+            future = action.apply(clients[pos]).toCompletableFuture();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((result, error) -> {
+            final Throwable cause =
+                    error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (CircuitBreaker.isCancellation(cause)) {
+                stat.cancel();
+                if (breaker != null)
+                    breaker.onCancel();
+                return;
+            }
+            stat.end(start, cause == null);
+            if (breaker != null)
+                breaker.onResult(System.nanoTime() - start, cause);
+        });
+    }
+
+    /**
+     * Call every client concurrently without blocking any thread while the calls are pending.
+     *
+     * @param action     the asynchronous call applied on each client
+     * @param exceptions a consumer receiving the errors once every call is done
+     * @param <R>        the type of the result
+     * @return a future completed with the successful results when every call is done
+     */
+    @SuppressWarnings("unchecked")
+    protected <R> CompletableFuture<List<R>> forEachAsync(final Function<T, CompletionStage<R>> action,
+                                                          final Consumer<WebApplicationException> exceptions) {
+
+        if (clients == null || clients.length == 0)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+
+        // Each slot is written by one call only, the results are read when all are done
+        final Object[] slots = new Object[clients.length];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[clients.length];
+        for (final int pos : selector.select(stats)) {
+            futures[pos] = applyAsync(pos, action).handle((result, error) -> {
+                slots[pos] = error != null ? ensureWebApplicationException(error) : result;
+                return null;
+            });
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(v -> {
+            final List<R> results = new ArrayList<>(slots.length);
+            for (final Object slot : slots) {
+                if (slot instanceof WebApplicationException)
+                    exceptions.accept((WebApplicationException) slot);
+                else
+                    results.add((R) slot);
+            }
             return results;
-        throw errors.build();
+        });
+    }
+
+    protected <R> CompletableFuture<List<R>> forEachAsync(final Function<T, CompletionStage<R>> action,
+                                                          final Logger logger) {
+        final Errors errors = new Errors(logger);
+        return forEachAsync(action, errors).thenApply(results -> {
+            errors.check();
+            return results;
+        });
+    }
+
+    /**
+     * Call the clients one after the other, in the order defined by the selector,
+     * until one returns a non null result.
+     * No thread is blocked while the calls are pending.
+     *
+     * @param action     the asynchronous call applied on each client
+     * @param exceptions a consumer receiving the errors
+     * @param <R>        the type of the result
+     * @return a future completed with the first non null result, or null
+     */
+    protected <R> CompletableFuture<R> firstRandomSuccessAsync(final Function<T, CompletionStage<R>> action,
+                                                               final Consumer<WebApplicationException> exceptions) {
+        if (clients == null || clients.length == 0)
+            return CompletableFuture.completedFuture(null);
+        return nextSuccessAsync(selector.select(stats), 0, action, exceptions);
+    }
+
+    private <R> CompletableFuture<R> nextSuccessAsync(final int[] order, final int next,
+                                                      final Function<T, CompletionStage<R>> action,
+                                                      final Consumer<WebApplicationException> exceptions) {
+        if (next >= order.length)
+            return CompletableFuture.completedFuture(null);
+        return applyAsync(order[next], action).handle((result, error) -> {
+            if (error != null)
+                exceptions.accept(ensureWebApplicationException(error));
+            else if (result != null)
+                return CompletableFuture.completedFuture(result);
+            return nextSuccessAsync(order, next + 1, action, exceptions);
+        }).thenCompose(Function.identity());
+    }
+
+    protected <R> CompletableFuture<R> firstRandomSuccessAsync(final Function<T, CompletionStage<R>> action,
+                                                               final Logger logger) {
+        final Errors errors = new Errors(logger);
+        return firstRandomSuccessAsync(action, errors).thenApply(result -> {
+            errors.check();
+            return result;
+        });
+    }
+
+    /**
+     * Collects the errors of the calls.
+     * The calls rejected by an open circuit breaker are not reported, unless every client was rejected:
+     * the remaining clients give a degraded answer instead of an error.
+     */
+    private final class Errors implements Consumer<WebApplicationException> {
+
+        private final MultiWebApplicationException.Builder builder;
+        private final List<WebApplicationException> rejections;
+
+        private Errors(final Logger logger) {
+            builder = MultiWebApplicationException.of(logger);
+            rejections = new ArrayList<>();
+        }
+
+        @Override
+        public void accept(final WebApplicationException exception) {
+            if (exception instanceof CircuitBreaker.OpenException)
+                rejections.add(exception);
+            else
+                builder.add(exception);
+        }
+
+        private void check() {
+            if (!rejections.isEmpty() && rejections.size() >= clients.length)
+                rejections.forEach(builder::add);
+            if (!builder.isEmpty())
+                throw builder.build();
+        }
     }
 }
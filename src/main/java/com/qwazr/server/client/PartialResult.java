@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a fan-out which may have stopped before every client answered,
+ * because its deadline or its quorum was reached.
+ *
+ * @param <R> the type of the results
+ */
+public final class PartialResult<R> {
+
+    private final List<R> results;
+    private final List<String> failed;
+    private final List<String> missing;
+    private final boolean quorumReached;
+    private final boolean deadlineReached;
+
+    PartialResult(final List<R> results, final List<String> failed, final List<String> missing,
+                  final boolean quorumReached, final boolean deadlineReached) {
+        this.results = Collections.unmodifiableList(results);
+        this.failed = Collections.unmodifiableList(failed);
+        this.missing = Collections.unmodifiableList(missing);
+        this.quorumReached = quorumReached;
+        this.deadlineReached = deadlineReached;
+    }
+
+    /**
+     * @return the successful results, in the order of completion
+     */
+    public List<R> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the names of the clients which returned an error
+     */
+    public List<String> getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the names of the clients which did not answer before the fan-out stopped (their call was cancelled)
+     */
+    public List<String> getMissing() {
+        return missing;
+    }
+
+    public boolean isQuorumReached() {
+        return quorumReached;
+    }
+
+    public boolean isDeadlineReached() {
+        return deadlineReached;
+    }
+
+    /**
+     * @return true if every client answered successfully
+     */
+    public boolean isComplete() {
+        return failed.isEmpty() && missing.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "results: " + results.size() + " - failed: " + failed + " - missing: " + missing;
+    }
+}
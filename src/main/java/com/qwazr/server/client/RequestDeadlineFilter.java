@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RequestDeadline;
+import org.glassfish.jersey.client.ClientProperties;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.Response;
+
+/**
+ * Bounds the outbound call by the deadline of the current request, and forwards the remaining time.
+ * A call made after the deadline is aborted with a 504 status.
+ */
+final class RequestDeadlineFilter implements ClientRequestFilter {
+
+    private final int timeout;
+
+    RequestDeadlineFilter(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void filter(final ClientRequestContext requestContext) {
+        final RequestDeadline deadline = RequestDeadline.current();
+        if (deadline == null)
+            return;
+        final long remaining = deadline.getRemainingMillis();
+        if (remaining <= 0) {
+            requestContext.abortWith(Response.status(Response.Status.GATEWAY_TIMEOUT).build());
+            return;
+        }
+        final int requestTimeout = (int) Math.min(timeout, remaining);
+        requestContext.setProperty(ClientProperties.CONNECT_TIMEOUT, requestTimeout);
+        requestContext.setProperty(ClientProperties.READ_TIMEOUT, requestTimeout);
+        requestContext.getHeaders().putSingle(RequestDeadline.HEADER, Long.toString(remaining));
+    }
+}
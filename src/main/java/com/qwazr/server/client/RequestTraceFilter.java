@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RequestTrace;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import java.net.URI;
+
+/**
+ * Opens a span for the outbound call, child of the span of the current request,
+ * and forwards the trace to the remote node. The span is recorded when the response is received,
+ * or by the {@link MeteredConnectorProvider} when the call fails without response (connection failure, timeout).
+ */
+final class RequestTraceFilter implements ClientRequestFilter, ClientResponseFilter {
+
+    private final static String SPAN_PROPERTY = RequestTraceFilter.class.getName() + ".span";
+
+    @Override
+    public void filter(final ClientRequestContext requestContext) {
+        final RequestTrace current = RequestTrace.current();
+        if (current == null)
+            return;
+        final URI uri = requestContext.getUri();
+        final RequestTrace span =
+                current.child(requestContext.getMethod() + " " + uri.getHost() + ':' + uri.getPort() + uri.getPath());
+        requestContext.setProperty(SPAN_PROPERTY, span);
+        requestContext.getHeaders().putSingle(RequestTrace.TRACE_HEADER, span.traceId);
+        requestContext.getHeaders().putSingle(RequestTrace.SPAN_HEADER, span.spanId);
+    }
+
+    @Override
+    public void filter(final ClientRequestContext requestContext, final ClientResponseContext responseContext) {
+        end(requestContext, responseContext.getStatus());
+    }
+
+    /**
+     * Record the span of a call which failed without response
+     *
+     * @param requestContext the request of the call
+     */
+    static void failed(final ClientRequestContext requestContext) {
+        end(requestContext, 0);
+    }
+
+    private static void end(final ClientRequestContext requestContext, final int status) {
+        final Object span = requestContext.getProperty(SPAN_PROPERTY);
+        if (!(span instanceof RequestTrace))
+            return;
+        // A span is recorded once
+        requestContext.removeProperty(SPAN_PROPERTY);
+        ((RequestTrace) span).end(status);
+    }
+}
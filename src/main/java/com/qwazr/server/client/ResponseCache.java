@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.utils.HashUtils;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client side HTTP cache for the GET requests of one or several JsonClient (see JsonClient.Options).
+ * <p>
+ * The raw bytes of the responses are kept in a LRU cache bounded by its size in bytes.
+ * A response is served from the cache while its max-age is not reached.
+ * Once stale, it is revalidated using If-None-Match (ETag) or If-Modified-Since (Last-Modified),
+ * and a 304 response is answered from the cache.
+ * The responses with Cache-Control no-store or private, with Vary *, or with neither max-age nor validator,
+ * are not cached.
+ * <p>
+ * The responses are keyed by URI, accepted media types and credentials: the requests made with the credentials
+ * of another client (see {@link #IDENTITY_PROPERTY}), or with another Authorization header, never share a response.
+ * A response is only reused for the requests having the same values for the headers listed by its Vary header.
+ */
+public final class ResponseCache implements ClientRequestFilter, ClientResponseFilter {
+
+    /**
+     * The client property identifying the credentials used by the client
+     */
+    public final static String IDENTITY_PROPERTY = ResponseCache.class.getName() + ".identity";
+
+    private final static String KEY_PROPERTY = ResponseCache.class.getName() + ".key";
+    private final static String HEADERS_PROPERTY = ResponseCache.class.getName() + ".headers";
+    private final static String ENTRY_PROPERTY = ResponseCache.class.getName() + ".entry";
+    private final static String HIT_PROPERTY = ResponseCache.class.getName() + ".hit";
+
+    /**
+     * The estimated memory used by an entry, in addition to its key and its content
+     */
+    private final static int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes;
+
+    private final LongAdder hits;
+    private final LongAdder revalidations;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param maxBytes the maximum memory (bytes) used by the cache. A response larger than a quarter of it
+     *                 is not cached.
+     */
+    public ResponseCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.revalidations = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    private static String key(final ClientRequestContext request) {
+        final StringBuilder key = new StringBuilder(request.getUri().toString());
+        final String accept = request.getHeaderString(HttpHeaders.ACCEPT);
+        if (accept != null)
+            key.append(' ').append(accept);
+        final Object identity = request.getConfiguration().getProperty(IDENTITY_PROPERTY);
+        if (identity != null)
+            key.append(' ').append(identity);
+        final String authorization = request.getHeaderString(HttpHeaders.AUTHORIZATION);
+        if (authorization != null)
+            key.append(' ').append(HashUtils.getMurmur3Hash32Hex(authorization));
+        return key.toString();
+    }
+
+    /**
+     * @return the headers of the request, as they were when the key was computed
+     */
+    private static Map<String, String> headers(final ClientRequestContext request) {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        request.getStringHeaders().forEach((name, values) -> headers.put(name, String.join(",", values)));
+        return headers;
+    }
+
+    @Override
+    public void filter(final ClientRequestContext request) {
+        if (!HttpMethod.GET.equals(request.getMethod()))
+            return;
+        // The key is computed once: the next filters may change the headers it depends on
+        final String key = key(request);
+        final Map<String, String> headers = headers(request);
+        request.setProperty(KEY_PROPERTY, key);
+        request.setProperty(HEADERS_PROPERTY, headers);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && !entry.matches(headers))
+            entry = null;
+        if (entry == null) {
+            misses.increment();
+            return;
+        }
+        if (!entry.isStale()) {
+            hits.increment();
+            request.setProperty(HIT_PROPERTY, Boolean.TRUE);
+            final Response.ResponseBuilder builder = Response.ok(entry.content, entry.contentType);
+            if (entry.etag != null)
+                builder.header(HttpHeaders.ETAG, entry.etag);
+            if (entry.lastModified != null)
+                builder.header(HttpHeaders.LAST_MODIFIED, entry.lastModified);
+            request.abortWith(builder.build());
+            return;
+        }
+        // The entry is stale: ask the server if it changed
+        request.setProperty(ENTRY_PROPERTY, entry);
+        if (entry.etag != null)
+            request.getHeaders().putSingle(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        if (entry.lastModified != null)
+            request.getHeaders().putSingle(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void filter(final ClientRequestContext request, final ClientResponseContext response)
+            throws IOException {
+        final String key = (String) request.getProperty(KEY_PROPERTY);
+        if (key == null || request.getProperty(HIT_PROPERTY) != null)
+            return;
+        final Entry stale = (Entry) request.getProperty(ENTRY_PROPERTY);
+        if (stale != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+            revalidations.increment();
+            final Entry entry = stale.refresh(response);
+            put(key, entry);
+            response.setStatus(Response.Status.OK.getStatusCode());
+            response.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, entry.contentType);
+            response.getHeaders().putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(entry.content.length));
+            response.setEntityStream(new ByteArrayInputStream(entry.content));
+            return;
+        }
+        if (stale != null)
+            misses.increment();
+        if (response.getStatus() != Response.Status.OK.getStatusCode() || !response.hasEntity())
+            return;
+        final CacheControl cacheControl = CacheControl.of(response.getHeaderString(HttpHeaders.CACHE_CONTROL));
+        final String etag = response.getHeaderString(HttpHeaders.ETAG);
+        final String lastModified = response.getHeaderString(HttpHeaders.LAST_MODIFIED);
+        if (cacheControl.noStore || cacheControl.isPrivate ||
+                (cacheControl.maxAge == null && etag == null && lastModified == null))
+            return;
+        final Map<String, String> vary = vary(response.getHeaderString(HttpHeaders.VARY),
+                (Map<String, String>) request.getProperty(HEADERS_PROPERTY));
+        if (vary == null)
+            return;
+        final int length = response.getLength();
+        if (length > maxEntryBytes)
+            return;
+        // The length of a chunked body is unknown: at most one byte more than an entry is buffered
+        final InputStream input = response.getEntityStream();
+        final byte[] content = input.readNBytes((int) Math.min(maxEntryBytes + 1, Integer.MAX_VALUE - 8));
+        if (content.length > maxEntryBytes) {
+            // Too large to be cached: the caller reads the buffered prefix, then the rest of the body
+            response.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(content), input));
+            return;
+        }
+        input.close();
+        response.setEntityStream(new ByteArrayInputStream(content));
+        put(key, new Entry(content, response.getHeaderString(HttpHeaders.CONTENT_TYPE), etag, lastModified,
+                cacheControl.expiresAt(), vary));
+    }
+
+    /**
+     * @param header  the Vary header of the response
+     * @param headers the headers of the request
+     * @return the values of the request headers listed by the Vary header, or null if the response varies on
+     * everything (Vary: *)
+     */
+    private static Map<String, String> vary(final String header, final Map<String, String> headers) {
+        if (header == null || header.isBlank())
+            return Collections.emptyMap();
+        final Map<String, String> vary = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : header.split(",")) {
+            name = name.trim();
+            if (name.equals("*"))
+                return null;
+            if (!name.isEmpty())
+                vary.put(name, headers.get(name));
+        }
+        return vary;
+    }
+
+    private void put(final String key, final Entry entry) {
+        final long size = entry.size(key);
+        synchronized (entries) {
+            final Entry previous = entries.put(key, entry);
+            if (previous != null)
+                bytes -= previous.size(key);
+            bytes += size;
+            final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                final Map.Entry<String, Entry> eldest = iterator.next();
+                bytes -= eldest.getValue().size(eldest.getKey());
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of responses served from the cache without contacting the server
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of stale responses confirmed by the server (304)
+     */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * @return the number of requests which needed a full response
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getEntries() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the estimated memory used by the cache (bytes)
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private static final class Entry {
+
+        private final byte[] content;
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+        private final long expiresAt;
+        private final Map<String, String> vary;
+
+        private Entry(final byte[] content, final String contentType, final String etag, final String lastModified,
+                      final long expiresAt, final Map<String, String> vary) {
+            this.content = content;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.vary = vary;
+        }
+
+        private boolean matches(final Map<String, String> headers) {
+            for (Map.Entry<String, String> entry : vary.entrySet())
+                if (!Objects.equals(entry.getValue(), headers.get(entry.getKey())))
+                    return false;
+            return true;
+        }
+
+        private boolean isStale() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+
+        private long size(final String key) {
+            return ENTRY_OVERHEAD + key.length() * 2L + content.length;
+        }
+
+        /**
+         * @param response a 304 response, which may update the validators and the max-age
+         * @return the refreshed entry
+         */
+        private Entry refresh(final ClientResponseContext response) {
+            final String newEtag = response.getHeaderString(HttpHeaders.ETAG);
+            final String newLastModified = response.getHeaderString(HttpHeaders.LAST_MODIFIED);
+            return new Entry(content, contentType, newEtag == null ? etag : newEtag,
+                    newLastModified == null ? lastModified : newLastModified,
+                    CacheControl.of(response.getHeaderString(HttpHeaders.CACHE_CONTROL)).expiresAt(), vary);
+        }
+    }
+
+    private static final class CacheControl {
+
+        private final Long maxAge;
+        private final boolean noStore;
+        private final boolean isPrivate;
+
+        private CacheControl(final Long maxAge, final boolean noStore, final boolean isPrivate) {
+            this.maxAge = maxAge;
+            this.noStore = noStore;
+            this.isPrivate = isPrivate;
+        }
+
+        private static CacheControl of(final String header) {
+            if (header == null)
+                return new CacheControl(null, false, false);
+            Long maxAge = null;
+            boolean noStore = false;
+            boolean noCache = false;
+            boolean isPrivate = false;
+            for (String directive : header.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-store"))
+                    noStore = true;
+                else if (directive.equals("private") || directive.startsWith("private="))
+                    isPrivate = true;
+                else if (directive.equals("no-cache"))
+                    noCache = true;
+                else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        // Ignore a malformed max-age
+                    }
+                }
+            }
+            // no-cache: the response may be stored, but must be revalidated each time
+            return new CacheControl(noCache ? null : maxAge, noStore, isPrivate);
+        }
+
+        private long expiresAt() {
+            return System.nanoTime() + (maxAge == null ? 0 : TimeUnit.SECONDS.toNanos(maxAge));
+        }
+    }
+}
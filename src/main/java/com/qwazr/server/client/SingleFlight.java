@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RequestDeadline;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces the identical concurrent calls: the first caller executes the call,
+ * the callers arriving while it is in flight wait for it and share its result (or its error).
+ * Nothing is kept once the call is done.
+ * <p>
+ * A waiting caller is bounded by its own timeout and by the deadline of its request,
+ * not by the ones of the caller executing the call. When the call fails after the deadline of the caller
+ * executing it, the waiting callers do not share the error: one of them executes the call again.
+ */
+public final class SingleFlight {
+
+    /**
+     * A call failing less than this time (milliseconds) before the deadline of its caller failed because of it:
+     * the timeouts of the call are rounded down to the remaining time
+     */
+    private final static long DEADLINE_MARGIN_MS = 10;
+
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight;
+    private final LongAdder calls;
+    private final LongAdder executions;
+
+    public SingleFlight() {
+        inFlight = new ConcurrentHashMap<>();
+        calls = new LongAdder();
+        executions = new LongAdder();
+    }
+
+    /**
+     * @param key       the key identifying identical calls
+     * @param timeoutMs the maximum time (milliseconds) waiting for the call of another caller,
+     *                  reduced to the deadline of the current request if any
+     * @param supplier  the call
+     * @param <T>       the type of the result
+     * @return the result of the call, possibly shared with other callers
+     * @throws WebApplicationException with a 504 status if the call of another caller is not done in time
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(final Object key, final int timeoutMs, final Supplier<T> supplier) {
+        calls.increment();
+        final long start = System.nanoTime();
+        for (; ; ) {
+            final CompletableFuture<Object> future = new CompletableFuture<>();
+            final CompletableFuture<Object> pending = inFlight.putIfAbsent(key, future);
+            if (pending != null) {
+                final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                try {
+                    return (T) await(pending, (int) Math.max(0, timeoutMs - elapsedMs));
+                } catch (LeaderDeadlineException e) {
+                    // The call failed because its caller ran out of time, not this one: try again
+                    continue;
+                }
+            }
+            executions.increment();
+            try {
+                final T result = supplier.get();
+                future.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                final RequestDeadline deadline = RequestDeadline.current();
+                future.completeExceptionally(
+                        deadline != null && deadline.getRemainingMillis() <= DEADLINE_MARGIN_MS ?
+                                new LeaderDeadlineException(e) :
+                                e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+    }
+
+    /**
+     * @see #execute(Object, int, Supplier)
+     */
+    public <T> T execute(final Object key, final Supplier<T> supplier) {
+        return execute(key, Integer.MAX_VALUE, supplier);
+    }
+
+    private static Object await(final CompletableFuture<Object> future, final int timeoutMs) {
+        try {
+            return future.get(RequestDeadline.timeout(timeoutMs), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new WebApplicationException("Timeout while waiting for a coalesced call",
+                    Response.Status.GATEWAY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new ProcessingException(cause);
+        }
+    }
+
+    /**
+     * The error given to the waiting callers when the call failed after the deadline of its caller
+     */
+    private static final class LeaderDeadlineException extends RuntimeException {
+
+        private LeaderDeadlineException(final Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls really executed
+     */
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * @return the number of calls which shared the result of another call
+     */
+    public long getCoalesced() {
+        return calls.sum() - executions.sum();
+    }
+
+    /**
+     * @return the ratio of the calls which shared the result of another call
+     */
+    public double getCoalescingRatio() {
+        final long c = calls.sum();
+        return c == 0 ? 0 : (double) (c - executions.sum()) / c;
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
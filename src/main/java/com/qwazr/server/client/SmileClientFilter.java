@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.ServerException;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Negotiates Smile (binary JSON) with the remote server, with a fallback to JSON.
+ * <p>
+ * The JSON requests accept Smile first. The request bodies are sent as Smile only once the server
+ * proved it supports Smile (by answering Smile), and JSON is used again if the server rejects a Smile body.
+ */
+final class SmileClientFilter implements ClientRequestFilter, ClientResponseFilter {
+
+    private final static String SMILE_BODY_PROPERTY = SmileClientFilter.class.getName() + ".body";
+
+    private final static MediaType SMILE_TYPE = ServerException.APPLICATION_JACKSON_SMILE_TYPE;
+
+    private volatile boolean smileBody;
+
+    @Override
+    public void filter(final ClientRequestContext requestContext) {
+        final List<MediaType> accept = requestContext.getAcceptableMediaTypes();
+        if (accept.size() == 1 && accept.get(0).isCompatible(MediaType.APPLICATION_JSON_TYPE) &&
+                !accept.get(0).isWildcardType()) {
+            final List<Object> types = new ArrayList<>(2);
+            types.add(SMILE_TYPE);
+            types.add(accept.get(0).toString() + ";q=0.9");
+            requestContext.getHeaders().put(HttpHeaders.ACCEPT, types);
+        }
+        final MediaType mediaType = requestContext.getMediaType();
+        if (smileBody && requestContext.hasEntity() && mediaType != null &&
+                mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+            requestContext.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, SMILE_TYPE);
+            requestContext.setProperty(SMILE_BODY_PROPERTY, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void filter(final ClientRequestContext requestContext, final ClientResponseContext responseContext) {
+        onResponse(requestContext.getProperty(SMILE_BODY_PROPERTY) != null, responseContext.getStatus(),
+                responseContext.getMediaType());
+    }
+
+    /**
+     * Learn from a response whether the server accepts the Smile bodies
+     *
+     * @param smileBodySent true if the body of the request was sent as Smile
+     * @param status        the status of the response
+     * @param mediaType     the media type of the response, or null
+     */
+    void onResponse(final boolean smileBodySent, final int status, final MediaType mediaType) {
+        if (status == Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode()) {
+            if (smileBodySent)
+                smileBody = false;
+            return;
+        }
+        if (!smileBody && mediaType != null && mediaType.isCompatible(SMILE_TYPE))
+            smileBody = true;
+    }
+
+    boolean isSmileBody() {
+        return smileBody;
+    }
+}
@@ -51,12 +51,24 @@ public interface ConfigurationProperties {
 
 	String WEBAPP_PORT = "WEBAPP_PORT";
 
+	/**
+	 * The default deadline (milliseconds) of the requests received by the webapp connector,
+	 * when the request does not carry one. By default there is no deadline.
+	 */
+	String WEBAPP_DEADLINE = "WEBAPP_DEADLINE";
+
 	String WEBSERVICE_AUTHENTICATION = "WEBSERVICE_AUTH";
 
 	String WEBSERVICE_REALM = "WEBSERVICE_REALM";
 
 	String WEBSERVICE_PORT = "WEBSERVICE_PORT";
 
+	/**
+	 * The default deadline (milliseconds) of the requests received by the webservice connector,
+	 * when the request does not carry one. By default there is no deadline.
+	 */
+	String WEBSERVICE_DEADLINE = "WEBSERVICE_DEADLINE";
+
 	String MULTICAST_ADDR = "MULTICAST_ADDR";
 
 	String MULTICAST_PORT = "MULTICAST_PORT";
@@ -65,6 +77,12 @@ public interface ConfigurationProperties {
 
 	String QWAZR_GROUPS = "QWAZR_GROUPS";
 
+	/**
+	 * The zone (ie: the datacenter or the availability zone) of the server.
+	 * The clients prefer the nodes of their own zone.
+	 */
+	String QWAZR_ZONE = "QWAZR_ZONE";
+
 }
 
 
@@ -63,6 +63,7 @@ public class ServerConfiguration implements ConfigurationProperties {
 
     public final Set<String> masters;
     public final Set<String> groups;
+    public final String zone;
 
     private ServerConfiguration(final Map<String, String> props) throws IOException {
 
@@ -95,12 +96,14 @@ public class ServerConfiguration implements ConfigurationProperties {
 
         //Set the connectors
         webAppConnector = new WebConnector(publicAddress, getIntegerProperty(WEBAPP_PORT, null), 9090,
-                getStringProperty(WEBAPP_AUTHENTICATION, null), getStringProperty(WEBAPP_REALM, null));
+                getStringProperty(WEBAPP_AUTHENTICATION, null), getStringProperty(WEBAPP_REALM, null),
+                getIntegerProperty(WEBAPP_DEADLINE, null));
         webServiceConnector = new WebConnector(publicAddress, getIntegerProperty(WEBSERVICE_PORT, null), 9091,
-                getStringProperty(WEBSERVICE_AUTHENTICATION, null), getStringProperty(WEBSERVICE_REALM, null));
+                getStringProperty(WEBSERVICE_AUTHENTICATION, null), getStringProperty(WEBSERVICE_REALM, null),
+                getIntegerProperty(WEBSERVICE_DEADLINE, null));
         multicastConnector =
                 new WebConnector(getStringProperty(MULTICAST_ADDR, null), getIntegerProperty(MULTICAST_PORT, null),
-                        9091, null, null);
+                        9091, null, null, null);
 
         // Collect the master address.
         final LinkedHashSet<String> set = new LinkedHashSet<>();
@@ -112,6 +115,7 @@ public class ServerConfiguration implements ConfigurationProperties {
         this.masters = set.isEmpty() ? null : Collections.unmodifiableSet(set);
 
         this.groups = buildSet(getStringProperty(QWAZR_GROUPS, null), ",; \t", true);
+        this.zone = getStringProperty(QWAZR_ZONE, null);
     }
 
     public String getStringProperty(final String propName, final String defaultValue) {
@@ -180,14 +184,19 @@ public class ServerConfiguration implements ConfigurationProperties {
         public final String realm;
         public final int port;
         public final String addressPort;
+        /**
+         * The default deadline (milliseconds) of the requests, or null
+         */
+        public final Integer deadline;
 
         private WebConnector(final String address, final Integer port, final int defaulPort,
-                             final String authentication, final String realm) {
+                             final String authentication, final String realm, final Integer deadline) {
             this.address = address;
             this.authentication = authentication;
             this.realm = realm;
             this.port = port == null ? defaulPort : port;
             this.addressPort = this.address == null ? null : this.address + ":" + this.port;
+            this.deadline = deadline;
         }
 
     }
@@ -401,6 +410,12 @@ public class ServerConfiguration implements ConfigurationProperties {
             return this;
         }
 
+        public Builder zone(final String zone) {
+            if (zone != null)
+                map.put(QWAZR_ZONE, zone);
+            return this;
+        }
+
         public Builder webAppPort(Integer webappPort) {
             if (webappPort != null)
                 map.put(WEBAPP_PORT, webappPort.toString());
@@ -413,6 +428,18 @@ public class ServerConfiguration implements ConfigurationProperties {
             return this;
         }
 
+        public Builder webAppDeadline(Integer webAppDeadline) {
+            if (webAppDeadline != null)
+                map.put(WEBAPP_DEADLINE, webAppDeadline.toString());
+            return this;
+        }
+
+        public Builder webServiceDeadline(Integer webServiceDeadline) {
+            if (webServiceDeadline != null)
+                map.put(WEBSERVICE_DEADLINE, webServiceDeadline.toString());
+            return this;
+        }
+
         public Builder webAppAuthentication(String authentication) {
             if (authentication != null)
                 map.put(WEBAPP_AUTHENTICATION, authentication);
@@ -16,12 +16,42 @@
 package com.qwazr.server.logs;
 
 import com.qwazr.server.ConnectorStatisticsMXBean;
+import com.qwazr.server.LatencyHistogram;
+import com.qwazr.server.RequestTrace;
+import io.undertow.server.ConnectorStatistics;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HttpString;
+import io.undertow.util.Protocols;
 
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-final public class LogMetricsHandler implements HttpHandler, ConnectorStatisticsMXBean {
+final public class LogMetricsHandler implements HttpHandler, ConnectorStatisticsMXBean, Closeable {
+
+	/**
+	 * The trace span opened for the exchange
+	 */
+	public final static AttachmentKey<RequestTrace> TRACE = AttachmentKey.create(RequestTrace.class);
+
+	private final static ScheduledExecutorService RATE_SAMPLER =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "qwazr-connector-rates");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final static HttpString TRACE_HEADER = HttpString.tryFromString(RequestTrace.TRACE_HEADER);
+	private final static HttpString SPAN_HEADER = HttpString.tryFromString(RequestTrace.SPAN_HEADER);
 
 	private final String address;
 	private final int port;
@@ -30,12 +60,29 @@ final public class LogMetricsHandler implements HttpHandler, ConnectorStatistics
 	private final AccessLogger accessLogger;
 	private final AtomicInteger active;
 	private final AtomicInteger maxActive;
+	private final LongAdder http2Streams;
+	private final AtomicInteger activeHttp2Streams;
+	private final Rates rates;
+	private final LatencyHistogram queueTimes;
+	private final LatencyHistogram handlerTimes;
+	private final LatencyHistogram timesToFirstByte;
+	private final ResourceUsage resourceUsage;
+	private final Map<String, ResourceUsage> endpointResourceUsage;
+	private volatile ConnectorStatistics connectorStatistics;
 
 	public LogMetricsHandler(final HttpHandler next, final String address, final int port, final String name,
 			final AccessLogger accessLogger) {
 		this.next = next;
 		this.active = new AtomicInteger();
 		this.maxActive = new AtomicInteger();
+		this.http2Streams = new LongAdder();
+		this.activeHttp2Streams = new AtomicInteger();
+		this.rates = new Rates();
+		this.queueTimes = new LatencyHistogram();
+		this.handlerTimes = new LatencyHistogram();
+		this.timesToFirstByte = new LatencyHistogram();
+		this.resourceUsage = new ResourceUsage();
+		this.endpointResourceUsage = new ConcurrentHashMap<>();
 		this.address = address;
 		this.port = port;
 		this.name = name;
@@ -44,8 +91,33 @@ final public class LogMetricsHandler implements HttpHandler, ConnectorStatistics
 
 	@Override
 	final public void handleRequest(final HttpServerExchange exchange) throws Exception {
+		final RequestTrace trace = RequestTrace.of(exchange.getRequestHeaders().getFirst(TRACE_HEADER),
+				exchange.getRequestHeaders().getFirst(SPAN_HEADER),
+				exchange.getRequestMethod() + " " + exchange.getRequestPath());
+		exchange.putAttachment(TRACE, trace);
+		exchange.getResponseHeaders().put(TRACE_HEADER, trace.traceId);
+		exchange.getResponseHeaders().put(SPAN_HEADER, trace.spanId);
+		final RequestTimings timings = new RequestTimings(exchange, this::handlerEnded);
+		exchange.putAttachment(RequestTimings.KEY, timings);
+		exchange.addExchangeCompleteListener((ex, nextListener) -> {
+			try {
+				trace.end(ex.getStatusCode());
+				record(queueTimes, timings.getQueueTimeMicros());
+				record(timesToFirstByte, timings.getTimeToFirstByteMicros());
+			} finally {
+				nextListener.proceed();
+			}
+		});
 		if (accessLogger != null)
 			exchange.addExchangeCompleteListener(new LogContext(accessLogger));
+		if (exchange.getProtocol() == Protocols.HTTP_2_0) {
+			http2Streams.increment();
+			activeHttp2Streams.incrementAndGet();
+			exchange.addExchangeCompleteListener((ex, nextListener) -> {
+				activeHttp2Streams.decrementAndGet();
+				nextListener.proceed();
+			});
+		}
 		final int act = active.incrementAndGet();
 		if (act > maxActive.get())
 			maxActive.set(act);
@@ -66,6 +138,190 @@ final public class LogMetricsHandler implements HttpHandler, ConnectorStatistics
 		return maxActive.get();
 	}
 
+	private static void record(final LatencyHistogram histogram, final long micros) {
+		if (micros >= 0)
+			histogram.record(micros);
+	}
+
+	/**
+	 * The handler may return after the completion of the exchange: its time and its resources are recorded when it
+	 * returns.
+	 */
+	private void handlerEnded(final RequestTimings timings) {
+		record(handlerTimes, timings.getHandlerTimeMicros());
+		if (timings.isResourceSampled())
+			recordResources(timings);
+	}
+
+	private void recordResources(final RequestTimings timings) {
+		final long cpuMicros = timings.getCpuTimeMicros();
+		final long allocatedBytes = timings.getAllocatedBytes();
+		resourceUsage.record(cpuMicros, allocatedBytes);
+		final String endpoint = timings.getEndpoint();
+		if (endpoint != null)
+			endpointResourceUsage.computeIfAbsent(endpoint, e -> new ResourceUsage()).record(cpuMicros, allocatedBytes);
+	}
+
+	/**
+	 * @return the CPU time and the allocated bytes of the sampled requests of this connector
+	 */
+	public ResourceUsage getResourceUsage() {
+		return resourceUsage;
+	}
+
+	/**
+	 * @return the CPU time and the allocated bytes of the sampled requests, per JAX-RS endpoint
+	 */
+	public Map<String, ResourceUsage> getEndpointResourceUsage() {
+		return Collections.unmodifiableMap(endpointResourceUsage);
+	}
+
+	@Override
+	final public long getResourceSampleCount() {
+		return resourceUsage.getCount();
+	}
+
+	@Override
+	final public double getCpuTimeMean() {
+		return resourceUsage.getCpuTimeMean();
+	}
+
+	@Override
+	final public double getAllocatedBytesMean() {
+		return resourceUsage.getAllocatedBytesMean();
+	}
+
+	/**
+	 * @return the time (microseconds) from the start of the requests to their dispatch on a worker thread
+	 */
+	public LatencyHistogram getQueueTimes() {
+		return queueTimes;
+	}
+
+	/**
+	 * @return the time (microseconds) spent by the handlers on the worker threads
+	 */
+	public LatencyHistogram getHandlerTimes() {
+		return handlerTimes;
+	}
+
+	/**
+	 * @return the time (microseconds) from the start of the requests to the commit of the responses
+	 */
+	public LatencyHistogram getTimesToFirstByte() {
+		return timesToFirstByte;
+	}
+
+	@Override
+	final public double getQueueTimeMean() {
+		return queueTimes.getMean();
+	}
+
+	@Override
+	final public long getQueueTimeP99() {
+		return queueTimes.getPercentile(0.99);
+	}
+
+	@Override
+	final public double getHandlerTimeMean() {
+		return handlerTimes.getMean();
+	}
+
+	@Override
+	final public long getHandlerTimeP99() {
+		return handlerTimes.getPercentile(0.99);
+	}
+
+	@Override
+	final public double getTimeToFirstByteMean() {
+		return timesToFirstByte.getMean();
+	}
+
+	@Override
+	final public long getTimeToFirstByteP99() {
+		return timesToFirstByte.getPercentile(0.99);
+	}
+
+	/**
+	 * @param connectorStatistics the statistics of the Undertow listener of this connector
+	 */
+	public void setConnectorStatistics(final ConnectorStatistics connectorStatistics) {
+		this.connectorStatistics = connectorStatistics;
+		rates.start();
+	}
+
+	@Override
+	final public long getRequestCount() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getRequestCount();
+	}
+
+	@Override
+	final public long getErrorCount() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getErrorCount();
+	}
+
+	@Override
+	final public long getBytesSent() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getBytesSent();
+	}
+
+	@Override
+	final public long getBytesReceived() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getBytesReceived();
+	}
+
+	@Override
+	final public long getActiveConnections() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getActiveConnections();
+	}
+
+	@Override
+	final public long getMaxActiveConnections() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : stats.getMaxActiveConnections();
+	}
+
+	@Override
+	final public long getMaxProcessingTimeMs() {
+		final ConnectorStatistics stats = connectorStatistics;
+		return stats == null ? 0 : TimeUnit.NANOSECONDS.toMillis(stats.getMaxProcessingTime());
+	}
+
+	@Override
+	final public long getHttp2StreamCount() {
+		return http2Streams.sum();
+	}
+
+	@Override
+	final public int getActiveHttp2Streams() {
+		return activeHttp2Streams.get();
+	}
+
+	@Override
+	final public double getRequestRate() {
+		return rates.requests;
+	}
+
+	@Override
+	final public double getErrorRate() {
+		return rates.errors;
+	}
+
+	@Override
+	final public double getBytesSentRate() {
+		return rates.bytesSent;
+	}
+
+	@Override
+	final public double getBytesReceivedRate() {
+		return rates.bytesReceived;
+	}
+
 	@Override
 	final public String getAddress() {
 		return this.address;
@@ -84,6 +340,84 @@ final public class LogMetricsHandler implements HttpHandler, ConnectorStatistics
 	@Override
 	final public void reset() {
 		maxActive.set(0);
+		http2Streams.reset();
+		rates.reset(connectorStatistics);
+	}
+
+	/**
+	 * Stops the sampling of the rates
+	 */
+	@Override
+	public void close() {
+		rates.stop();
+	}
+
+	/**
+	 * The per-second rates, sampled by the scheduler over a fixed one-second window.
+	 * The readers only read the last sample.
+	 */
+	private final class Rates {
+
+		private ScheduledFuture<?> sampling;
+
+		private long lastNanos;
+		private long lastRequests;
+		private long lastErrors;
+		private long lastBytesSent;
+		private long lastBytesReceived;
+
+		private volatile double requests;
+		private volatile double errors;
+		private volatile double bytesSent;
+		private volatile double bytesReceived;
+
+		private synchronized void start() {
+			if (sampling != null)
+				return;
+			baseline();
+			sampling = RATE_SAMPLER.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+		}
+
+		private synchronized void stop() {
+			if (sampling != null)
+				sampling.cancel(false);
+		}
+
+		private synchronized void sample() {
+			final long now = System.nanoTime();
+			final double seconds = (now - lastNanos) / 1e9;
+			final long currentRequests = getRequestCount();
+			final long currentErrors = getErrorCount();
+			final long currentBytesSent = getBytesSent();
+			final long currentBytesReceived = getBytesReceived();
+			requests = (currentRequests - lastRequests) / seconds;
+			errors = (currentErrors - lastErrors) / seconds;
+			bytesSent = (currentBytesSent - lastBytesSent) / seconds;
+			bytesReceived = (currentBytesReceived - lastBytesReceived) / seconds;
+			lastNanos = now;
+			lastRequests = currentRequests;
+			lastErrors = currentErrors;
+			lastBytesSent = currentBytesSent;
+			lastBytesReceived = currentBytesReceived;
+		}
+
+		private synchronized void reset(final ConnectorStatistics stats) {
+			if (stats != null)
+				stats.reset();
+			requests = 0;
+			errors = 0;
+			bytesSent = 0;
+			bytesReceived = 0;
+			baseline();
+		}
+
+		private void baseline() {
+			lastNanos = System.nanoTime();
+			lastRequests = getRequestCount();
+			lastErrors = getErrorCount();
+			lastBytesSent = getBytesSent();
+			lastBytesReceived = getBytesReceived();
+		}
 	}
 
 }
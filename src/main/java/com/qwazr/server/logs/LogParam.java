@@ -15,6 +15,7 @@
  */
 package com.qwazr.server.logs;
 
+import com.qwazr.server.RequestTrace;
 import com.qwazr.utils.StringUtils;
 import io.undertow.security.api.SecurityContext;
 import io.undertow.security.idm.Account;
@@ -23,6 +24,7 @@ import java.security.Principal;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 public enum LogParam {
 
@@ -59,7 +61,27 @@ public enum LogParam {
 
     CS_BYTES(15, "cs-bytes", ctx -> Long.toString(ctx.exchange.getRequestContentLength())),
 
-    SC_BYTES(16, "sc-bytes", ctx -> Long.toString(ctx.exchange.getResponseBytesSent()));
+    SC_BYTES(16, "sc-bytes", ctx -> Long.toString(ctx.exchange.getResponseBytesSent())),
+
+    X_TRACE_ID(17, "x-trace-id", ctx -> getTrace(ctx, trace -> trace.traceId)),
+
+    X_SPAN_ID(18, "x-span-id", ctx -> getTrace(ctx, trace -> trace.spanId)),
+
+    X_PARENT_SPAN_ID(19, "x-parent-span-id", ctx -> getTrace(ctx, trace -> trace.parentSpanId)),
+
+    X_TIME_TAKEN_US(20, "x-time-taken-us", ctx -> ctx.nanoStartTime == -1 ?
+            null :
+            Long.toString((ctx.nanoEndTime - ctx.nanoStartTime) / 1000)),
+
+    X_QUEUE_TIME_US(21, "x-queue-time-us", ctx -> getTimings(ctx, RequestTimings::getQueueTimeMicros)),
+
+    X_HANDLER_TIME_US(22, "x-handler-time-us", ctx -> getTimings(ctx, RequestTimings::getHandlerTimeMicros)),
+
+    X_TTFB_US(23, "x-ttfb-us", ctx -> getTimings(ctx, RequestTimings::getTimeToFirstByteMicros)),
+
+    X_CPU_TIME_US(24, "x-cpu-time-us", ctx -> getTimings(ctx, RequestTimings::getCpuTimeMicros)),
+
+    X_ALLOCATED_BYTES(25, "x-allocated-bytes", ctx -> getTimings(ctx, RequestTimings::getAllocatedBytes));
 
     final int pos;
 
@@ -92,6 +114,19 @@ public enum LogParam {
         return principal.getName();
     }
 
+    private static String getTrace(final LogContext ctx, final Function<RequestTrace, String> field) {
+        final RequestTrace trace = ctx.exchange.getAttachment(LogMetricsHandler.TRACE);
+        return trace == null ? null : field.apply(trace);
+    }
+
+    private static String getTimings(final LogContext ctx, final ToLongFunction<RequestTimings> field) {
+        final RequestTimings timings = ctx.exchange.getAttachment(RequestTimings.KEY);
+        if (timings == null)
+            return null;
+        final long micros = field.applyAsLong(timings);
+        return micros < 0 ? null : Long.toString(micros);
+    }
+
     private static void span2(final StringBuilder sb, final int value) {
         if (value < 10)
             sb.append('0');
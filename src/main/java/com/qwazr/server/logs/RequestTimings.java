@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.logs;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * The phases of an exchange, in nanoseconds (System.nanoTime):
+ * <ul>
+ * <li>queue time: from the start of the request (when it is parsed) to its dispatch on a worker thread</li>
+ * <li>handler time: from the dispatch to the return of the handler on the worker thread</li>
+ * <li>time to first byte: from the start of the request to the commit of the response</li>
+ * </ul>
+ * A high queue time reveals a saturated worker pool, a high handler time reveals a slow application.
+ * <p>
+ * A sample of the requests also measures the CPU time and the bytes allocated by the handler on the worker thread.
+ * The work done by the handler on other threads (asynchronous responses) is not accounted.
+ */
+public final class RequestTimings {
+
+	public final static AttachmentKey<RequestTimings> KEY = AttachmentKey.create(RequestTimings.class);
+
+	private final static ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	private final static com.sun.management.ThreadMXBean ALLOCATION_MX_BEAN =
+			THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean ?
+					(com.sun.management.ThreadMXBean) THREAD_MX_BEAN :
+					null;
+
+	final long startNanos;
+	private volatile long dispatchNanos;
+	private volatile long handlerEndNanos;
+	private volatile long firstByteNanos;
+
+	private volatile boolean resourceSampled;
+	private volatile long cpuNanos = -1;
+	private volatile long allocatedBytes = -1;
+	private volatile String endpoint;
+
+	private final Consumer<RequestTimings> handlerEndListener;
+
+	/**
+	 * @param exchange           the exchange to time
+	 * @param handlerEndListener called on the worker thread when the handler returns,
+	 *                           the exchange may already be complete at this time
+	 */
+	RequestTimings(final HttpServerExchange exchange, final Consumer<RequestTimings> handlerEndListener) {
+		this.handlerEndListener = handlerEndListener;
+		final long requestStartTime = exchange.getRequestStartTime();
+		this.startNanos = requestStartTime == -1 ? System.nanoTime() : requestStartTime;
+		exchange.addResponseCommitListener(ex -> firstByteNanos = System.nanoTime());
+	}
+
+	private static long micros(final long start, final long end) {
+		return start == 0 || end == 0 ? -1 : Math.max(0, (end - start) / 1000);
+	}
+
+	/**
+	 * @return the queue time in microseconds, or -1 if the request was not dispatched to a worker thread
+	 */
+	public long getQueueTimeMicros() {
+		return micros(startNanos, dispatchNanos);
+	}
+
+	/**
+	 * @return the handler time in microseconds, or -1 if the request was not dispatched to a worker thread
+	 */
+	public long getHandlerTimeMicros() {
+		return micros(dispatchNanos, handlerEndNanos);
+	}
+
+	/**
+	 * @return the time to first byte in microseconds, or -1 if the response is not committed
+	 */
+	public long getTimeToFirstByteMicros() {
+		return micros(startNanos, firstByteNanos);
+	}
+
+	/**
+	 * @return true if the resources used by the handler are measured for this request
+	 */
+	public boolean isResourceSampled() {
+		return resourceSampled;
+	}
+
+	/**
+	 * @return the CPU time (microseconds) used by the handler on the worker thread, or -1 if it is not measured
+	 */
+	public long getCpuTimeMicros() {
+		final long cpu = cpuNanos;
+		return cpu < 0 ? -1 : cpu / 1000;
+	}
+
+	/**
+	 * @return the bytes allocated by the handler on the worker thread, or -1 if it is not measured
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return the endpoint (resource class and method) which handled a sampled request, if known
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public void setEndpoint(final String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	private static long cpuTime() {
+		return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long allocatedBytes(final long threadId) {
+		return ALLOCATION_MX_BEAN != null && ALLOCATION_MX_BEAN.isThreadAllocatedMemoryEnabled() ?
+				ALLOCATION_MX_BEAN.getThreadAllocatedBytes(threadId) :
+				-1;
+	}
+
+	/**
+	 * @see #dispatchHandler(HttpHandler, double)
+	 */
+	public static HttpHandler dispatchHandler(final HttpHandler next) {
+		return dispatchHandler(next, 0);
+	}
+
+	/**
+	 * Wraps the handler executed on the worker thread (see ServletContextBuilder.addInnerHandlerChainWrapper)
+	 * to record the dispatch and the end of the handler.
+	 *
+	 * @param next               the handler to wrap
+	 * @param resourceSampleRate the ratio of requests whose CPU time and allocated bytes are measured (0 to 1)
+	 * @return the wrapping handler
+	 */
+	public static HttpHandler dispatchHandler(final HttpHandler next, final double resourceSampleRate) {
+		return exchange -> {
+			final RequestTimings timings = exchange.getAttachment(KEY);
+			if (timings == null || timings.dispatchNanos != 0) {
+				next.handleRequest(exchange);
+				return;
+			}
+			final boolean sampled = resourceSampleRate > 0 &&
+					(resourceSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < resourceSampleRate);
+			final long threadId = Thread.currentThread().getId();
+			final long cpuStart = sampled ? cpuTime() : -1;
+			final long allocatedStart = sampled ? allocatedBytes(threadId) : -1;
+			timings.resourceSampled = sampled;
+			timings.dispatchNanos = System.nanoTime();
+			try {
+				next.handleRequest(exchange);
+			} finally {
+				timings.handlerEndNanos = System.nanoTime();
+				if (sampled) {
+					if (cpuStart >= 0)
+						timings.cpuNanos = cpuTime() - cpuStart;
+					if (allocatedStart >= 0)
+						timings.allocatedBytes = allocatedBytes(threadId) - allocatedStart;
+				}
+				if (timings.handlerEndListener != null)
+					timings.handlerEndListener.accept(timings);
+			}
+		};
+	}
+}
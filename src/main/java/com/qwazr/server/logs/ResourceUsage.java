@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.logs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CPU time and the bytes allocated by the sampled requests (see RequestTimings)
+ */
+public final class ResourceUsage {
+
+	private final LongAdder count;
+	private final LongAdder cpuTimeMicros;
+	private final LongAdder allocatedBytes;
+
+	public ResourceUsage() {
+		count = new LongAdder();
+		cpuTimeMicros = new LongAdder();
+		allocatedBytes = new LongAdder();
+	}
+
+	void record(final long cpuMicros, final long bytes) {
+		count.increment();
+		if (cpuMicros > 0)
+			cpuTimeMicros.add(cpuMicros);
+		if (bytes > 0)
+			allocatedBytes.add(bytes);
+	}
+
+	/**
+	 * @return the number of sampled requests
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the total CPU time (microseconds) of the sampled requests
+	 */
+	public long getCpuTimeMicros() {
+		return cpuTimeMicros.sum();
+	}
+
+	/**
+	 * @return the total bytes allocated by the sampled requests
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	public double getCpuTimeMean() {
+		final long c = count.sum();
+		return c == 0 ? 0 : (double) cpuTimeMicros.sum() / c;
+	}
+
+	public double getAllocatedBytesMean() {
+		final long c = count.sum();
+		return c == 0 ? 0 : (double) allocatedBytes.sum() / c;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
+import com.qwazr.server.client.BatchClient;
+import com.qwazr.server.client.JsonClient;
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.utils.ObjectMappers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class BatchTest {
+
+    private static GenericServer server;
+
+    private final static int MAX_REQUESTS = 20;
+
+    private final static TypeReference<SmileService.Record> RECORD = new TypeReference<>() {
+    };
+
+    private final static RemoteService REMOTE = RemoteService.of(URI.create("http://localhost:9091")).build();
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext()
+                .jaxrs(ApplicationBuilder.of("/*")
+                        .classes(RestApplication.JSON_CLASSES)
+                        .classes(SmileService.class)
+                        .batch(MAX_REQUESTS));
+        server = builder.build();
+        server.start(false);
+    }
+
+    @Test
+    public void endpoint() {
+        final List<BatchService.SubRequest> requests = Arrays.asList(
+                new BatchService.SubRequest(HttpMethod.GET, "/smile?id=3", null, null),
+                new BatchService.SubRequest(HttpMethod.POST, "/smile", null,
+                        ObjectMappers.JSON.valueToTree(SmileService.Record.of(5))),
+                new BatchService.SubRequest(HttpMethod.GET, "/not-found", null, null));
+        final Client client = ClientBuilder.newClient().register(JacksonJsonProvider.class);
+        try {
+            final List<BatchService.SubResponse> responses = client.target("http://localhost:9091")
+                    .path(BatchService.PATH)
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(requests), new GenericType<List<BatchService.SubResponse>>() {
+                    });
+            Assert.assertEquals(3, responses.size());
+            Assert.assertEquals(200, responses.get(0).status);
+            Assert.assertEquals(3, responses.get(0).body.get("id").asLong());
+            Assert.assertEquals(200, responses.get(1).status);
+            Assert.assertEquals(5, responses.get(1).body.get("id").asLong());
+            Assert.assertEquals(404, responses.get(2).status);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void smileEndpoint() {
+        final List<BatchService.SubRequest> requests = Arrays.asList(
+                new BatchService.SubRequest(HttpMethod.GET, "/smile?id=3", null, null),
+                new BatchService.SubRequest(HttpMethod.POST, "/smile", null,
+                        ObjectMappers.JSON.valueToTree(SmileService.Record.of(5))));
+        final Client client = ClientBuilder.newClient().register(JacksonSmileProvider.class);
+        try (final Response response = client.target("http://localhost:9091")
+                .path(BatchService.PATH)
+                .request(ServerException.APPLICATION_JACKSON_SMILE)
+                .post(Entity.entity(requests, ServerException.APPLICATION_JACKSON_SMILE_TYPE))) {
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertTrue(response.getMediaType().isCompatible(ServerException.APPLICATION_JACKSON_SMILE_TYPE));
+            final List<BatchService.SubResponse> responses =
+                    response.readEntity(new GenericType<List<BatchService.SubResponse>>() {
+                    });
+            Assert.assertEquals(2, responses.size());
+            Assert.assertEquals(3, responses.get(0).body.get("id").asLong());
+            Assert.assertEquals(5, responses.get(1).body.get("id").asLong());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void smileClient() throws ExecutionException, InterruptedException {
+        try (final BatchClient client = new BatchClient(REMOTE, 60_000, 2,
+                JsonClient.Options.of().smile(true).build())) {
+            // The first batch negotiates Smile, the next ones send their bodies in Smile
+            for (int i = 0; i < 3; i++) {
+                final CompletableFuture<SmileService.Record> get = client.get("/smile?id=" + i, RECORD);
+                final CompletableFuture<SmileService.Record> post =
+                        client.post("/smile", SmileService.Record.of(i + 10), RECORD);
+                Assert.assertEquals(i, get.get().id);
+                Assert.assertEquals(i + 10, post.get().id);
+            }
+            Assert.assertEquals(3, client.getBatches());
+        }
+    }
+
+    private static int post(final List<BatchService.SubRequest> requests) {
+        final Client client = ClientBuilder.newClient().register(JacksonJsonProvider.class);
+        try {
+            return client.target("http://localhost:9091")
+                    .path(BatchService.PATH)
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(requests))
+                    .getStatus();
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void tooManyRequests() {
+        final List<BatchService.SubRequest> requests = new ArrayList<>();
+        for (int i = 0; i <= MAX_REQUESTS; i++)
+            requests.add(new BatchService.SubRequest(HttpMethod.GET, "/smile?id=" + i, null, null));
+        Assert.assertEquals(413, post(requests));
+        Assert.assertEquals(200, post(requests.subList(0, MAX_REQUESTS)));
+    }
+
+    @Test
+    public void nestedBatch() {
+        for (final String path : Arrays.asList("/batch", "batch", "/smile/../batch", "/batch/"))
+            Assert.assertEquals(path, 400, post(Arrays.asList(
+                    new BatchService.SubRequest(HttpMethod.GET, "/smile?id=1", null, null),
+                    new BatchService.SubRequest(HttpMethod.POST, path, null, null))));
+    }
+
+    @Test
+    public void maxBatchSize() throws ExecutionException, InterruptedException {
+        try (final BatchClient client = new BatchClient(REMOTE, 60_000, 5)) {
+            final List<CompletableFuture<SmileService.Record>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(client.get("/smile?id=" + i, RECORD));
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(i, futures.get(i).get().id);
+            Assert.assertEquals(10, client.getCalls());
+            Assert.assertEquals(2, client.getBatches());
+        }
+    }
+
+    @Test
+    public void linger() throws ExecutionException, InterruptedException {
+        try (final BatchClient client = new BatchClient(REMOTE, 2_000, 100)) {
+            final CompletableFuture<SmileService.Record> get = client.get("/smile?id=7", RECORD);
+            final CompletableFuture<SmileService.Record> post =
+                    client.post("/smile", SmileService.Record.of(8), RECORD);
+            final CompletableFuture<SmileService.Record> error = client.get("/not-found", RECORD);
+            Assert.assertEquals(7, get.get().id);
+            Assert.assertEquals(8, post.get().id);
+            try {
+                error.get();
+                Assert.fail("The call should fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof WebApplicationException);
+                Assert.assertEquals(404, ((WebApplicationException) e.getCause()).getResponse().getStatus());
+            }
+            Assert.assertEquals(3, client.getCalls());
+            Assert.assertEquals(1, client.getBatches());
+        }
+    }
+
+    @Test
+    public void closeWaitsForBatches() throws ExecutionException, InterruptedException {
+        final CompletableFuture<SmileService.Record> get;
+        try (final BatchClient client = new BatchClient(REMOTE, 60_000, 100)) {
+            get = client.get("/smile?id=9", RECORD);
+        }
+        // The pending call was sent and answered before the client was closed
+        Assert.assertTrue(get.isDone());
+        Assert.assertEquals(9, get.get().id);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Path("/cache")
+@Produces(MediaType.APPLICATION_JSON)
+public class CacheService {
+
+    final static AtomicInteger calls = new AtomicInteger();
+
+    final static EntityTag ETAG = new EntityTag("v1");
+
+    final static int CHUNKED_PADDING = 100_000;
+
+    private static Map<String, Integer> content() {
+        return Collections.singletonMap("calls", calls.incrementAndGet());
+    }
+
+    @GET
+    @Path("/max-age")
+    public Response maxAge() {
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(60);
+        return Response.ok(content()).cacheControl(cacheControl).build();
+    }
+
+    @GET
+    @Path("/etag")
+    public Response etag(@Context Request request) {
+        calls.incrementAndGet();
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(ETAG);
+        if (notModified != null)
+            return notModified.build();
+        return Response.ok(Collections.singletonMap("calls", calls.get())).tag(ETAG).build();
+    }
+
+    @GET
+    @Path("/private")
+    public Response privateMaxAge() {
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(60);
+        cacheControl.setPrivate(true);
+        return Response.ok(content()).cacheControl(cacheControl).build();
+    }
+
+    @GET
+    @Path("/vary")
+    public Response vary() {
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(60);
+        return Response.ok(content()).cacheControl(cacheControl).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_LANGUAGE)
+                .build();
+    }
+
+    @GET
+    @Path("/chunked")
+    public Response chunked() {
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(60);
+        final int calls = CacheService.calls.incrementAndGet();
+        // Streamed without Content-Length
+        final StreamingOutput output = stream -> {
+            stream.write(("{\"calls\":" + calls + ",\"padding\":\"").getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < CHUNKED_PADDING; i++)
+                stream.write('x');
+            stream.write("\"}".getBytes(StandardCharsets.UTF_8));
+        };
+        return Response.ok(output).cacheControl(cacheControl).build();
+    }
+
+    @GET
+    @Path("/no-store")
+    public Response noStore() {
+        final CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoStore(true);
+        return Response.ok(content()).cacheControl(cacheControl).tag(ETAG).build();
+    }
+}
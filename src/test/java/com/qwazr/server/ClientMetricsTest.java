@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.ClientMetrics;
+import com.qwazr.server.client.ClientMetricsMXBean;
+import com.qwazr.server.client.JsonClient;
+import com.qwazr.server.client.MultiClient;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ClientMetricsTest {
+
+    private static GenericServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext()
+                .jaxrs(ApplicationBuilder.of("/*").classes(RestApplication.JSON_CLASSES).classes(SmileService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    static class MeteredClient extends JsonClient {
+
+        MeteredClient(final String address) {
+            super(RemoteService.of(URI.create(address)).build());
+        }
+
+        SmileService.Record get(final int id) {
+            return client.target(remote.serviceAddress)
+                    .path("/smile")
+                    .queryParam("id", id)
+                    .request(MediaType.APPLICATION_JSON)
+                    .property(ClientMetrics.OPERATION, "metrics-get")
+                    .get(SmileService.Record.class);
+        }
+
+        SmileService.Record echo(final SmileService.Record record) {
+            return client.target(remote.serviceAddress)
+                    .path("/smile")
+                    .request(MediaType.APPLICATION_JSON)
+                    .property(ClientMetrics.OPERATION, "metrics-echo")
+                    .post(Entity.json(record), SmileService.Record.class);
+        }
+
+        void notFound() {
+            client.target(remote.serviceAddress)
+                    .path("/not-found")
+                    .request(MediaType.APPLICATION_JSON)
+                    .property(ClientMetrics.OPERATION, "metrics-missing")
+                    .get(String.class);
+        }
+    }
+
+    private static ClientMetricsMXBean find(final List<ClientMetricsMXBean> metrics, final String operation) {
+        return metrics.stream().filter(m -> operation.equals(m.getOperation())).findFirst().orElseThrow();
+    }
+
+    @Test
+    public void perOperation() throws MalformedObjectNameException {
+        try (final MeteredClient client = new MeteredClient("http://localhost:9091")) {
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(i, client.get(i).id);
+            Assert.assertEquals(3, client.echo(SmileService.Record.of(3)).id);
+            try {
+                client.notFound();
+                Assert.fail("NotFoundException expected");
+            } catch (NotFoundException e) {
+                // Expected
+            }
+
+            final List<ClientMetricsMXBean> metrics = client.getMetrics();
+            final ClientMetricsMXBean get = find(metrics, "metrics-get");
+            Assert.assertEquals(10, get.getCalls());
+            Assert.assertTrue(get.getBytesReceived() > 0);
+            Assert.assertEquals(0, get.getBytesSent());
+            Assert.assertTrue(get.getLatencyP99() > 0);
+            Assert.assertEquals(Long.valueOf(10), get.getStatusCounts().get(200));
+
+            final ClientMetricsMXBean echo = find(metrics, "metrics-echo");
+            Assert.assertEquals(1, echo.getCalls());
+            Assert.assertTrue(echo.getBytesSent() > 0);
+
+            final ClientMetricsMXBean missing = find(metrics, "metrics-missing");
+            Assert.assertEquals(1, missing.getClientErrors());
+            Assert.assertEquals(0, missing.getServerErrors());
+
+            Assert.assertFalse(ManagementFactory.getPlatformMBeanServer()
+                    .queryNames(new ObjectName("com.qwazr.server.client:type=metrics,*"), null)
+                    .isEmpty());
+        }
+    }
+
+    static class Clients extends MultiClient<MeteredClient> {
+
+        Clients(final MeteredClient[] clients, final ExecutorService executor) {
+            super(clients, executor);
+        }
+    }
+
+    @Test
+    public void multiClient() throws MalformedObjectNameException {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final MeteredClient[] clients = { new MeteredClient("http://localhost:9091"),
+                new MeteredClient("http://localhost:9092") };
+        try {
+            final Clients multiClient = new Clients(clients, executor);
+            final long before = multiClient.getMetrics().getCalls();
+            clients[0].get(1);
+            try {
+                clients[1].get(1);
+                Assert.fail("ProcessingException expected");
+            } catch (ProcessingException e) {
+                // Nothing listens on 9092
+            }
+            final ClientMetricsMXBean metrics = multiClient.getMetrics();
+            Assert.assertEquals(before + 2, metrics.getCalls());
+            Assert.assertTrue(metrics.getConnectionErrors() > 0);
+
+            multiClient.registerMBeans("metrics-test");
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer()
+                    .isRegistered(new ObjectName("com.qwazr.server.client:type=metrics,group=\"metrics-test\"")));
+            multiClient.unregisterMBeans();
+        } finally {
+            for (final MeteredClient client : clients)
+                client.close();
+            executor.shutdown();
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+
+import java.io.IOException;
+
+public class DeadlineJaxRsServer implements BaseServer {
+
+    final static int DEFAULT_DEADLINE = 30000;
+
+    private GenericServer server;
+
+    DeadlineJaxRsServer() throws IOException {
+
+        final GenericServerBuilder builder =
+                GenericServer.of(ServerConfiguration.of().webServiceDeadline(DEFAULT_DEADLINE).build());
+
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(DeadlineService.class));
+
+        server = builder.build();
+    }
+
+    @Override
+    public GenericServer getServer() {
+        return server;
+    }
+
+}
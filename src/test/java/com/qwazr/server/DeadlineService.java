@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.JsonClient;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.net.URI;
+
+@Path("/deadline")
+public class DeadlineService {
+
+    @GET
+    public String deadline() {
+        final RequestDeadline deadline = RequestDeadline.current();
+        return deadline == null ? "none" : Long.toString(deadline.getRemainingMillis());
+    }
+
+    @GET
+    @Path("/sleep")
+    public String sleep(@QueryParam("ms") final long ms) throws InterruptedException {
+        Thread.sleep(ms);
+        return Long.toString(ms);
+    }
+
+    @GET
+    @Path("/forward")
+    public String forward() {
+        try (final DownstreamClient client = new DownstreamClient()) {
+            return client.deadline();
+        }
+    }
+
+    static class DownstreamClient extends JsonClient {
+
+        DownstreamClient() {
+            super(RemoteService.of(URI.create("http://localhost:9091")).build());
+        }
+
+        String deadline() {
+            return client.target(remote.serviceAddress)
+                    .path("/deadline")
+                    .request(MediaType.TEXT_PLAIN)
+                    .get(String.class);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HealthServiceTest {
+
+    private static GenericServer server;
+    private static Client client;
+    private static final AtomicBoolean admission = new AtomicBoolean(true);
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder =
+                GenericServer.of(ServerConfiguration.of().build()).readinessCheck("admission", admission::get);
+        builder.getWebServiceContext()
+                .jaxrs(ApplicationBuilder.of("/*")
+                        .classes(RestApplication.JSON_CLASSES)
+                        .classes(HealthService.class, WelcomeService.class));
+        server = builder.build();
+        server.start(false);
+        client = ClientBuilder.newClient().register(JacksonJsonProvider.class);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        client.close();
+        server.close();
+    }
+
+    private static void check(final String path, final int status, final String entity) {
+        try (final Response response = client.target("http://localhost:9091").path(path).request().get()) {
+            Assert.assertEquals(status, response.getStatus());
+            Assert.assertEquals(entity, response.readEntity(String.class));
+        }
+    }
+
+    @Test
+    public void test100live() {
+        check("/health/live", 200, "OK");
+    }
+
+    @Test
+    public void test200ready() {
+        check("/health/ready", 200, "OK");
+    }
+
+    @Test
+    public void test300readinessCheck() {
+        admission.set(false);
+        try {
+            check("/health/ready", 503, "admission");
+            check("/health/live", 200, "OK");
+        } finally {
+            admission.set(true);
+        }
+        check("/health/ready", 200, "OK");
+    }
+
+    @Test
+    public void test400welcomeSnapshot() {
+        final WelcomeStatus first = welcome();
+        Assert.assertNotNull(first.runtime);
+        Assert.assertNotNull(first.memory);
+        Assert.assertNotNull(first.sampling_time);
+        // The expensive fields are not sampled again for each request
+        final WelcomeStatus second = welcome();
+        Assert.assertEquals(first.sampling_time, second.sampling_time);
+        Assert.assertEquals(server.getStatusSampler().get().time, (long) second.sampling_time);
+    }
+
+    private WelcomeStatus welcome() {
+        try (final Response response = client.target("http://localhost:9091/").request().get()) {
+            Assert.assertEquals(200, response.getStatus());
+            return response.readEntity(WelcomeStatus.class);
+        }
+    }
+
+    @Test
+    public void test900drain() {
+        server.drain();
+        Assert.assertTrue(server.isDraining());
+        check("/health/ready", 503, "draining");
+        check("/health/live", 200, "OK");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.server.client.JsonClient;
+import com.qwazr.server.client.JsonStreamIterator;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.net.URI;
+
+public class JsonStreamTest {
+
+    private static GenericServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext()
+                .jaxrs(ApplicationBuilder.of("/*").classes(RestApplication.JSON_CLASSES).classes(StreamService.class))
+                .jaxrs(ApplicationBuilder.of("/custom/*")
+                        .classes(JsonStreamWriter.OfIterator.class, NumbersAsStrings.class, StreamService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    private static String get(final String path, final String accept) {
+        final Client client = ClientBuilder.newClient();
+        try {
+            return client.target("http://localhost:9091")
+                    .path(path)
+                    .queryParam("count", 3)
+                    .request(accept)
+                    .get(String.class);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void jsonArray() {
+        Assert.assertEquals("[0,1,2]", get("/stream/iterator", MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void ndJson() {
+        Assert.assertEquals("0\n1\n2\n", get("/stream/iterator", ServiceInterface.APPLICATION_NDJSON));
+    }
+
+    /**
+     * An application specific ObjectMapper
+     */
+    @Provider
+    public static class NumbersAsStrings implements ContextResolver<ObjectMapper> {
+
+        private final static ObjectMapper MAPPER =
+                new ObjectMapper().enable(JsonGenerator.Feature.WRITE_NUMBERS_AS_STRINGS);
+
+        @Override
+        public ObjectMapper getContext(Class<?> type) {
+            return MAPPER;
+        }
+    }
+
+    @Test
+    public void applicationMapper() {
+        Assert.assertEquals("[\"0\",\"1\",\"2\"]", get("/custom/stream/iterator", MediaType.APPLICATION_JSON));
+        Assert.assertEquals("\"0\"\n\"1\"\n\"2\"\n",
+                get("/custom/stream/iterator", ServiceInterface.APPLICATION_NDJSON));
+    }
+
+    static class StreamClient extends JsonClient {
+
+        StreamClient() {
+            super(RemoteService.of(URI.create("http://localhost:9091")).build());
+        }
+
+        JsonStreamIterator<SmileService.Record> records(int count) throws IOException {
+            return getIterator(client.target(remote.serviceAddress).path("/stream").queryParam("count", count),
+                    SmileService.Record.class);
+        }
+    }
+
+    @Test
+    public void lazyIterator() throws IOException {
+        try (final StreamClient client = new StreamClient()) {
+            int count = 0;
+            try (final JsonStreamIterator<SmileService.Record> iterator = client.records(100_000)) {
+                while (iterator.hasNext())
+                    Assert.assertEquals(count++, iterator.next().id);
+            }
+            Assert.assertEquals(100_000, count);
+        }
+    }
+
+    @Test
+    public void earlyClose() throws IOException {
+        try (final StreamClient client = new StreamClient()) {
+            for (int i = 0; i < 5; i++) {
+                try (final JsonStreamIterator<SmileService.Record> iterator = client.records(100_000)) {
+                    Assert.assertEquals(0, iterator.next().id);
+                    Assert.assertEquals(1, iterator.next().id);
+                }
+            }
+            // The connections have been released
+            try (final JsonStreamIterator<SmileService.Record> iterator = client.records(2)) {
+                Assert.assertTrue(iterator.hasNext());
+            }
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.server.logs.LogMetricsHandler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+
+public class MetricsTest {
+
+    private static GenericServer server;
+    private static Client client;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebAppContext().getWebappBuilder().registerMetricsServlet("/metrics");
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(TraceService.class).metrics());
+        server = builder.build();
+        server.start(false);
+        client = ClientBuilder.newClient();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        client.close();
+        server.close();
+    }
+
+    private static String scrape(final String url, final String accept, final String expectedType) {
+        try (final Response response = client.target(url).request(accept).get()) {
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertTrue(response.getHeaderString("Content-Type").startsWith(expectedType));
+            return response.readEntity(String.class);
+        }
+    }
+
+    @Test
+    public void prometheus() {
+        client.target("http://localhost:9091/trace").request().get().close();
+        final String metrics = scrape("http://localhost:9091/metrics", "text/plain", "text/plain");
+        Assert.assertTrue(metrics.contains("# TYPE undertow_requests_total counter\n"));
+        Assert.assertTrue(metrics.contains("undertow_requests_total{port=\"9091\"} "));
+        Assert.assertTrue(metrics.contains("qwazr_connector_active_requests{connector=\""));
+        Assert.assertTrue(metrics.contains("jvm_memory_used_bytes{area=\"heap\"} "));
+        Assert.assertTrue(metrics.contains("jvm_threads_current "));
+        Assert.assertFalse(metrics.contains("# EOF"));
+    }
+
+    @Test
+    public void openMetrics() {
+        final String metrics = scrape("http://localhost:9091/metrics", "application/openmetrics-text",
+                "application/openmetrics-text");
+        Assert.assertTrue(metrics.contains("# TYPE undertow_requests counter\n"));
+        Assert.assertTrue(metrics.contains("undertow_requests_total{port=\"9091\"} "));
+        Assert.assertTrue(metrics.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void servlet() {
+        final String metrics = scrape("http://localhost:9090/metrics", "text/plain", "text/plain");
+        Assert.assertTrue(metrics.contains("qwazr_sessions_active{deployment=\""));
+        Assert.assertTrue(metrics.contains("undertow_requests_total{port=\"9090\"} "));
+    }
+
+    @Test
+    public void connectorStatistics() throws InterruptedException {
+        ConnectorStatisticsMXBean statistics = null;
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            if (connector.getPort() == 9091)
+                statistics = connector;
+        Assert.assertNotNull(statistics);
+        for (int i = 0; i < 5; i++)
+            client.target("http://localhost:9091/trace").request().get().close();
+        Assert.assertTrue(statistics.getRequestCount() >= 5);
+        Assert.assertTrue(statistics.getBytesSent() > 0);
+        Assert.assertTrue(statistics.getBytesReceived() > 0);
+        Assert.assertTrue(statistics.getMaxActiveConnections() >= 1);
+        Assert.assertEquals(0, statistics.getHttp2StreamCount());
+        // The rates are sampled every second, whoever reads them
+        final long deadline = System.currentTimeMillis() + 5000;
+        boolean sampled = false;
+        while (!sampled && System.currentTimeMillis() < deadline) {
+            client.target("http://localhost:9091/trace").request().get().close();
+            Thread.sleep(100);
+            sampled = statistics.getRequestRate() > 0 && statistics.getBytesSentRate() > 0;
+        }
+        Assert.assertTrue(sampled);
+        // The reset clears the listener counters and the rates
+        statistics.reset();
+        Assert.assertEquals(0, statistics.getRequestCount());
+        Assert.assertEquals(0, statistics.getBytesSent());
+        Assert.assertEquals(0, statistics.getRequestRate(), 0);
+    }
+
+    @Test
+    public void requestTimings() {
+        for (int i = 0; i < 5; i++)
+            client.target("http://localhost:9091/trace").request().get().close();
+        ConnectorStatisticsMXBean statistics = null;
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            if (connector.getPort() == 9091)
+                statistics = connector;
+        Assert.assertNotNull(statistics);
+        final LogMetricsHandler handler = (LogMetricsHandler) statistics;
+        Assert.assertTrue(handler.getQueueTimes().getCount() >= 5);
+        Assert.assertTrue(handler.getHandlerTimes().getCount() >= 5);
+        Assert.assertTrue(handler.getTimesToFirstByte().getCount() >= 5);
+        final String metrics = scrape("http://localhost:9091/metrics", "text/plain", "text/plain");
+        Assert.assertTrue(metrics.contains("# TYPE qwazr_connector_queue_seconds summary\n"));
+        Assert.assertTrue(metrics.contains("qwazr_connector_ttfb_seconds_count{connector=\""));
+    }
+}
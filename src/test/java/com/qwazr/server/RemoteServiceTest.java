@@ -51,4 +51,19 @@ public class RemoteServiceTest {
 
     }
 
+    @Test
+    public void groupsAndZone() throws URISyntaxException {
+        final RemoteService rs =
+                RemoteService.of("http://birdie:9091/avatar?group=search,index&group=admin&zone=eu-1").build();
+        Assert.assertEquals(3, rs.groups.size());
+        Assert.assertTrue(rs.groups.contains("index"));
+        Assert.assertTrue(rs.groups.contains("admin"));
+        Assert.assertEquals("eu-1", rs.zone);
+
+        final RemoteService rs2 = RemoteService.of().setHost("birdie").setGroups("search").setZone("us-2").build();
+        Assert.assertEquals(1, rs2.groups.size());
+        Assert.assertEquals("us-2", rs2.zone);
+        Assert.assertTrue(RemoteService.of("http://birdie:9091").build().groups.isEmpty());
+    }
+
 }
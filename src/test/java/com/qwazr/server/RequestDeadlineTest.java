@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.JsonClient;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class RequestDeadlineTest {
+
+    private static DeadlineJaxRsServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        server = new DeadlineJaxRsServer();
+        server.start();
+    }
+
+    private static long remaining(final String path, final String deadline) {
+        final Client client = ClientBuilder.newClient();
+        try {
+            return Long.parseLong(client.target("http://localhost:9091")
+                    .path(path)
+                    .request()
+                    .header(RequestDeadline.HEADER, deadline)
+                    .get(String.class));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void inboundHeader() {
+        final long remaining = remaining("/deadline", "5000");
+        Assert.assertTrue(remaining > 0 && remaining <= 5000);
+    }
+
+    @Test
+    public void connectorDefault() {
+        final long remaining = remaining("/deadline", null);
+        Assert.assertTrue(remaining > 5000 && remaining <= DeadlineJaxRsServer.DEFAULT_DEADLINE);
+    }
+
+    @Test
+    public void boundedHeader() {
+        final long remaining = remaining("/deadline", Long.toString(Long.MAX_VALUE));
+        Assert.assertTrue(remaining > 5000 && remaining <= DeadlineJaxRsServer.DEFAULT_DEADLINE);
+        Assert.assertTrue(RequestDeadline.of("-1000", 5000).isExpired());
+        Assert.assertTrue(RequestDeadline.of("60000", 5000).getRemainingMillis() <= 5000);
+        Assert.assertFalse(RequestDeadline.of(Long.toString(Long.MAX_VALUE), null).isExpired());
+        Assert.assertFalse(RequestDeadline.of(Long.MAX_VALUE).isExpired());
+    }
+
+    @Test
+    public void expired() {
+        final Client client = ClientBuilder.newClient();
+        try (final Response response = client.target("http://localhost:9091/deadline")
+                .request()
+                .header(RequestDeadline.HEADER, "0")
+                .get()) {
+            Assert.assertEquals(504, response.getStatus());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void forwarded() {
+        final long remaining = remaining("/deadline/forward", "4000");
+        Assert.assertTrue(remaining > 0 && remaining <= 4000);
+    }
+
+    @Test
+    public void scope() throws Exception {
+        Assert.assertNull(RequestDeadline.current());
+        Assert.assertEquals(60000, RequestDeadline.timeout(60000));
+        final RequestDeadline deadline = RequestDeadline.of(1000);
+        final Callable<RequestDeadline> task;
+        try (final RequestDeadline.Scope ignored = deadline.activate()) {
+            Assert.assertSame(deadline, RequestDeadline.current());
+            Assert.assertTrue(RequestDeadline.timeout(60000) <= 1000);
+            task = RequestDeadline.wrap(RequestDeadline::current);
+        }
+        Assert.assertNull(RequestDeadline.current());
+        Assert.assertSame(deadline, task.call());
+        Assert.assertNull(RequestDeadline.current());
+        Assert.assertTrue(RequestDeadline.of(0).isExpired());
+    }
+
+    @Test
+    public void async() throws Exception {
+        try (final AsyncClient client = new AsyncClient(5000)) {
+            final CompletableFuture<Long> remaining;
+            try (final RequestDeadline.Scope ignored = RequestDeadline.of(2000).activate()) {
+                remaining = client.remaining();
+            }
+            Assert.assertTrue(remaining.get() > 0 && remaining.get() <= 2000);
+        }
+    }
+
+    @Test
+    public void asyncTimeout() throws InterruptedException {
+        try (final AsyncClient client = new AsyncClient(200)) {
+            final long start = System.currentTimeMillis();
+            try {
+                client.sleep(3000).get();
+                Assert.fail("The call should time out");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof WebApplicationException);
+                Assert.assertEquals(504, ((WebApplicationException) e.getCause()).getResponse().getStatus());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+    static class AsyncClient extends JsonClient {
+
+        AsyncClient(final int timeout) {
+            super(RemoteService.of(URI.create("http://localhost:9091")).setTimeout(timeout).build());
+        }
+
+        CompletableFuture<Long> remaining() {
+            return sendAsync(HttpMethod.GET, client.target(remote.serviceAddress).path("/deadline"), null, Long.class);
+        }
+
+        CompletableFuture<Long> sleep(final long ms) {
+            return sendAsync(HttpMethod.GET,
+                    client.target(remote.serviceAddress).path("/deadline/sleep").queryParam("ms", ms), null,
+                    Long.class);
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.stop();
+    }
+}
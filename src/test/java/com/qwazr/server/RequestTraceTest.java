@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.utils.ObjectMappers;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class RequestTraceTest {
+
+    private static GenericServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(TraceService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    private static Response get(final Client client, final String path, final String traceId) {
+        return client.target("http://localhost:9091")
+                .path(path)
+                .request()
+                .header(RequestTrace.TRACE_HEADER, traceId)
+                .get();
+    }
+
+    private static List<TraceRecorder.Span> waitForSpans(final String traceId, final int count)
+            throws InterruptedException {
+        // The server spans are recorded when the exchange completes
+        List<TraceRecorder.Span> spans = TraceRecorder.DEFAULT.getSpans(traceId);
+        for (int i = 0; i < 50 && spans.size() < count; i++) {
+            Thread.sleep(100);
+            spans = TraceRecorder.DEFAULT.getSpans(traceId);
+        }
+        return spans;
+    }
+
+    @Test
+    public void newTrace() {
+        final Client client = ClientBuilder.newClient();
+        try (final Response response = get(client, "/trace", null)) {
+            final String traceId = response.getHeaderString(RequestTrace.TRACE_HEADER);
+            Assert.assertNotNull(traceId);
+            Assert.assertEquals(32, traceId.length());
+            Assert.assertEquals(traceId, response.readEntity(String.class));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void propagation() throws InterruptedException, IOException {
+        final String traceId = "propagation-test";
+        final Client client = ClientBuilder.newClient();
+        try (final Response response = get(client, "/trace/forward", traceId)) {
+            Assert.assertEquals(traceId, response.getHeaderString(RequestTrace.TRACE_HEADER));
+            Assert.assertEquals(traceId, response.readEntity(String.class));
+        } finally {
+            client.close();
+        }
+
+        // The inbound span, the outbound call and the downstream span
+        final List<TraceRecorder.Span> spans = waitForSpans(traceId, 3);
+        Assert.assertEquals(3, spans.size());
+        final TraceRecorder.Span root = spans.stream().filter(s -> s.parentSpanId == null).findFirst().orElseThrow();
+        final TraceRecorder.Span call =
+                spans.stream().filter(s -> root.spanId.equals(s.parentSpanId)).findFirst().orElseThrow();
+        final TraceRecorder.Span downstream =
+                spans.stream().filter(s -> call.spanId.equals(s.parentSpanId)).findFirst().orElseThrow();
+        Assert.assertEquals("GET /trace/forward", root.name);
+        Assert.assertEquals("GET /trace", downstream.name);
+        Assert.assertEquals(200, call.status);
+        Assert.assertTrue(root.duration >= call.duration);
+
+        final Path file = Files.createTempFile("spans", ".ndjson");
+        try {
+            Assert.assertTrue(TraceRecorder.DEFAULT.dump(file) >= 3);
+            final String firstLine = Files.readAllLines(file).get(0);
+            Assert.assertNotNull(ObjectMappers.JSON.readValue(firstLine, TraceRecorder.Span.class).traceId);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void invalidId() {
+        final Client client = ClientBuilder.newClient();
+        try (final Response response = get(client, "/trace", "bad id <script>")) {
+            final String traceId = response.getHeaderString(RequestTrace.TRACE_HEADER);
+            // The identifier of the caller is replaced by a new one
+            Assert.assertEquals(32, traceId.length());
+            Assert.assertTrue(traceId.matches("[0-9a-f]+"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void failedCall() throws InterruptedException {
+        final String traceId = "failed-call-test";
+        final Client client = ClientBuilder.newClient();
+        try (final Response response = get(client, "/trace/unreachable", traceId)) {
+            Assert.assertEquals("failed", response.readEntity(String.class));
+        } finally {
+            client.close();
+        }
+        // The outbound call is recorded without status
+        final List<TraceRecorder.Span> spans = waitForSpans(traceId, 2);
+        Assert.assertEquals(2, spans.size());
+        Assert.assertEquals(1, spans.stream().filter(s -> s.status == 0).count());
+    }
+
+    @Test
+    public void ringBuffer() {
+        final TraceRecorder recorder = new TraceRecorder(4);
+        for (int i = 0; i < 10; i++)
+            recorder.record(new TraceRecorder.Span("t", Integer.toString(i), null, "span", i, i * 10, 200));
+        Assert.assertEquals(10, recorder.getRecorded());
+        final List<TraceRecorder.Span> spans = recorder.getSpans("t");
+        Assert.assertEquals(4, spans.size());
+        Assert.assertEquals("6", spans.get(0).spanId);
+        Assert.assertEquals("9", recorder.getSlowest(1).get(0).spanId);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.server.logs.LogMetricsHandler;
+import com.qwazr.server.logs.ResourceUsage;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.io.IOException;
+
+public class ResourceSamplingTest {
+
+    private static GenericServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build()).resourceSampling(1);
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(TraceService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+
+    private static LogMetricsHandler getConnector(final int port) {
+        for (final ConnectorStatisticsMXBean connector : server.getConnectorsStatistics())
+            if (connector.getPort() == port)
+                return (LogMetricsHandler) connector;
+        return null;
+    }
+
+    @Test
+    public void perEndpoint() throws InterruptedException {
+        final Client client = ClientBuilder.newClient();
+        try {
+            for (int i = 0; i < 5; i++)
+                client.target("http://localhost:9091/trace").request().get().close();
+        } finally {
+            client.close();
+        }
+        final LogMetricsHandler connector = getConnector(9091);
+        Assert.assertNotNull(connector);
+        // The usage is recorded when the handler returns, after the response is sent
+        for (int i = 0; i < 50 && connector.getResourceSampleCount() < 5; i++)
+            Thread.sleep(100);
+        Assert.assertTrue(connector.getResourceSampleCount() >= 5);
+        final ResourceUsage usage = connector.getEndpointResourceUsage().get("TraceService.trace");
+        Assert.assertNotNull(usage);
+        Assert.assertEquals(5, usage.getCount());
+        Assert.assertTrue(usage.getAllocatedBytes() > 0);
+        Assert.assertTrue(connector.getAllocatedBytesMean() > 0);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.JsonClient;
+import com.qwazr.server.client.ResponseCache;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+
+public class ResponseCacheTest {
+
+    private static GenericServer server;
+
+    private ResponseCache cache;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(RestApplication.JSON_CLASSES)
+                .classes(CacheService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    @Before
+    public void before() {
+        cache = new ResponseCache(1024 * 1024);
+        CacheService.calls.set(0);
+    }
+
+    private final static GenericType<Map<String, Integer>> MAP_TYPE = new GenericType<Map<String, Integer>>() {
+    };
+
+    class CacheClient extends JsonClient {
+
+        CacheClient() {
+            this(RemoteService.of(URI.create("http://localhost:9091")).build());
+        }
+
+        CacheClient(RemoteService remote) {
+            super(remote, Options.of().responseCache(cache).build());
+        }
+
+        int calls(String path) {
+            return get(client.target(remote.serviceAddress).path(path), MediaType.APPLICATION_JSON, MAP_TYPE).get(
+                    "calls");
+        }
+
+        String content(String path) {
+            return client.target(remote.serviceAddress).path(path).request(MediaType.APPLICATION_JSON).get(
+                    String.class);
+        }
+
+        int calls(String path, String language) {
+            return client.target(remote.serviceAddress)
+                    .path(path)
+                    .request(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.ACCEPT_LANGUAGE, language)
+                    .get(MAP_TYPE)
+                    .get("calls");
+        }
+    }
+
+    @Test
+    public void maxAge() {
+        try (final CacheClient client = new CacheClient()) {
+            Assert.assertEquals(1, client.calls("/cache/max-age"));
+            Assert.assertEquals(1, client.calls("/cache/max-age"));
+            Assert.assertEquals(1, client.calls("/cache/max-age"));
+        }
+        Assert.assertEquals(1, CacheService.calls.get());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertTrue(cache.getBytes() > 0);
+    }
+
+    @Test
+    public void etag() {
+        try (final CacheClient client = new CacheClient()) {
+            Assert.assertEquals(1, client.calls("/cache/etag"));
+            // The server is called, but the content is served from the cache
+            Assert.assertEquals(1, client.calls("/cache/etag"));
+            Assert.assertEquals(1, client.calls("/cache/etag"));
+        }
+        Assert.assertEquals(3, CacheService.calls.get());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getRevalidations());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void noStore() {
+        try (final CacheClient client = new CacheClient()) {
+            Assert.assertEquals(1, client.calls("/cache/no-store"));
+            Assert.assertEquals(2, client.calls("/cache/no-store"));
+        }
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void privateResponse() {
+        try (final CacheClient client = new CacheClient()) {
+            Assert.assertEquals(1, client.calls("/cache/private"));
+            Assert.assertEquals(2, client.calls("/cache/private"));
+        }
+        Assert.assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void credentials() {
+        final RemoteService.Builder remote = RemoteService.of(URI.create("http://localhost:9091"));
+        try (final CacheClient user1 = new CacheClient(remote.setUsername("user1").setPassword("pass1").build());
+             final CacheClient user2 = new CacheClient(remote.setUsername("user2").setPassword("pass2").build())) {
+            Assert.assertEquals(1, user1.calls("/cache/max-age"));
+            Assert.assertEquals(2, user2.calls("/cache/max-age"));
+            Assert.assertEquals(1, user1.calls("/cache/max-age"));
+            Assert.assertEquals(2, user2.calls("/cache/max-age"));
+        }
+        Assert.assertEquals(2, CacheService.calls.get());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(2, cache.getEntries());
+    }
+
+    @Test
+    public void vary() {
+        try (final CacheClient client = new CacheClient()) {
+            Assert.assertEquals(1, client.calls("/cache/vary", "en"));
+            Assert.assertEquals(1, client.calls("/cache/vary", "en"));
+            Assert.assertEquals(2, client.calls("/cache/vary", "fr"));
+        }
+        Assert.assertEquals(2, CacheService.calls.get());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void eviction() {
+        cache = new ResponseCache(600);
+        try (final CacheClient client = new CacheClient()) {
+            client.calls("/cache/max-age");
+            client.calls("/cache/etag");
+        }
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertTrue(cache.getBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void largeChunkedResponse() {
+        cache = new ResponseCache(4096);
+        try (final CacheClient client = new CacheClient()) {
+            for (int i = 1; i <= 2; i++) {
+                final String content = client.content("/cache/chunked");
+                // The whole body is read, although it is too large to be cached
+                Assert.assertTrue(content.startsWith("{\"calls\":" + i + ","));
+                Assert.assertTrue(content.endsWith("x\"}"));
+                Assert.assertTrue(content.length() > CacheService.CHUNKED_PADDING);
+            }
+        }
+        Assert.assertEquals(2, CacheService.calls.get());
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReverseProxyTest {
+
+    private static GenericServer server;
+    private static ReverseProxy proxy;
+    private static ReverseProxy stickyProxy;
+    private static Client client;
+
+    @BeforeClass
+    public static void setup()
+            throws ServletException, IOException, JMException, URISyntaxException, InterruptedException {
+        // Two backends reaching the same web service connector
+        final RemoteService backend1 = RemoteService.of("http://localhost:9091").build();
+        final RemoteService backend2 = RemoteService.of("http://127.0.0.1:9091").build();
+        proxy = ReverseProxy.of(backend1, backend2).healthCheck("/trace", 1000, 1000).build();
+        stickyProxy = ReverseProxy.of(backend1, backend2).stickySessions("session").build();
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build())
+                .webAppProxy("/proxy", proxy)
+                .webAppProxy("/sticky", stickyProxy);
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(TraceService.class));
+        server = builder.build();
+        server.start(false);
+        client = ClientBuilder.newClient();
+        // The first health checks may run before the backends are started
+        for (int i = 0; i < 50 && !proxy.getBackends().stream().allMatch(ReverseProxy.Backend::isHealthy); i++)
+            Thread.sleep(100);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        client.close();
+        server.close();
+    }
+
+    private static long requests(final ReverseProxy proxy) {
+        return proxy.getBackends().stream().mapToLong(ReverseProxy.Backend::getRequests).sum();
+    }
+
+    @Test
+    public void forward() {
+        try (final Response response = client.target("http://localhost:9090/proxy/trace").request().get()) {
+            Assert.assertEquals(200, response.getStatus());
+            // The backend joins the trace of the proxy
+            final Object traceId = response.getHeaders().getFirst(RequestTrace.TRACE_HEADER);
+            Assert.assertNotNull(traceId);
+            Assert.assertEquals(traceId, response.readEntity(String.class));
+        }
+    }
+
+    @Test
+    public void notFound() {
+        try (final Response response = client.target("http://localhost:9090/proxy/unknown").request().get()) {
+            Assert.assertEquals(404, response.getStatus());
+        }
+    }
+
+    @Test
+    public void balanced() throws InterruptedException {
+        final long before = requests(proxy);
+        for (int i = 0; i < 20; i++)
+            try (final Response response = client.target("http://localhost:9090/proxy/trace").request().get()) {
+                Assert.assertEquals(200, response.getStatus());
+            }
+        Assert.assertEquals(before + 20, requests(proxy));
+        for (final ReverseProxy.Backend backend : proxy.getBackends()) {
+            Assert.assertTrue(backend.isHealthy());
+            Assert.assertTrue(backend.getRequests() > 0);
+            // The exchange may complete on the proxy after the client received the response
+            for (int i = 0; i < 20 && backend.getInFlight() > 0; i++)
+                Thread.sleep(50);
+            Assert.assertEquals(0, backend.getInFlight());
+        }
+    }
+
+    @Test
+    public void sticky() {
+        final long[] before =
+                stickyProxy.getBackends().stream().mapToLong(ReverseProxy.Backend::getRequests).toArray();
+        for (int i = 0; i < 10; i++)
+            try (final Response response = client.target("http://localhost:9090/sticky/trace")
+                    .request()
+                    .cookie("session", "abc")
+                    .get()) {
+                Assert.assertEquals(200, response.getStatus());
+            }
+        final long[] after =
+                stickyProxy.getBackends().stream().mapToLong(ReverseProxy.Backend::getRequests).toArray();
+        // Every request of the session went to the same backend
+        Assert.assertTrue((after[0] - before[0] == 10 && after[1] == before[1]) ||
+                (after[1] - before[1] == 10 && after[0] == before[0]));
+    }
+
+    @Test
+    public void parallelHealthChecks() throws IOException, InterruptedException, URISyntaxException {
+        // A backend accepting the connections but never answering
+        try (final ServerSocket silent = new ServerSocket(9097, 50, InetAddress.getByName("localhost"))) {
+            final List<RemoteService> backends = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+                backends.add(RemoteService.of("http://localhost:9097/backend" + i).build());
+            final long start = System.currentTimeMillis();
+            final ReverseProxy silentProxy = ReverseProxy.of(backends.toArray(new RemoteService[0]))
+                    .healthCheck("/health", 100, 1000)
+                    .build();
+            try {
+                for (int i = 0; i < 100 && silentProxy.getBackends().stream().anyMatch(ReverseProxy.Backend::isHealthy);
+                     i++)
+                    Thread.sleep(50);
+                // The checks time out together, not one after the other
+                Assert.assertTrue(silentProxy.getBackends().stream().noneMatch(ReverseProxy.Backend::isHealthy));
+                Assert.assertTrue(System.currentTimeMillis() - start < 3000);
+            } finally {
+                silentProxy.close();
+            }
+        }
+    }
+
+    @Test
+    public void authenticatedConnector() throws IOException, JMException {
+        final ReverseProxy securedProxy = ReverseProxy.of(RemoteService.of().build()).build();
+        final GenericServer securedServer = GenericServer.of(ServerConfiguration.of()
+                .webAppPort(9190)
+                .webServicePort(9191)
+                .webAppAuthentication("BASIC")
+                .webAppRealm("proxy")
+                .build()).identityManagerProvider(realm -> new MemoryIdentityManager())
+                .webAppProxy("/proxy", securedProxy)
+                .build();
+        try {
+            securedServer.start(false);
+            Assert.fail("The proxy should be rejected");
+        } catch (ServletException e) {
+            Assert.assertTrue(e.getMessage().contains("authenticated"));
+        } finally {
+            securedServer.close();
+        }
+    }
+}
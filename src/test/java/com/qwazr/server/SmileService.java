@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Path("/smile")
+public class SmileService {
+
+    @GET
+    @Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+    public Record get(@QueryParam("id") Integer id) {
+        return Record.of(id == null ? 0 : id);
+    }
+
+    @POST
+    @Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+    @Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+    public Record echo(Record record) {
+        return record;
+    }
+
+    /**
+     * A representative entity, mixing numbers, texts, collections and maps
+     */
+    public static class Record {
+
+        public final long id;
+        public final String name;
+        public final double score;
+        public final List<String> tags;
+        public final Map<String, Long> counters;
+
+        @JsonCreator
+        public Record(@JsonProperty("id") long id, @JsonProperty("name") String name,
+                      @JsonProperty("score") double score, @JsonProperty("tags") List<String> tags,
+                      @JsonProperty("counters") Map<String, Long> counters) {
+            this.id = id;
+            this.name = name;
+            this.score = score;
+            this.tags = tags;
+            this.counters = counters;
+        }
+
+        static Record of(long id) {
+            final List<String> tags = new ArrayList<>();
+            final Map<String, Long> counters = new LinkedHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                tags.add("tag" + (id + i) % 7);
+                counters.put("counter" + i, id * 1000 + i);
+            }
+            return new Record(id, "Record number " + id, id / 3.0, tags, counters);
+        }
+
+        static List<Record> list(int size) {
+            final List<Record> records = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                records.add(of(i));
+            return records;
+        }
+    }
+}
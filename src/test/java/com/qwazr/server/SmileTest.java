@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.qwazr.server.client.JsonClient;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+public class SmileTest {
+
+    private static GenericServer server;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException {
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build());
+        builder.getWebServiceContext()
+                .jaxrs(ApplicationBuilder.of("/*").classes(RestApplication.JSON_CLASSES)
+                .classes(RestApplication.SMILE_CLASSES)
+                .classes(SmileService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    static class SmileClient extends JsonClient {
+
+        SmileClient(boolean smile) {
+            super(RemoteService.of(URI.create("http://localhost:9091")).build(),
+                    Options.of().smile(smile).build());
+        }
+
+        Response get(int id) {
+            return client.target(remote.serviceAddress)
+                    .path("/smile")
+                    .queryParam("id", id)
+                    .request(MediaType.APPLICATION_JSON)
+                    .get();
+        }
+
+        SmileService.Record echo(SmileService.Record record) {
+            return client.target(remote.serviceAddress)
+                    .path("/smile")
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(record), SmileService.Record.class);
+        }
+    }
+
+    @Test
+    public void smileWithFallback() {
+        try (final SmileClient client = new SmileClient(true)) {
+            try (final Response response = client.get(5)) {
+                Assert.assertTrue(response.getMediaType().isCompatible(ServerException.APPLICATION_JACKSON_SMILE_TYPE));
+                Assert.assertEquals(5, response.readEntity(SmileService.Record.class).id);
+            }
+            // The server supports Smile, the body is now sent as Smile
+            final SmileService.Record record = SmileService.Record.of(7);
+            final SmileService.Record echo = client.echo(record);
+            Assert.assertEquals(record.name, echo.name);
+            Assert.assertEquals(record.counters, echo.counters);
+        }
+    }
+
+    @Test
+    public void json() {
+        try (final SmileClient client = new SmileClient(false)) {
+            try (final Response response = client.get(3)) {
+                Assert.assertTrue(response.getMediaType().isCompatible(MediaType.APPLICATION_JSON_TYPE));
+                Assert.assertEquals(3, response.readEntity(SmileService.Record.class).id);
+            }
+        }
+    }
+
+    /**
+     * Smile is smaller than JSON on representative entities, and decodes to the same entities.
+     */
+    @Test
+    public void payload() throws IOException {
+        final List<SmileService.Record> records = SmileService.Record.list(1000);
+        final byte[] json = new ObjectMapper().writeValueAsBytes(records);
+        final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        final byte[] smile = smileMapper.writeValueAsBytes(records);
+        Assert.assertTrue(smile.length < json.length);
+        final SmileService.Record[] decoded = smileMapper.readValue(smile, SmileService.Record[].class);
+        Assert.assertEquals(records.size(), decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            final SmileService.Record record = records.get(i);
+            Assert.assertEquals(record.id, decoded[i].id);
+            Assert.assertEquals(record.name, decoded[i].name);
+            Assert.assertEquals(record.score, decoded[i].score, 0);
+            Assert.assertEquals(record.tags, decoded[i].tags);
+            Assert.assertEquals(record.counters, decoded[i].counters);
+        }
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+    }
+}
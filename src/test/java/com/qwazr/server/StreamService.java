@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+@Path("/stream")
+public class StreamService {
+
+    @GET
+    @Produces({ MediaType.APPLICATION_JSON, ServiceInterface.APPLICATION_NDJSON })
+    public Stream<SmileService.Record> stream(@QueryParam("count") int count) {
+        return IntStream.range(0, count).mapToObj(SmileService.Record::of);
+    }
+
+    @GET
+    @Path("/iterator")
+    @Produces({ MediaType.APPLICATION_JSON, ServiceInterface.APPLICATION_NDJSON })
+    public Iterator<Integer> iterator(@QueryParam("count") int count) {
+        return IntStream.range(0, count).iterator();
+    }
+}
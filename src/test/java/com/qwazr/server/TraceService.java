@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.JsonClient;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+import java.net.URI;
+
+@Path("/trace")
+public class TraceService {
+
+    @GET
+    public String trace() {
+        final RequestTrace trace = RequestTrace.current();
+        return trace == null ? "none" : trace.traceId;
+    }
+
+    @GET
+    @Path("/forward")
+    public String forward() {
+        try (final DownstreamClient client = new DownstreamClient()) {
+            return client.trace();
+        }
+    }
+
+    @GET
+    @Path("/unreachable")
+    public String unreachable() {
+        try (final DownstreamClient client = new DownstreamClient("http://localhost:1")) {
+            return client.trace();
+        } catch (ProcessingException e) {
+            return "failed";
+        }
+    }
+
+    static class DownstreamClient extends JsonClient {
+
+        DownstreamClient() {
+            this("http://localhost:9091");
+        }
+
+        DownstreamClient(String url) {
+            super(RemoteService.of(URI.create(url)).build());
+        }
+
+        String trace() {
+            return client.target(remote.serviceAddress).path("/trace").request(MediaType.TEXT_PLAIN).get(String.class);
+        }
+    }
+}
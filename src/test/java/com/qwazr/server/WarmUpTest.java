@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server;
+
+import com.qwazr.server.client.ClientTransport;
+import com.qwazr.server.client.ClientTransportMXBean;
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+public class WarmUpTest {
+
+    private static GenericServer server;
+    private static WarmUp warmUp;
+    private static volatile Boolean readyInListener;
+    private static volatile Integer roundsInListener;
+
+    @BeforeClass
+    public static void setup() throws ServletException, IOException, JMException, URISyntaxException {
+        warmUp = WarmUp.of()
+                .remote(RemoteService.of("http://localhost:9091").build())
+                .connections(2, 5000)
+                .webService("/trace")
+                .webService("/trace/unknown")
+                .rounds(3, 20, 0.5, 10000)
+                .build();
+        final GenericServerBuilder builder = GenericServer.of(ServerConfiguration.of().build())
+                .warmUp(warmUp)
+                .startedListener(s -> {
+                    readyInListener = s.isReady();
+                    roundsInListener = warmUp.getRoundLatencies().size();
+                });
+        builder.getWebServiceContext().jaxrs(ApplicationBuilder.of("/*").classes(TraceService.class));
+        server = builder.build();
+        server.start(false);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        server.close();
+        Assert.assertFalse(server.isReady());
+    }
+
+    @Test
+    public void warmedUpBeforeReady() {
+        Assert.assertTrue(server.isReady());
+        Assert.assertEquals(Boolean.FALSE, readyInListener);
+        Assert.assertTrue(roundsInListener >= 3);
+        Assert.assertEquals(0, warmUp.getErrors());
+    }
+
+    @Test
+    public void pooledConnections() {
+        ClientTransportMXBean transport = null;
+        for (final ClientTransportMXBean t : ClientTransport.getTransports())
+            if ("http://localhost:9091".equals(t.getServerAddress()))
+                transport = t;
+        Assert.assertNotNull(transport);
+        Assert.assertTrue(transport.getReferenceCount() >= 1);
+        Assert.assertTrue(transport.getAvailableConnections() >= 2);
+    }
+}
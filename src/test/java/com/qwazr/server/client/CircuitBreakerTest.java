@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class CircuitBreakerTest extends MultiClientTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(CircuitBreakerTest.class);
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdown();
+	}
+
+	static void calls(CircuitBreaker breaker, int count, Throwable error) {
+		for (int i = 0; i < count; i++) {
+			Assert.assertTrue(breaker.tryAcquire());
+			breaker.onResult(0, error);
+		}
+	}
+
+	@Test
+	public void opensOnErrorRate() {
+		final CircuitBreaker breaker = CircuitBreaker.of().window(10, 4).errorRate(0.5).build("test");
+		calls(breaker, 2, null);
+		calls(breaker, 1, new RuntimeException());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getCurrentState());
+		calls(breaker, 1, new RuntimeException());
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getCurrentState());
+		Assert.assertFalse(breaker.tryAcquire());
+		Assert.assertEquals(1, breaker.getRejectedCalls());
+		Assert.assertEquals(1, breaker.getOpenedCount());
+	}
+
+	@Test
+	public void clientErrorsAreNotFailures() {
+		final CircuitBreaker breaker = CircuitBreaker.of().window(4, 4).build("test");
+		calls(breaker, 10, new NotFoundException());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getCurrentState());
+		Assert.assertEquals(0, breaker.getErrorRate(), 0);
+	}
+
+	@Test
+	public void cancellationsAreNotFailures() {
+		Assert.assertFalse(CircuitBreaker.isFailure(new CancellationException()));
+		Assert.assertFalse(CircuitBreaker.isFailure(new InterruptedException()));
+		Assert.assertFalse(CircuitBreaker.isFailure(new ProcessingException(new InterruptedIOException())));
+		Assert.assertFalse(CircuitBreaker.isFailure(new WebApplicationException(new InterruptedException())));
+		Assert.assertTrue(CircuitBreaker.isFailure(new ProcessingException(new SocketTimeoutException())));
+		Assert.assertTrue(CircuitBreaker.isFailure(new ProcessingException(new ConnectException())));
+	}
+
+	@Test
+	public void opensOnSlowCalls() {
+		final CircuitBreaker breaker = CircuitBreaker.of().window(4, 4).slowCalls(100, 0.5).build("test");
+		calls(breaker, 2, null);
+		Assert.assertTrue(breaker.tryAcquire());
+		breaker.onResult(TimeUnit.MILLISECONDS.toNanos(200), null);
+		Assert.assertTrue(breaker.tryAcquire());
+		breaker.onResult(TimeUnit.MILLISECONDS.toNanos(200), null);
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getCurrentState());
+	}
+
+	@Test
+	public void halfOpenProbes() throws InterruptedException {
+		final CircuitBreaker breaker = CircuitBreaker.of().window(2, 2).open(50, 2).build("test");
+		calls(breaker, 2, new RuntimeException());
+		Assert.assertFalse(breaker.tryAcquire());
+		Thread.sleep(100);
+
+		// Only two probes are allowed
+		Assert.assertTrue(breaker.tryAcquire());
+		Assert.assertTrue(breaker.tryAcquire());
+		Assert.assertFalse(breaker.tryAcquire());
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getCurrentState());
+
+		// One failed probe opens the circuit again
+		breaker.onResult(0, null);
+		breaker.onResult(0, new RuntimeException());
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getCurrentState());
+		Thread.sleep(100);
+
+		calls(breaker, 2, null);
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getCurrentState());
+		Assert.assertEquals(0, breaker.getBufferedCalls());
+	}
+
+	@Test
+	public void multiClientSkipsOpenCircuit() {
+		final ClientExample[] clients = panel(Type.error, Type.success, Type.success);
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor, ClientSelector.RANDOM,
+				CircuitBreaker.of().window(2, 2).open(60000, 1));
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				multiClient.forEachParallel(ClientExample::action, LOGGER);
+				Assert.fail("MultiWebApplicationException not thrown");
+			} catch (MultiWebApplicationException e) {
+				Assert.assertEquals(1, e.getCauses().size());
+			}
+		}
+		Assert.assertEquals("OPEN", multiClient.getCircuitBreakers().get(0).getState());
+
+		// The failing client is skipped, the others still answer
+		final List<Integer> results = multiClient.forEachParallel(ClientExample::action, LOGGER);
+		Assert.assertEquals(2, results.size());
+		Assert.assertTrue(results.containsAll(Arrays.asList(1, 2)));
+		Assert.assertEquals(2, clients[0].actionCounter.get());
+
+		// The rejection is still given to an exception consumer
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		multiClient.forEachParallel(ClientExample::action, exceptions::add);
+		Assert.assertEquals(1, exceptions.size());
+		Assert.assertTrue(exceptions.get(0) instanceof CircuitBreaker.OpenException);
+		Assert.assertEquals(503, exceptions.get(0).getResponse().getStatus());
+		Assert.assertEquals(2, clients[0].actionCounter.get());
+	}
+
+	@Test
+	public void everyCircuitOpen() {
+		final ClientExample[] clients = panel(Type.error, Type.error);
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor, ClientSelector.RANDOM,
+				CircuitBreaker.of().window(1, 1).open(60000, 1));
+		try {
+			multiClient.firstRandomSuccess(ClientExample::action, LOGGER);
+			Assert.fail("MultiWebApplicationException not thrown");
+		} catch (MultiWebApplicationException e) {
+			Assert.assertEquals(2, e.getCauses().size());
+		}
+		try {
+			multiClient.firstRandomSuccess(ClientExample::action, LOGGER);
+			Assert.fail("MultiWebApplicationException not thrown");
+		} catch (MultiWebApplicationException e) {
+			Assert.assertEquals(503, e.getResponse().getStatus());
+		}
+		Assert.assertEquals(1, clients[0].actionCounter.get());
+		Assert.assertEquals(1, clients[1].actionCounter.get());
+	}
+}
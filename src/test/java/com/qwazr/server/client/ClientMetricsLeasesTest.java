@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.ws.rs.ProcessingException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+public class ClientMetricsLeasesTest {
+
+	private final static URI URI = java.net.URI.create("http://leases.test:8765/path");
+
+	private static ObjectName objectName(final String operation) throws MalformedObjectNameException {
+		return new ObjectName("com.qwazr.server.client:type=metrics,name=" +
+				ObjectName.quote("http://leases.test:8765") + ",operation=" + ObjectName.quote(operation));
+	}
+
+	@Test
+	public void releasedByTheLastClient() throws MalformedObjectNameException {
+		final ClientMetrics.Leases first = new ClientMetrics.Leases();
+		final ClientMetrics.Leases second = new ClientMetrics.Leases();
+		final ClientMetrics metrics = first.get(URI, "leased", "GET");
+		Assert.assertSame(metrics, second.get(URI, "leased", "GET"));
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName("leased")));
+		first.release();
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName("leased")));
+		second.release();
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName("leased")));
+		Assert.assertTrue(ClientMetrics.getAll("http://leases.test:8765").isEmpty());
+	}
+
+	@Test
+	public void cancellationIsNotCounted() {
+		final ClientMetrics.Leases leases = new ClientMetrics.Leases();
+		try {
+			final ClientMetrics metrics = leases.get(URI, "cancelled", "GET");
+			metrics.onFailure(System.nanoTime(), new CancellationException());
+			metrics.onFailure(System.nanoTime(), new ProcessingException(new InterruptedIOException()));
+			Assert.assertEquals(0, metrics.getCalls());
+			Assert.assertEquals(0, metrics.getTimeouts());
+			metrics.onFailure(System.nanoTime(), new ProcessingException(new SocketTimeoutException()));
+			Assert.assertEquals(1, metrics.getCalls());
+			Assert.assertEquals(1, metrics.getTimeouts());
+		} finally {
+			leases.release();
+		}
+	}
+
+	@Test
+	public void aggregateResetIsLocal() {
+		final ClientMetrics.Leases leases = new ClientMetrics.Leases();
+		try {
+			final ClientMetrics metrics = leases.get(URI, "aggregated", "GET");
+			metrics.onResponse(System.nanoTime(), 200);
+			metrics.onResponse(System.nanoTime(), 500);
+			final ClientMetricsMXBean view = ClientMetrics.aggregate("view", List.of("http://leases.test:8765"));
+			final ClientMetricsMXBean other = ClientMetrics.aggregate("other", List.of("http://leases.test:8765"));
+			Assert.assertEquals(2, view.getCalls());
+			view.reset();
+			Assert.assertEquals(0, view.getCalls());
+			Assert.assertEquals(0, view.getMaxLatency());
+			metrics.onResponse(System.nanoTime(), 200);
+			Assert.assertEquals(1, view.getCalls());
+			Assert.assertEquals(0, view.getServerErrors());
+			Assert.assertEquals(Long.valueOf(1), view.getStatusCounts().get(200));
+			// The shared metrics, and the other views, are not reset
+			Assert.assertEquals(3, metrics.getCalls());
+			Assert.assertEquals(3, other.getCalls());
+			Assert.assertEquals(1, other.getServerErrors());
+		} finally {
+			leases.release();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RemoteService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ClientSelectorTest extends MultiClientTest {
+
+	static ClientStats[] stats(int count) {
+		final ClientStats[] stats = new ClientStats[count];
+		for (int i = 0; i < count; i++)
+			stats[i] = new ClientStats("ID " + i);
+		return stats;
+	}
+
+	static void latency(ClientStats stats, long ms) {
+		stats.begin();
+		stats.end(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ms), true);
+	}
+
+	static void checkPermutation(int[] order, int count) {
+		Assert.assertEquals(count, order.length);
+		final int[] sorted = order.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < count; i++)
+			Assert.assertEquals(i, sorted[i]);
+	}
+
+	@Test
+	public void random() {
+		final ClientStats[] stats = stats(5);
+		for (int i = 0; i < 100; i++)
+			checkPermutation(ClientSelector.RANDOM.select(stats), 5);
+		checkPermutation(ClientSelector.RANDOM.select(stats(0)), 0);
+	}
+
+	@Test
+	public void powerOfTwoChoices() {
+		final ClientStats[] stats = stats(2);
+		stats[0].begin();
+		stats[0].begin();
+		for (int i = 0; i < 100; i++) {
+			final int[] order = ClientSelector.POWER_OF_TWO_CHOICES.select(stats);
+			checkPermutation(order, 2);
+			Assert.assertEquals(1, order[0]);
+		}
+	}
+
+	@Test
+	public void ewmaLatency() {
+		final ClientStats[] stats = stats(3);
+		latency(stats[0], 300);
+		latency(stats[1], 10);
+		latency(stats[2], 100);
+		Assert.assertTrue(stats[1].getEwmaLatency() >= 10);
+		for (int i = 0; i < 100; i++)
+			Assert.assertArrayEquals(new int[] { 1, 2, 0 }, ClientSelector.EWMA_LATENCY.select(stats));
+	}
+
+	@Test
+	public void fastFailingClient() {
+		final ClientStats[] stats = stats(3);
+		latency(stats[0], 50);
+		latency(stats[1], 20);
+		// Connection refused: the client fails immediately
+		for (int i = 0; i < 3; i++)
+			stats[2].end(stats[2].begin(), false);
+		Assert.assertTrue(stats[2].getEwmaLatency() > stats[0].getEwmaLatency());
+		for (int i = 0; i < 100; i++) {
+			Assert.assertArrayEquals(new int[] { 1, 0, 2 }, ClientSelector.EWMA_LATENCY.select(stats));
+			Assert.assertNotEquals(2, ClientSelector.POWER_OF_TWO_CHOICES.select(stats)[0]);
+		}
+	}
+
+	@Test
+	public void weightedRoundRobin() {
+		final ClientSelector selector = ClientSelector.weightedRoundRobin(3, 1);
+		final ClientStats[] stats = stats(2);
+		final int[] firstCounts = new int[2];
+		for (int i = 0; i < 400; i++) {
+			final int[] order = selector.select(stats);
+			checkPermutation(order, 2);
+			firstCounts[order[0]]++;
+		}
+		Assert.assertEquals(300, firstCounts[0]);
+		Assert.assertEquals(100, firstCounts[1]);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void weightedRoundRobinWrongSize() {
+		ClientSelector.weightedRoundRobin(1, 2, 3).select(stats(2));
+	}
+
+	static RemoteService remote(String host, String group, String zone) {
+		return RemoteService.of().setHost(host).setGroups(group).setZone(zone).build();
+	}
+
+	@Test
+	public void locality() {
+		final RemoteService[] remotes = { remote("remote", "other", "us"),
+				remote("group", "search", "us"),
+				remote("local1", "search", "eu"),
+				remote("local2", "search", "eu") };
+		final ClientSelector.Locality selector =
+				ClientSelector.locality(remotes, Arrays.asList("search"), "eu", ClientSelector.RANDOM, 2, 3);
+		Assert.assertEquals(2, selector.getTier(0));
+		Assert.assertEquals(1, selector.getTier(1));
+		Assert.assertEquals(0, selector.getTier(2));
+		final ClientStats[] stats = stats(4);
+		for (int i = 0; i < 100; i++) {
+			final int[] order = selector.select(stats);
+			checkPermutation(order, 4);
+			Assert.assertTrue(order[0] == 2 || order[0] == 3);
+			Assert.assertEquals(1, order[2]);
+			Assert.assertEquals(0, order[3]);
+		}
+		Assert.assertEquals(0, selector.getSpillovers());
+	}
+
+	@Test
+	public void localitySpillover() {
+		final RemoteService[] remotes = { remote("local", "search", "eu"), remote("remote", "search", "us") };
+		final ClientSelector.Locality selector =
+				ClientSelector.locality(remotes, Arrays.asList("search"), "eu", ClientSelector.RANDOM, 2, 3);
+		final ClientStats[] stats = stats(2);
+		// The local client is saturated
+		stats[0].begin();
+		stats[0].begin();
+		Assert.assertArrayEquals(new int[] { 1, 0 }, selector.select(stats));
+		Assert.assertEquals(1, selector.getSpillovers());
+		// The local client is failing
+		final ClientStats[] failing = stats(2);
+		for (int i = 0; i < 3; i++)
+			failing[0].end(failing[0].begin(), false);
+		Assert.assertArrayEquals(new int[] { 1, 0 }, selector.select(failing));
+		// The local client recovered
+		failing[0].end(failing[0].begin(), true);
+		Assert.assertArrayEquals(new int[] { 0, 1 }, selector.select(failing));
+	}
+
+	@Test
+	public void multiClientStats() {
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			final MultiClient<ClientExample> multiClient =
+					new MultiClient<>(panel(Type.error, Type.success, Type.success), executor,
+							ClientSelector.POWER_OF_TWO_CHOICES);
+			multiClient.forEachParallel(ClientExample::action, e -> {
+			});
+			long calls = 0, errors = 0;
+			for (ClientStats stats : multiClient.getClientStats()) {
+				calls += stats.getCalls();
+				errors += stats.getErrors();
+				Assert.assertEquals(0, stats.getOutstanding());
+			}
+			Assert.assertEquals(3, calls);
+			Assert.assertEquals(1, errors);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RemoteService;
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+public class HashRingTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(HashRingTest.class);
+
+	private final static int KEYS = 20_000;
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdownNow();
+	}
+
+	private static RemoteService[] remotes(int count) {
+		final RemoteService[] remotes = new RemoteService[count];
+		for (int i = 0; i < count; i++)
+			remotes[i] = RemoteService.of(URI.create("http://node" + i + ":9091")).build();
+		return remotes;
+	}
+
+	private static <T> Map<T, Integer> distribution(HashRing<T> ring) {
+		final Map<T, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEYS; i++)
+			counts.merge(ring.owner("key" + i), 1, Integer::sum);
+		return counts;
+	}
+
+	@Test
+	public void balanced() {
+		final HashRing<RemoteService> ring = HashRing.of(remotes(5)).build();
+		final Map<RemoteService, Integer> counts = distribution(ring);
+		Assert.assertEquals(5, counts.size());
+		for (int count : counts.values())
+			Assert.assertTrue("Unbalanced: " + counts, Math.abs(count - KEYS / 5) < KEYS / 5 * 0.25);
+	}
+
+	@Test
+	public void weighted() {
+		final RemoteService[] remotes = remotes(2);
+		final HashRing<RemoteService> ring = HashRing.of(remotes).weights(3, 1).build();
+		final Map<RemoteService, Integer> counts = distribution(ring);
+		final double ratio = (double) counts.get(remotes[0]) / counts.get(remotes[1]);
+		Assert.assertTrue("Wrong ratio: " + ratio, ratio > 2.4 && ratio < 3.6);
+	}
+
+	@Test
+	public void minimalRebalance() {
+		final RemoteService[] remotes = remotes(5);
+		final HashRing<RemoteService> ring = HashRing.of(remotes).build();
+		final RemoteService newNode = RemoteService.of(URI.create("http://node5:9091")).build();
+		final HashRing<RemoteService> grown = ring.with(newNode, 1);
+		final HashRing<RemoteService> shrunk = ring.without(remotes[2]);
+		int movedOnJoin = 0;
+		int movedOnLeave = 0;
+		for (int i = 0; i < KEYS; i++) {
+			final String key = "key" + i;
+			final RemoteService owner = ring.owner(key);
+			final RemoteService ownerAfterJoin = grown.owner(key);
+			if (!owner.equals(ownerAfterJoin)) {
+				// A key can only move to the new node
+				Assert.assertEquals(newNode, ownerAfterJoin);
+				movedOnJoin++;
+			}
+			final RemoteService ownerAfterLeave = shrunk.owner(key);
+			if (!owner.equals(ownerAfterLeave)) {
+				// Only the keys of the leaving node move
+				Assert.assertEquals(remotes[2], owner);
+				movedOnLeave++;
+			}
+		}
+		Assert.assertTrue(movedOnJoin > 0 && movedOnJoin < KEYS / 6 * 1.3);
+		Assert.assertTrue(movedOnLeave > 0 && movedOnLeave < KEYS / 5 * 1.3);
+	}
+
+	@Test
+	public void replicas() {
+		final HashRing<RemoteService> ring = HashRing.of(remotes(4)).build();
+		final List<RemoteService> nodes = ring.lookup("my-key", 3);
+		Assert.assertEquals(3, nodes.size());
+		Assert.assertEquals(ring.owner("my-key"), nodes.get(0));
+		Assert.assertEquals(3, nodes.stream().distinct().count());
+		Assert.assertEquals(4, ring.lookup("my-key", 10).size());
+	}
+
+	@Test
+	public void boundedLoad() {
+		final RemoteService[] remotes = remotes(4);
+		final HashRing<RemoteService> ring = HashRing.of(remotes).boundedLoad(1.25).build();
+		final RemoteService owner = ring.owner("hot-key");
+		final Map<RemoteService, Integer> loads = new HashMap<>();
+		loads.put(owner, 100);
+		final List<RemoteService> nodes = ring.lookup("hot-key", 4, node -> loads.getOrDefault(node, 0));
+		// The overloaded owner is tried last
+		Assert.assertNotEquals(owner, nodes.get(0));
+		Assert.assertEquals(owner, nodes.get(3));
+		// Without load, the owner comes first
+		Assert.assertEquals(owner, ring.lookup("hot-key", 4, node -> 0).get(0));
+	}
+
+	@Test
+	public void multiClientRouting() {
+		final ClientExample[] clients = new ClientExample[4];
+		for (int i = 0; i < clients.length; i++)
+			clients[i] = new ClientExample.SuccessClient(i);
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final HashRing<ClientExample> ring = HashRing.of(clients).build();
+		final ClientExample owner = ring.owner("key");
+		Assert.assertEquals(Integer.valueOf(owner.id),
+				multiClient.firstKeySuccess(ring, "key", 2, ClientExample::action, LOGGER));
+		Assert.assertEquals(1, owner.actionCounter.get());
+
+		final List<Integer> results = multiClient.forEachKeyReplica(ring, "key", 3, ClientExample::action, LOGGER);
+		Assert.assertEquals(3, results.size());
+		Assert.assertEquals(Integer.valueOf(owner.id), results.get(0));
+	}
+
+	@Test
+	public void failoverToReplica() {
+		final ClientExample[] clients = new ClientExample[3];
+		for (int i = 0; i < clients.length; i++)
+			clients[i] = new ClientExample.SuccessClient(i);
+		final HashRing<ClientExample> ring = HashRing.of(clients).build();
+		final List<ClientExample> nodes = ring.lookup("key", 2);
+		// The owner fails
+		final int ownerId = nodes.get(0).id;
+		clients[ownerId] = new ClientExample.ErrorClient(ownerId);
+		final HashRing<ClientExample> failingRing = HashRing.of(clients).build();
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		Assert.assertEquals(Integer.valueOf(nodes.get(1).id),
+				multiClient.firstKeySuccess(failingRing, "key", 2, ClientExample::action, e -> {
+				}));
+	}
+
+	static class NodeClient extends JsonClient {
+
+		NodeClient(RemoteService remote) {
+			super(remote);
+		}
+	}
+
+	@Test
+	public void remoteServiceRing() {
+		final RemoteService[] remotes = remotes(4);
+		final NodeClient[] clients = new NodeClient[remotes.length];
+		for (int i = 0; i < clients.length; i++)
+			clients[i] = new NodeClient(remotes[i]);
+		try {
+			final MultiClient<NodeClient> multiClient = new MultiClient<>(clients, executor);
+			// A ring of the remote services routes to the clients of the same servers
+			final HashRing<RemoteService> remoteRing = HashRing.of(remotes).build();
+			Assert.assertEquals(remoteRing.owner("key").serverAddress,
+					multiClient.firstKeySuccess(remoteRing, "key", 2, client -> client.remote.serverAddress, LOGGER));
+			// The ring built by the MultiClient places the clients like their remote services
+			final HashRing<NodeClient> clientRing = multiClient.ring().build();
+			Assert.assertEquals(remoteRing.owner("key").serverAddress, clientRing.owner("key").remote.serverAddress);
+			final List<String> replicas =
+					multiClient.forEachKeyReplica(clientRing, "key", 3, client -> client.remote.serverAddress, LOGGER);
+			Assert.assertEquals(3, replicas.size());
+			Assert.assertEquals(remoteRing.owner("key").serverAddress, replicas.get(0));
+		} finally {
+			for (NodeClient client : clients)
+				client.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+public class MultiClientAsyncTest extends MultiClientTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(MultiClientAsyncTest.class);
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdown();
+	}
+
+	static CompletionStage<Integer> asyncAction(ClientExample client) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return client.action();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	void forEach(ClientExample[] clients, int resultCount, int exceptionCount) {
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final List<WebApplicationException> exceptions = Collections.synchronizedList(new ArrayList<>());
+		final List<Integer> results =
+				multiClient.forEachAsync(MultiClientAsyncTest::asyncAction, exceptions::add).join();
+		Assert.assertEquals(resultCount, results.size());
+		Assert.assertEquals(exceptionCount, exceptions.size());
+		if (clients != null)
+			for (ClientExample client : clients)
+				Assert.assertEquals(1, client.actionCounter.get());
+	}
+
+	@Test
+	public void forEachAsyncTests() {
+		forEach(null, 0, 0);
+		forEach(panel(), 0, 0);
+		forEach(panel(Type.success), 1, 0);
+		forEach(panel(Type.success, Type.success, Type.success), 3, 0);
+		forEach(panel(Type.error, Type.error), 0, 2);
+		forEach(panel(Type.error, Type.success, Type.error, Type.success), 2, 2);
+	}
+
+	@Test
+	public void forEachAsyncFail() {
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(panel(Type.success, Type.error, Type.error), executor);
+		try {
+			multiClient.forEachAsync(MultiClientAsyncTest::asyncAction, LOGGER).join();
+			Assert.fail("MultiWebApplicationException not thrown");
+		} catch (CompletionException e) {
+			Assert.assertTrue(e.getCause() instanceof MultiWebApplicationException);
+			Assert.assertEquals(2, ((MultiWebApplicationException) e.getCause()).getCauses().size());
+		}
+	}
+
+	@Test
+	public void firstRandomSuccessAsync() {
+		final ClientExample[] clients = panel(Type.error, Type.success, Type.error, Type.success);
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		final Integer result =
+				multiClient.firstRandomSuccessAsync(MultiClientAsyncTest::asyncAction, exceptions::add).join();
+		Assert.assertNotNull(result);
+		Assert.assertTrue(clients[result] instanceof ClientExample.SuccessClient);
+		int calls = 0;
+		for (ClientExample client : clients)
+			calls += client.actionCounter.get();
+		Assert.assertEquals(exceptions.size() + 1, calls);
+	}
+
+	@Test
+	public void firstRandomSuccessAsyncNoResult() {
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(panel(Type.error, Type.error), executor);
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		Assert.assertNull(
+				multiClient.firstRandomSuccessAsync(MultiClientAsyncTest::asyncAction, exceptions::add).join());
+		Assert.assertEquals(2, exceptions.size());
+	}
+}
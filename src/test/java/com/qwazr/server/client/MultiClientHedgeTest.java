@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+public class MultiClientHedgeTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(MultiClientHedgeTest.class);
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdownNow();
+	}
+
+	static class SlowClient extends ClientExample {
+
+		final long sleepMs;
+		volatile boolean interrupted;
+
+		SlowClient(int id, long sleepMs) {
+			super(id);
+			this.sleepMs = sleepMs;
+		}
+
+		@Override
+		Integer action() {
+			actionCounter.incrementAndGet();
+			try {
+				Thread.sleep(sleepMs);
+			} catch (InterruptedException e) {
+				// Like an interrupted HTTP call
+				interrupted = true;
+				throw new ProcessingException(new InterruptedIOException());
+			}
+			return id;
+		}
+	}
+
+	// Always try the clients in the given order
+	final static ClientSelector IN_ORDER = stats -> {
+		final int[] order = new int[stats.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		return order;
+	};
+
+	@Test
+	public void hedgeWins() {
+		final SlowClient slow = new SlowClient(0, 5000);
+		final SlowClient fast = new SlowClient(1, 0);
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(new ClientExample[] { slow, fast }, executor, IN_ORDER);
+		final HedgePolicy policy = HedgePolicy.of().delay(50).build();
+		final long start = System.currentTimeMillis();
+		final Integer result = multiClient.firstHedgedSuccess(ClientExample::action, policy, LOGGER);
+		Assert.assertEquals(Integer.valueOf(1), result);
+		Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+		Assert.assertEquals(1, policy.getCalls());
+		Assert.assertEquals(1, policy.getHedges());
+		Assert.assertEquals(1, policy.getHedgeWins());
+		Assert.assertEquals(1.0, policy.getHedgeRate(), 0);
+		// The latency from the start of the call: the slow primary is accounted for the hedge delay
+		Assert.assertTrue(policy.getLatencies().getMax() >= 50_000);
+	}
+
+	@Test
+	public void cancelledHedgeIsNotAFailure() throws InterruptedException {
+		final SlowClient slow = new SlowClient(0, 5000);
+		final SlowClient fast = new SlowClient(1, 0);
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(new ClientExample[] { slow, fast }, executor, IN_ORDER,
+						CircuitBreaker.of().window(1, 1));
+		final HedgePolicy policy = HedgePolicy.of().delay(50).build();
+		Assert.assertEquals(Integer.valueOf(1),
+				multiClient.firstHedgedSuccess(ClientExample::action, policy, LOGGER));
+		final ClientStats slowStats = multiClient.getClientStats().get(0);
+		for (int i = 0; i < 100 && slowStats.getOutstanding() > 0; i++)
+			Thread.sleep(10);
+		Assert.assertTrue(slow.interrupted);
+		Assert.assertEquals(0, slowStats.getOutstanding());
+		Assert.assertEquals(0, slowStats.getErrors());
+		Assert.assertEquals(0, slowStats.getConsecutiveErrors());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED.name(), multiClient.getCircuitBreakers().get(0).getState());
+	}
+
+	@Test
+	public void noHedgeWhenFast() {
+		final SlowClient fast = new SlowClient(0, 0);
+		final SlowClient other = new SlowClient(1, 0);
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(new ClientExample[] { fast, other }, executor, IN_ORDER);
+		final HedgePolicy policy = HedgePolicy.of().delay(1000).build();
+		Assert.assertEquals(Integer.valueOf(0),
+				multiClient.firstHedgedSuccess(ClientExample::action, policy, LOGGER));
+		Assert.assertEquals(0, policy.getHedges());
+		Assert.assertEquals(0, other.actionCounter.get());
+	}
+
+	@Test
+	public void budgetExhausted() {
+		final SlowClient slow = new SlowClient(0, 300);
+		final SlowClient fast = new SlowClient(1, 0);
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(new ClientExample[] { slow, fast }, executor, IN_ORDER);
+		final HedgePolicy policy = HedgePolicy.of().delay(10).budget(0, 0).build();
+		Assert.assertEquals(Integer.valueOf(0),
+				multiClient.firstHedgedSuccess(ClientExample::action, policy, LOGGER));
+		Assert.assertEquals(0, policy.getHedges());
+		Assert.assertTrue(policy.getBudgetExhausted() > 0);
+		Assert.assertEquals(0, fast.actionCounter.get());
+	}
+
+	@Test
+	public void failoverOnError() {
+		final ClientExample[] clients =
+				new ClientExample[] { new ClientExample.ErrorClient(0), new ClientExample.SuccessClient(1) };
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor, IN_ORDER);
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		final HedgePolicy policy = HedgePolicy.of().delay(1000).build();
+		Assert.assertEquals(Integer.valueOf(1),
+				multiClient.firstHedgedSuccess(ClientExample::action, policy, exceptions::add));
+		Assert.assertEquals(1, exceptions.size());
+		Assert.assertEquals(0, policy.getHedges());
+	}
+
+	@Test
+	public void adaptiveDelay() {
+		final HedgePolicy policy = HedgePolicy.of().delay(500).adaptive(0.95, 10).build();
+		Assert.assertEquals(500, policy.getDelayMs());
+		for (int i = 0; i < 100; i++)
+			policy.onSuccess(20_000, false);
+		Assert.assertTrue(policy.getDelayMs() >= 20 && policy.getDelayMs() < 25);
+	}
+
+	@Test
+	public void adaptiveDelayFollowsLatency() throws InterruptedException {
+		final HedgePolicy policy = HedgePolicy.of().delay(500).adaptive(0.95, 10, 100).build();
+		for (int i = 0; i < 100; i++)
+			policy.onSuccess(20_000, false);
+		Assert.assertTrue(policy.getDelayMs() < 25);
+		// The old latencies expire after two windows
+		Thread.sleep(250);
+		for (int i = 0; i < 20; i++)
+			policy.onSuccess(200_000, false);
+		Assert.assertTrue(policy.getDelayMs() >= 200 && policy.getDelayMs() < 250);
+	}
+
+	@Test
+	public void adaptiveDelayDoesNotDrift() {
+		final SlowClient slow = new SlowClient(0, 200);
+		final SlowClient fast = new SlowClient(1, 0);
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(new ClientExample[] { slow, fast }, executor, IN_ORDER);
+		final HedgePolicy policy = HedgePolicy.of().delay(50).adaptive(0.5, 1).budget(1, 10).build();
+		for (int i = 0; i < 5; i++)
+			Assert.assertEquals(Integer.valueOf(1),
+					multiClient.firstHedgedSuccess(ClientExample::action, policy, LOGGER));
+		// The hedges won, but the delay is not driven below the delay which triggered them
+		Assert.assertEquals(5, policy.getHedgeWins());
+		Assert.assertTrue(policy.getDelayMs() >= 50);
+	}
+}
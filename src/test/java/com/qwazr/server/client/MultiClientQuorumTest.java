@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RequestDeadline;
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+public class MultiClientQuorumTest extends MultiClientTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(MultiClientQuorumTest.class);
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void deadline() {
+		final MultiClientHedgeTest.SlowClient hung = new MultiClientHedgeTest.SlowClient(0, 10000);
+		final ClientExample[] clients = new ClientExample[] { hung, new ClientExample.SuccessClient(1),
+				new ClientExample.SuccessClient(2) };
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		try {
+			multiClient.forEachQuorum(ClientExample::action, 200, clients.length, LOGGER);
+			Assert.fail("WebApplicationException not thrown");
+		} catch (WebApplicationException e) {
+			Assert.assertEquals(504, e.getResponse().getStatus());
+		}
+	}
+
+	@Test
+	public void deadlineWithPartialResults() throws InterruptedException {
+		final MultiClientHedgeTest.SlowClient hung = new MultiClientHedgeTest.SlowClient(0, 10000);
+		final ClientExample[] clients = new ClientExample[] { hung, new ClientExample.SuccessClient(1),
+				new ClientExample.SuccessClient(2) };
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		final long start = System.currentTimeMillis();
+		final PartialResult<Integer> result =
+				multiClient.forEachQuorum(ClientExample::action, 200, clients.length, exceptions::add);
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertTrue(result.isDeadlineReached());
+		Assert.assertFalse(result.isQuorumReached());
+		Assert.assertFalse(result.isComplete());
+		Assert.assertEquals(2, result.getResults().size());
+		Assert.assertEquals(Collections.singletonList("ID 0"), result.getMissing());
+		Assert.assertTrue(exceptions.isEmpty());
+		// The hung call has been cancelled
+		Thread.sleep(100);
+		Assert.assertTrue(hung.interrupted);
+	}
+
+	@Test
+	public void deadlineReleasesWorkers() throws InterruptedException {
+		final BlockingClient blocked = new BlockingClient(0);
+		final ClientExample[] clients = new ClientExample[] { blocked, new ClientExample.SuccessClient(1) };
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final long start = System.currentTimeMillis();
+		final PartialResult<Integer> result =
+				multiClient.forEachQuorum(ClientExample::action, 200, clients.length, e -> {
+				});
+		Assert.assertFalse(result.isQuorumReached());
+		Assert.assertEquals(1, result.getResults().size());
+		// The worker thread is not pinned for the full timeout of the call
+		Assert.assertTrue(blocked.released.await(2000, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+		Assert.assertTrue(blocked.timeout <= 200);
+	}
+
+	/**
+	 * Like a blocking socket I/O: the interruption is ignored, the timeout is bounded by the deadline
+	 */
+	static class BlockingClient extends ClientExample {
+
+		final CountDownLatch released = new CountDownLatch(1);
+		volatile int timeout;
+
+		BlockingClient(int id) {
+			super(id);
+		}
+
+		@Override
+		Integer action() {
+			actionCounter.incrementAndGet();
+			timeout = RequestDeadline.timeout(10000);
+			final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			long remaining;
+			while ((remaining = end - System.nanoTime()) > 0)
+				LockSupport.parkNanos(remaining);
+			released.countDown();
+			throw new ProcessingException(new SocketTimeoutException());
+		}
+	}
+
+	@Test
+	public void quorum() {
+		final MultiClientHedgeTest.SlowClient hung = new MultiClientHedgeTest.SlowClient(0, 10000);
+		final ClientExample[] clients = new ClientExample[] { hung, new ClientExample.SuccessClient(1),
+				new ClientExample.SuccessClient(2), new ClientExample.ErrorClient(3) };
+		final MultiClient<ClientExample> multiClient = new MultiClient<>(clients, executor);
+		final PartialResult<Integer> result = multiClient.forEachQuorum(ClientExample::action, 5000, 0.5, e -> {
+		});
+		Assert.assertTrue(result.isQuorumReached());
+		Assert.assertFalse(result.isDeadlineReached());
+		Assert.assertEquals(2, result.getResults().size());
+		Assert.assertTrue(result.getMissing().contains("ID 0"));
+		Assert.assertEquals(4, result.getResults().size() + result.getFailed().size() + result.getMissing().size());
+	}
+
+	@Test
+	public void quorumWithErrorsIsNotThrown() {
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(panel(Type.success, Type.error, Type.success), executor);
+		final PartialResult<Integer> result = multiClient.forEachQuorum(ClientExample::action, 5000, 2, LOGGER);
+		Assert.assertEquals(2, result.getResults().size());
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.utils.LoggerUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public class MultiClientStreamingTest extends MultiClientTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(MultiClientStreamingTest.class);
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setup() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		executor.shutdown();
+	}
+
+	static class ConcurrentClient extends ClientExample {
+
+		final long sleepMs;
+		final AtomicInteger running;
+		final AtomicInteger maxRunning;
+
+		ConcurrentClient(int id, long sleepMs, AtomicInteger running, AtomicInteger maxRunning) {
+			super(id);
+			this.sleepMs = sleepMs;
+			this.running = running;
+			this.maxRunning = maxRunning;
+		}
+
+		@Override
+		Integer action() throws InterruptedException {
+			actionCounter.incrementAndGet();
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(sleepMs);
+				return id;
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+	}
+
+	static ClientExample[] concurrentPanel(int count, AtomicInteger maxRunning, long... sleeps) {
+		final AtomicInteger running = new AtomicInteger();
+		final ClientExample[] clients = new ClientExample[count];
+		for (int i = 0; i < count; i++)
+			clients[i] = new ConcurrentClient(i, sleeps[i % sleeps.length], running, maxRunning);
+		return clients;
+	}
+
+	@Test
+	public void boundedConcurrency() {
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(concurrentPanel(20, maxRunning, 10, 20, 5), executor);
+		final List<Integer> results = new ArrayList<>();
+		multiClient.forEachStreaming(ClientExample::action, 3, results::add, LOGGER);
+		Assert.assertEquals(20, results.size());
+		Assert.assertTrue(maxRunning.get() <= 3);
+	}
+
+	@Test
+	public void completionOrder() {
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final ClientExample[] clients = concurrentPanel(3, maxRunning, 500, 10, 10);
+		// The slow client is called first
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(clients, executor, MultiClientHedgeTest.IN_ORDER);
+		final List<Integer> results = new ArrayList<>();
+		multiClient.forEachStreaming(ClientExample::action, 3, results::add, LOGGER);
+		Assert.assertEquals(3, results.size());
+		Assert.assertEquals(Integer.valueOf(0), results.get(2));
+		Assert.assertEquals(3, maxRunning.get());
+	}
+
+	@Test
+	public void topK() {
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(concurrentPanel(50, maxRunning, 1, 3, 2), executor);
+		final PriorityQueue<Integer> top3 = multiClient.reduceParallel(ClientExample::action, 8, new PriorityQueue<>(),
+				(queue, result) -> {
+					queue.add(result);
+					if (queue.size() > 3)
+						queue.poll();
+					return queue;
+				}, LOGGER);
+		final List<Integer> sorted = new ArrayList<>(top3);
+		sorted.sort(null);
+		Assert.assertEquals(Arrays.asList(47, 48, 49), sorted);
+	}
+
+	@Test
+	public void errors() {
+		final MultiClient<ClientExample> multiClient =
+				new MultiClient<>(panel(Type.success, Type.error, Type.success, Type.error), executor);
+		final List<WebApplicationException> exceptions = new ArrayList<>();
+		final Integer sum = multiClient.reduceParallel(ClientExample::action, 2, 0, Integer::sum, exceptions::add);
+		Assert.assertEquals(Integer.valueOf(2), sum);
+		Assert.assertEquals(2, exceptions.size());
+	}
+}
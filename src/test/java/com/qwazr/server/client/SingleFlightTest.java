@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.server.client;
+
+import com.qwazr.server.RequestDeadline;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+	@Test
+	public void coalescing() throws InterruptedException, ExecutionException {
+		final SingleFlight singleFlight = new SingleFlight();
+		final AtomicInteger executions = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(10);
+		try {
+			final List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < 10; i++)
+				futures.add(executor.submit(() -> singleFlight.execute("key", () -> {
+					executions.incrementAndGet();
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return "result";
+				})));
+			// Wait for every caller to be blocked on the in flight call
+			while (singleFlight.getCalls() < 10)
+				Thread.sleep(10);
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<String> future : futures)
+				Assert.assertEquals("result", future.get());
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(1, executions.get());
+		Assert.assertEquals(1, singleFlight.getExecutions());
+		Assert.assertEquals(9, singleFlight.getCoalesced());
+		Assert.assertEquals(0.9, singleFlight.getCoalescingRatio(), 0.0001);
+		Assert.assertEquals(0, singleFlight.getInFlight());
+	}
+
+	@Test
+	public void distinctKeys() {
+		final SingleFlight singleFlight = new SingleFlight();
+		Assert.assertEquals("a", singleFlight.execute("a", () -> "a"));
+		Assert.assertEquals("b", singleFlight.execute("b", () -> "b"));
+		Assert.assertEquals("a", singleFlight.execute("a", () -> "a"));
+		Assert.assertEquals(3, singleFlight.getExecutions());
+		Assert.assertEquals(0, singleFlight.getCoalescingRatio(), 0);
+	}
+
+	@Test(expected = NotFoundException.class)
+	public void error() {
+		new SingleFlight().execute("key", () -> {
+			throw new NotFoundException();
+		});
+	}
+
+	@Test
+	public void waiterTimeout() throws InterruptedException, ExecutionException {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return "result";
+			}));
+			while (singleFlight.getInFlight() == 0)
+				Thread.sleep(10);
+			try {
+				singleFlight.execute("key", 100, () -> "other");
+				Assert.fail("The waiter should time out");
+			} catch (WebApplicationException e) {
+				Assert.assertEquals(504, e.getResponse().getStatus());
+			}
+			release.countDown();
+			Assert.assertEquals("result", leader.get());
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(1, singleFlight.getExecutions());
+	}
+
+	@Test
+	public void leaderDeadline() throws InterruptedException, ExecutionException {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// The leader runs out of its own deadline
+			final Future<String> leader = executor.submit(() -> {
+				try (final RequestDeadline.Scope scope = RequestDeadline.of(200).activate()) {
+					return singleFlight.execute("key", 10000, () -> {
+						started.countDown();
+						try {
+							Thread.sleep(RequestDeadline.timeout(10000));
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+						throw new WebApplicationException(Response.Status.GATEWAY_TIMEOUT);
+					});
+				}
+			});
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+			// The waiter does not share the error of the leader, it executes the call again
+			Assert.assertEquals("other", singleFlight.execute("key", 10000, () -> "other"));
+			try {
+				leader.get();
+				Assert.fail("The leader should time out");
+			} catch (ExecutionException e) {
+				Assert.assertEquals(504, ((WebApplicationException) e.getCause()).getResponse().getStatus());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(2, singleFlight.getCalls());
+		Assert.assertEquals(2, singleFlight.getExecutions());
+		Assert.assertEquals(0, singleFlight.getInFlight());
+	}
+}
@@ -40,4 +40,13 @@ public class LogParamTest {
         Assert.assertEquals("123456", LogParam.TIME_TAKEN.supplier.apply(logContext));
 
     }
+
+    @Test
+    public void timeTakenMicros() {
+        LogContext logContext = new LogContext(ctx -> {
+        });
+        logContext.nanoStartTime = System.nanoTime();
+        logContext.nanoEndTime = logContext.nanoStartTime + 123_456_511L;
+        Assert.assertEquals("123456", LogParam.X_TIME_TAKEN_US.supplier.apply(logContext));
+    }
 }